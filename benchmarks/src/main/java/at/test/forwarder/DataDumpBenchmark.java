@@ -0,0 +1,92 @@
+package at.test.forwarder;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.LocalDateTime;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of {@link JavaForwarder.DataDumpManager} per read forwarded, with and without {@code DUMP}. {@link #record()} is
+ * what the forwarding thread pays, handing the data to the {@link DataDumpPipeline}; {@link #format()} is what the
+ * pipeline's writer thread pays, formatting the data dump. The formatted data dump is discarded.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DataDumpBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean dump;
+
+	@Param({ "64", "1024", "8192" })
+	public int bytesRead;
+
+	private JavaForwarder.DataDumpManager dataDumpManager;
+	private LocalDateTime localDateTime;
+	private byte[] buffer;
+	private PrintStream out;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(final int b) {
+			}
+
+			@Override
+			public void write(final byte[] b, final int off, final int len) {
+			}
+		}));
+		if (dump) {
+			System.setProperty(JavaForwarder.ENVIRONMENT_VARIABLE_DUMP, "");
+		} else {
+			System.clearProperty(JavaForwarder.ENVIRONMENT_VARIABLE_DUMP);
+		}
+		final InetAddress loopback = InetAddress.getLoopbackAddress();
+		dataDumpManager = new JavaForwarder.DataDumpManager(Thread.currentThread().getId(), CaptureWriter.IPPROTO_TCP,
+				new InetSocketAddress(loopback, 40000), new InetSocketAddress(loopback, 9080));
+		localDateTime = LocalDateTime.now();
+		// A full buffer continues the block, like a bulk transfer
+		buffer = new byte[bytesRead];
+		ThreadLocalRandom.current().nextBytes(buffer);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		dataDumpManager.logDataDump();
+		DataDumpPipeline.shared().flush(10, TimeUnit.SECONDS);
+		System.setOut(out);
+	}
+
+	@Benchmark
+	public void record() {
+		dataDumpManager.record(localDateTime, buffer, bytesRead);
+	}
+
+	@Benchmark
+	public void format() {
+		dataDumpManager.write(localDateTime, 0, buffer, bytesRead, false);
+	}
+
+}
@@ -0,0 +1,168 @@
+package at.test.forwarder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback echo servers and a JavaForwarder running in the benchmark JVM. {@link JavaForwarder#runServer(List)} can only run
+ * once per JVM, so every benchmark using it must run forked, one trial per fork (the JMH default).
+ */
+final class Loopback {
+
+	private Loopback() {
+	}
+
+	/**
+	 * @return local port that was free a moment ago
+	 * @throws IOException if no port can be bound
+	 */
+	static int freePort() throws IOException {
+		try (ServerSocket serverSocket = new ServerSocket(0)) {
+			return serverSocket.getLocalPort();
+		}
+	}
+
+	/**
+	 * Start forwarding {@code routes} with {@link JavaForwarder#runServer(List)}, with its console output discarded.
+	 *
+	 * @param routes to forward
+	 * @return thread running the forwarder, to {@link #stopForwarder(Thread)}
+	 * @throws InterruptedException if interrupted while the routes are set up
+	 */
+	static Thread startForwarder(final List<Route> routes) throws InterruptedException {
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(final int b) {
+			}
+
+			@Override
+			public void write(final byte[] b, final int off, final int len) {
+			}
+		}));
+		final Thread forwarder = new Thread(() -> JavaForwarder.runServer(routes), "JavaForwarder-Benchmark");
+		forwarder.setDaemon(true);
+		forwarder.start();
+		if (!JavaForwarder.lifecycle().awaitRunning(10, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("JavaForwarder did not bind its routes in time");
+		}
+		return forwarder;
+	}
+
+	/**
+	 * Shut the forwarder down and wait for it.
+	 *
+	 * @param forwarder returned by {@link #startForwarder(List)}
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	static void stopForwarder(final Thread forwarder) throws InterruptedException {
+		JavaForwarder.exit();
+		forwarder.join();
+	}
+
+	/**
+	 * {@code TCP} server echoing all data with a thread per connection.
+	 */
+	static final class TcpEchoServer extends Thread {
+
+		final private ServerSocket serverSocket;
+		final private Queue<Socket> sockets = new ConcurrentLinkedQueue<>();
+
+		TcpEchoServer() throws IOException {
+			super("Benchmark-TcpEcho");
+			setDaemon(true);
+			serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+			start();
+		}
+
+		int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final Socket socket = serverSocket.accept();
+					socket.setTcpNoDelay(true);
+					sockets.add(socket);
+					final Thread echo = new Thread(() -> echo(socket), "Benchmark-TcpEcho-" + socket.getPort());
+					echo.setDaemon(true);
+					echo.start();
+				}
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+
+		private static void echo(final Socket socket) {
+			final byte[] buffer = new byte[64 * 1024];
+			try (InputStream inputStream = socket.getInputStream(); OutputStream outputStream = socket.getOutputStream()) {
+				int bytesRead;
+				while ((bytesRead = inputStream.read(buffer)) >= 0) {
+					outputStream.write(buffer, 0, bytesRead);
+				}
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+
+		void close() throws IOException {
+			serverSocket.close();
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+		}
+
+	}
+
+	/**
+	 * {@code UDP} server echoing every datagram to its sender.
+	 */
+	static final class UdpEchoServer extends Thread {
+
+		final private DatagramSocket socket;
+
+		UdpEchoServer() throws SocketException {
+			super("Benchmark-UdpEcho");
+			setDaemon(true);
+			socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+			start();
+		}
+
+		int getPort() {
+			return socket.getLocalPort();
+		}
+
+		@Override
+		public void run() {
+			final DatagramPacket packet = new DatagramPacket(new byte[64 * 1024], 64 * 1024);
+			try {
+				while (true) {
+					packet.setLength(64 * 1024);
+					socket.receive(packet);
+					socket.send(packet);
+				}
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+
+		void close() {
+			socket.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,111 @@
+package at.test.forwarder;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trip of {@code payloadSize} bytes on each of {@code connections} loopback connections through a JavaForwarder
+ * {@code TCP} route to an echo server. The payload is written to all connections before the echoes are read, so all
+ * connections are forwarded at the same time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TcpForwardBenchmark {
+
+	/** Engine forwarding the connections. */
+	@Param({ "THREAD", "NIO" })
+	public String engine;
+
+	/** {@code SPLICE} moves data without copying it to the heap, {@code INSPECT} records a data dump of it. */
+	@Param({ "SPLICE", "INSPECT" })
+	public String path;
+
+	@Param({ "64", "4096", "65536" })
+	public int payloadSize;
+
+	@Param({ "1", "16" })
+	public int connections;
+
+	/** Heap buffer of the {@code INSPECT} path of the {@code THREAD} engine. */
+	@Param({ "8192", "65536" })
+	public int bufferSize;
+
+	private Loopback.TcpEchoServer echoServer;
+	private Thread forwarder;
+	private Socket[] sockets;
+	private OutputStream[] outputStreams;
+	private DataInputStream[] inputStreams;
+	private byte[] payload;
+	private byte[] echo;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, InterruptedException {
+		System.setProperty("ENGINE", engine);
+		System.setProperty("BUFFER_SIZE", String.valueOf(bufferSize));
+		if ("INSPECT".equals(path)) {
+			System.setProperty("DUMP", "");
+		}
+		echoServer = new Loopback.TcpEchoServer();
+		final int localPort = Loopback.freePort();
+		forwarder = Loopback.startForwarder(Collections.singletonList(
+				new Route(JavaForwarder.Protocol.TCP, localPort, "127.0.0.1", echoServer.getPort())));
+		sockets = new Socket[connections];
+		outputStreams = new OutputStream[connections];
+		inputStreams = new DataInputStream[connections];
+		for (int index = 0; index < connections; index++) {
+			sockets[index] = new Socket(InetAddress.getLoopbackAddress(), localPort);
+			sockets[index].setTcpNoDelay(true);
+			sockets[index].setSoTimeout(10_000);
+			outputStreams[index] = sockets[index].getOutputStream();
+			inputStreams[index] = new DataInputStream(sockets[index].getInputStream());
+		}
+		payload = new byte[payloadSize];
+		ThreadLocalRandom.current().nextBytes(payload);
+		echo = new byte[payloadSize];
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException, InterruptedException {
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		Loopback.stopForwarder(forwarder);
+		echoServer.close();
+	}
+
+	@Benchmark
+	public byte[] roundTrip() throws IOException {
+		for (OutputStream outputStream : outputStreams) {
+			outputStream.write(payload);
+		}
+		for (DataInputStream inputStream : inputStreams) {
+			inputStream.readFully(echo);
+		}
+		return echo;
+	}
+
+}
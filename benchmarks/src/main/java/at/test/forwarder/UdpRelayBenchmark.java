@@ -0,0 +1,76 @@
+package at.test.forwarder;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trip of a datagram of {@code payloadSize} bytes through a JavaForwarder {@code UDP} route to an echo server.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UdpRelayBenchmark {
+
+	@Param({ "64", "512", "1400" })
+	public int payloadSize;
+
+	private Loopback.UdpEchoServer echoServer;
+	private Thread forwarder;
+	private DatagramSocket socket;
+	private DatagramPacket request;
+	private DatagramPacket response;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, InterruptedException {
+		echoServer = new Loopback.UdpEchoServer();
+		final int localPort = Loopback.freePort();
+		forwarder = Loopback.startForwarder(Collections.singletonList(
+				new Route(JavaForwarder.Protocol.UDP, localPort, "127.0.0.1", echoServer.getPort())));
+		socket = new DatagramSocket();
+		socket.setSoTimeout(10_000);
+		final byte[] payload = new byte[payloadSize];
+		ThreadLocalRandom.current().nextBytes(payload);
+		request = new DatagramPacket(payload, payloadSize,
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), localPort));
+		response = new DatagramPacket(new byte[payloadSize], payloadSize);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		socket.close();
+		Loopback.stopForwarder(forwarder);
+		echoServer.close();
+	}
+
+	@Benchmark
+	public DatagramPacket roundTrip() throws IOException {
+		socket.send(request);
+		response.setLength(payloadSize);
+		socket.receive(response);
+		return response;
+	}
+
+}
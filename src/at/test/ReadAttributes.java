@@ -71,4 +71,4 @@ public class ReadAttributes {
 		}
 		return name + ": " + null;
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,292 @@
+package at.test.forwarder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Thread accepting client connections on the local port of a route for the thread per connection engine. The listening
+ * socket is bound once and the thread blocks in its own {@link Selector} until a client connects, so queued connections
+ * are never dropped by rebinding it. {@link #shutdown()} wakes the selector, there is no timeout to poll for termination.
+ * Closing a listening socket resets the connections the kernel queued for it, so these are accepted before it is closed:
+ * with {@code REUSE_PORT} only handshakes completing in between are lost while another process takes over the port. A
+ * route may be served by {@code ACCEPTORS} threads: with {@code REUSE_PORT} each binds its own socket and the kernel
+ * spreads the connections over them, otherwise they share one socket. Connections are admitted by the route's
+ * {@link AdmissionControl} before they are handed over.
+ */
+class Acceptor extends Thread {
+
+	/** Set to the length of the queue of connections not yet accepted, defaults to 1024. */
+	static final String ENVIRONMENT_VARIABLE_ACCEPT_BACKLOG = "ACCEPT_BACKLOG";
+	/** Set to the number of threads or event loops accepting connections per route, defaults to 1. */
+	static final String ENVIRONMENT_VARIABLE_ACCEPTORS = "ACCEPTORS";
+	/** Set to false to not set {@code SO_REUSEADDR} on listening sockets, defaults to true. */
+	static final String ENVIRONMENT_VARIABLE_REUSE_ADDRESS = "REUSE_ADDRESS";
+	/** Set to true to set {@code SO_REUSEPORT} on listening sockets, if supported (Java 9+), defaults to false. */
+	static final String ENVIRONMENT_VARIABLE_REUSE_PORT = "REUSE_PORT";
+
+	/** Milliseconds to back off after a failed accept, e.g. while the process is out of file descriptors. */
+	private static final long ACCEPT_BACKOFF_MILLIS = 100;
+	/** {@code SO_REUSEPORT}, {@code null} if not supported by the Java runtime. */
+	private static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
+	final private Route route;
+	final private ServerSocketChannel serverSocketChannel;
+	/** Selector the thread waits in for connections, woken by {@link #shutdown()}. */
+	final private Selector selector;
+	/** Called with each accepted connection. */
+	final private Consumer<SocketChannel> handler;
+	/** Guards interrupting a wait for admission, an interrupt at any other time would close the listening socket. */
+	final private Object admissionLock = new Object();
+	/** Flag set while waiting for admission, guarded by {@code admissionLock}. */
+	private boolean admitting = false;
+	/** Flag cleared to terminate the acceptor, guarded by {@code admissionLock}. */
+	private volatile boolean running = true;
+
+	/**
+	 * @param route               to accept connections for
+	 * @param serverSocketChannel bound non-blocking listening socket
+	 * @param handler             called with each accepted connection
+	 * @param index               of the acceptor of the route, to name the thread
+	 * @throws IOException if the selector can't be opened
+	 */
+	private Acceptor(final Route route, final ServerSocketChannel serverSocketChannel,
+			final Consumer<SocketChannel> handler, final int index) throws IOException {
+		super("JavaForwarder-Accept-" + route.getLocalPort() + (index > 0 ? "-" + index : ""));
+		this.route = route;
+		this.serverSocketChannel = serverSocketChannel;
+		this.handler = handler;
+		this.selector = Selector.open();
+		try {
+			serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			selector.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Bind the local port of {@code route} and start {@code ACCEPTORS} threads accepting connections on it.
+	 *
+	 * @param route   to accept connections for
+	 * @param handler called with each accepted connection, on the accepting thread
+	 * @return started acceptors, to {@link #shutdown()} on termination
+	 * @throws IOException if the local port can't be bound
+	 */
+	static List<Acceptor> start(final Route route, final Consumer<SocketChannel> handler) throws IOException {
+		final List<Acceptor> acceptors = new ArrayList<>();
+		ServerSocketChannel serverSocketChannel = null;
+		try {
+			for (int index = 0; index < acceptors(); index++) {
+				if ((serverSocketChannel == null) || isReusePort()) {
+					serverSocketChannel = open(route.getLocalPort());
+					serverSocketChannel.configureBlocking(false);
+				}
+				acceptors.add(new Acceptor(route, serverSocketChannel, handler, index));
+			}
+		} catch (IOException e) {
+			for (Acceptor acceptor : acceptors) {
+				acceptor.close();
+			}
+			if (serverSocketChannel != null) {
+				serverSocketChannel.close();
+			}
+			throw e;
+		}
+		for (Acceptor acceptor : acceptors) {
+			acceptor.start();
+		}
+		return acceptors;
+	}
+
+	/**
+	 * Open a listening socket with the configured backlog, {@code SO_REUSEADDR} and {@code SO_REUSEPORT}.
+	 *
+	 * @param localPort to bind
+	 * @return bound blocking listening socket
+	 * @throws IOException if {@code localPort} can't be bound
+	 */
+	static ServerSocketChannel open(final int localPort) throws IOException {
+		final ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+		try {
+			serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEADDR,
+					!"false".equalsIgnoreCase(System.getProperty(ENVIRONMENT_VARIABLE_REUSE_ADDRESS)));
+			reusePort(serverSocketChannel);
+			serverSocketChannel.bind(new InetSocketAddress(localPort), backlog());
+			return serverSocketChannel;
+		} catch (IOException e) {
+			serverSocketChannel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Set {@code SO_REUSEPORT} on a socket not yet bound if configured, so another process can bind the same port, e.g. to
+	 * take over from this one.
+	 *
+	 * @param channel to configure
+	 * @throws IOException if the option can't be set
+	 */
+	static void reusePort(final NetworkChannel channel) throws IOException {
+		if (isReusePort()) {
+			channel.setOption(SO_REUSEPORT, true);
+		}
+	}
+
+	/**
+	 * @return {@code true} if every acceptor binds its own socket with {@code SO_REUSEPORT}
+	 */
+	static boolean isReusePort() {
+		return (SO_REUSEPORT != null) && Boolean.parseBoolean(System.getProperty(ENVIRONMENT_VARIABLE_REUSE_PORT));
+	}
+
+	/**
+	 * @return number of acceptors per route
+	 */
+	static int acceptors() {
+		try {
+			return Math.max(1, Integer.valueOf(System.getProperty(ENVIRONMENT_VARIABLE_ACCEPTORS)));
+		} catch (NumberFormatException e) {
+			return 1;
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				System.err.println("JavaForwarder failed to wait for client connections on local port "
+						+ route.getLocalPort() + ": " + e);
+				break;
+			}
+			selector.selectedKeys().clear();
+			acceptPending();
+		}
+		// Accept the connections queued by the kernel, closing the listening socket would reset them
+		acceptPending();
+		close();
+	}
+
+	/**
+	 * Accept and hand over all connections queued for the listening socket.
+	 */
+	private void acceptPending() {
+		while (true) {
+			final SocketChannel clientChannel;
+			try {
+				clientChannel = serverSocketChannel.accept();
+			} catch (ClosedChannelException e) {
+				// Closed by the acceptor of the route sharing the socket
+				return;
+			} catch (IOException e) {
+				System.err.println("JavaForwarder failed to accept client connection on local port " + route.getLocalPort()
+						+ ": " + e);
+				try {
+					Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+				} catch (InterruptedException ie) {
+				}
+				return;
+			}
+			if (clientChannel == null) {
+				return;
+			}
+			if (!admit(clientChannel)) {
+				AdmissionControl.reject(clientChannel);
+				continue;
+			}
+			handler.accept(clientChannel);
+		}
+	}
+
+	/**
+	 * Admit a connection with the route's {@link AdmissionControl}, waiting only while running. Waiting holds back further
+	 * clients in the listen backlog.
+	 *
+	 * @param clientChannel accepted connection
+	 * @return {@code true} if admitted
+	 */
+	private boolean admit(final SocketChannel clientChannel) {
+		final AdmissionControl admissionControl = route.getAdmissionControl();
+		if (admissionControl == null) {
+			return true;
+		}
+		synchronized (admissionLock) {
+			if (!running) {
+				return admissionControl.tryAcquire(clientChannel.socket().getInetAddress());
+			}
+			admitting = true;
+		}
+		try {
+			return admissionControl.acquire(clientChannel.socket().getInetAddress());
+		} finally {
+			synchronized (admissionLock) {
+				admitting = false;
+				// Clear an interrupt by shutdown(), the next accept would close the listening socket
+				Thread.interrupted();
+			}
+		}
+	}
+
+	/**
+	 * Stop accepting and wait for the acceptor to accept the queued connections and close the listening socket.
+	 * Interrupting ends a wait for admission.
+	 */
+	void shutdown() {
+		synchronized (admissionLock) {
+			running = false;
+			if (admitting) {
+				interrupt();
+			}
+		}
+		selector.wakeup();
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void close() {
+		try {
+			selector.close();
+		} catch (IOException e) {
+		}
+		try {
+			serverSocketChannel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private static int backlog() {
+		try {
+			return Integer.valueOf(System.getProperty(ENVIRONMENT_VARIABLE_ACCEPT_BACKLOG));
+		} catch (NumberFormatException e) {
+			return 1024;
+		}
+	}
+
+	/**
+	 * @return {@code SO_REUSEPORT}, {@code null} if the Java runtime does not support it (before Java 9)
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> reusePortOption() {
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+package at.test.forwarder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read buffer of one forwarding direction, acquired from a {@link BufferPool} and sized by the recent history of bytes read.
+ * A read filling the whole buffer moves up to the next size class (up to 256 KiB for bulk transfers), a run of reads using
+ * less than a quarter of the buffer moves down again (down to 4 KiB for interactive traffic).
+ */
+class AdaptiveBuffer {
+
+	/** Number of consecutive small reads before shrinking to the next smaller size class. */
+	private static final int SHRINK_AFTER_READS = 8;
+
+	private final BufferPool bufferPool;
+	/** Current size class, index into {@link BufferPool#SIZE_CLASSES}. */
+	private int sizeClass = 0;
+	/** Number of consecutive reads that used less than a quarter of the buffer. */
+	private int smallReads = 0;
+	/** Buffer currently held, {@code null} if released. */
+	private ByteBuffer buffer;
+
+	AdaptiveBuffer(final BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * @return buffer of the current size class, acquired from the pool if none is held
+	 */
+	ByteBuffer buffer() {
+		if (buffer == null) {
+			buffer = bufferPool.acquire(BufferPool.SIZE_CLASSES[sizeClass]);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Adapt the size class to a read completed. Must only be called while the buffer holds no data, as it may be exchanged
+	 * for a buffer of another size class.
+	 *
+	 * @param bytesRead number of bytes the last read returned
+	 */
+	void update(final int bytesRead) {
+		final int capacity = BufferPool.SIZE_CLASSES[sizeClass];
+		int newSizeClass = sizeClass;
+		if (bytesRead >= capacity) {
+			smallReads = 0;
+			newSizeClass = Math.min(sizeClass + 1, BufferPool.SIZE_CLASSES.length - 1);
+		} else if (bytesRead < capacity / 4) {
+			if (++smallReads >= SHRINK_AFTER_READS) {
+				smallReads = 0;
+				newSizeClass = Math.max(sizeClass - 1, 0);
+			}
+		} else {
+			smallReads = 0;
+		}
+		if (newSizeClass != sizeClass) {
+			sizeClass = newSizeClass;
+			release();
+		}
+	}
+
+	/**
+	 * Return the buffer to the pool while idle, the size class is kept for the next {@link #buffer()}.
+	 */
+	void release() {
+		if (buffer != null) {
+			bufferPool.release(buffer);
+			buffer = null;
+		}
+	}
+
+}
@@ -0,0 +1,211 @@
+package at.test.forwarder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the concurrent {@code TCP} connections of a route, in total and per client {@code IP}-address, so a flood of
+ * clients is turned away instead of exhausting threads and file descriptors. A connection over the limit of its route may
+ * wait for up to {@code ADMISSION_WAIT_MILLIS} for a connection to close; while it waits, further clients queue in the
+ * listen backlog of the route. A connection over the limit of its client address is rejected right away, so one client
+ * can't hold up the others. Rejected connections are reset instead of closed gracefully, so they cost no further resources.
+ */
+class AdmissionControl {
+
+	/** Set to the maximum number of concurrent connections of a route, defaults to 0 (unlimited). */
+	static final String ENVIRONMENT_VARIABLE_MAX_CONNECTIONS = "MAX_CONNECTIONS";
+	/** Set to the maximum number of concurrent connections of a route per client address, defaults to 0 (unlimited). */
+	static final String ENVIRONMENT_VARIABLE_MAX_CONNECTIONS_PER_IP = "MAX_CONNECTIONS_PER_IP";
+	/** Set to the milliseconds a connection over the route limit waits to be admitted, defaults to 0 (reject right away). */
+	static final String ENVIRONMENT_VARIABLE_ADMISSION_WAIT_MILLIS = "ADMISSION_WAIT_MILLIS";
+
+	final private int maxConnections;
+	final private int maxConnectionsPerSource;
+	final private long waitNanos;
+	/** Permits of the route limit, {@code null} if unlimited. */
+	final private Semaphore permits;
+	/** Number of connections per client address, only addresses with connections are kept. */
+	final private Map<InetAddress, Integer> sources = new ConcurrentHashMap<>();
+
+	/** Number of connections admitted. */
+	private final AtomicLong admitted = new AtomicLong();
+	/** Number of connections that had to wait to be admitted. */
+	private final AtomicLong queued = new AtomicLong();
+	/** Number of connections rejected for the route limit. */
+	private final AtomicLong rejectedRoute = new AtomicLong();
+	/** Number of connections rejected for the limit per client address. */
+	private final AtomicLong rejectedSource = new AtomicLong();
+
+	/**
+	 * @param maxConnections          concurrent connections of the route, {@code 0} for unlimited
+	 * @param maxConnectionsPerSource concurrent connections per client address, {@code 0} for unlimited
+	 * @param waitNanos               nanoseconds a connection over the route limit may wait
+	 */
+	private AdmissionControl(final int maxConnections, final int maxConnectionsPerSource, final long waitNanos) {
+		this.maxConnections = maxConnections;
+		this.maxConnectionsPerSource = maxConnectionsPerSource;
+		this.waitNanos = waitNanos;
+		this.permits = maxConnections > 0 ? new Semaphore(maxConnections) : null;
+	}
+
+	/**
+	 * Create the admission control of a route, configured by the route options {@code max_connections},
+	 * {@code max_connections_per_ip} and {@code admission_wait} or the corresponding properties.
+	 *
+	 * @param maxConnections          route option or property, {@code null} if not set
+	 * @param maxConnectionsPerSource route option or property, {@code null} if not set
+	 * @param waitMillis              route option or property, {@code null} if not set
+	 * @return admission control, {@code null} if connections of the route are not limited
+	 * @throws NumberFormatException if a setting is not a number
+	 */
+	static AdmissionControl create(final String maxConnections, final String maxConnectionsPerSource,
+			final String waitMillis) {
+		final int max = maxConnections == null ? 0 : Integer.parseInt(maxConnections);
+		final int maxPerSource = maxConnectionsPerSource == null ? 0 : Integer.parseInt(maxConnectionsPerSource);
+		if ((max <= 0) && (maxPerSource <= 0)) {
+			return null;
+		}
+		final long wait = waitMillis == null ? 0 : TimeUnit.MILLISECONDS.toNanos(Long.parseLong(waitMillis));
+		return new AdmissionControl(Math.max(0, max), Math.max(0, maxPerSource), wait);
+	}
+
+	/**
+	 * Admit a connection, waiting up to {@code ADMISSION_WAIT_MILLIS} if the route is at its limit. Only call from threads
+	 * that may block, e.g. an {@link Acceptor}.
+	 *
+	 * @param source client address of the connection
+	 * @return {@code true} if admitted, the connection must be {@link #release(InetAddress) released} when closed
+	 */
+	boolean acquire(final InetAddress source) {
+		if (!acquireSource(source)) {
+			return false;
+		}
+		if ((permits == null) || permits.tryAcquire()) {
+			admitted.incrementAndGet();
+			return true;
+		}
+		boolean acquired = false;
+		if (waitNanos > 0) {
+			queued.incrementAndGet();
+			try {
+				acquired = permits.tryAcquire(waitNanos, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (!acquired) {
+			rejectedRoute.incrementAndGet();
+			releaseSource(source);
+			return false;
+		}
+		admitted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Admit a connection without waiting, e.g. on an event loop.
+	 *
+	 * @param source client address of the connection
+	 * @return {@code true} if admitted, the connection must be {@link #release(InetAddress) released} when closed
+	 */
+	boolean tryAcquire(final InetAddress source) {
+		if (!acquireSource(source)) {
+			return false;
+		}
+		if ((permits != null) && !permits.tryAcquire()) {
+			rejectedRoute.incrementAndGet();
+			releaseSource(source);
+			return false;
+		}
+		admitted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Release the admission of a closed connection.
+	 *
+	 * @param source client address of the connection
+	 */
+	void release(final InetAddress source) {
+		releaseSource(source);
+		if (permits != null) {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Reset a connection that was not admitted. Rejections are not logged, a flood of them would only add to the overload.
+	 *
+	 * @param clientChannel accepted connection
+	 */
+	static void reject(final SocketChannel clientChannel) {
+		try {
+			clientChannel.setOption(StandardSocketOptions.SO_LINGER, 0);
+		} catch (IOException e) {
+		}
+		try {
+			clientChannel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private boolean acquireSource(final InetAddress source) {
+		if (maxConnectionsPerSource <= 0) {
+			return true;
+		}
+		final boolean[] acquired = { false };
+		sources.compute(source, (address, count) -> {
+			if (count == null) {
+				acquired[0] = true;
+				return 1;
+			}
+			if (count >= maxConnectionsPerSource) {
+				return count;
+			}
+			acquired[0] = true;
+			return count + 1;
+		});
+		if (!acquired[0]) {
+			rejectedSource.incrementAndGet();
+		}
+		return acquired[0];
+	}
+
+	private void releaseSource(final InetAddress source) {
+		if (maxConnectionsPerSource > 0) {
+			sources.computeIfPresent(source, (address, count) -> count <= 1 ? null : count - 1);
+		}
+	}
+
+	long getAdmitted() {
+		return admitted.get();
+	}
+
+	long getQueued() {
+		return queued.get();
+	}
+
+	long getRejectedRoute() {
+		return rejectedRoute.get();
+	}
+
+	long getRejectedSource() {
+		return rejectedSource.get();
+	}
+
+	@Override
+	public String toString() {
+		return "admission " + (maxConnections > 0 ? String.valueOf(maxConnections) : "unlimited") + " ("
+				+ (maxConnectionsPerSource > 0 ? String.valueOf(maxConnectionsPerSource) : "unlimited") + " per ip), admitted "
+				+ getAdmitted() + ", queued " + getQueued() + ", rejected " + getRejectedRoute() + " (route limit) "
+				+ getRejectedSource() + " (ip limit), sources " + sources.size();
+	}
+
+}
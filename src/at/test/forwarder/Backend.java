@@ -0,0 +1,219 @@
+package at.test.forwarder;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server a route forwards data to, one of the backends of its {@link LoadBalancer}. Tracks the connections currently
+ * forwarded to it, an exponentially weighted moving average of its connect time and its health. A backend failing
+ * {@code EJECT_FAILURES} connects in a row is ejected for {@code EJECT_SECONDS}, doubling with every ejection in a row.
+ * Once the ejection has expired, the next connection to the backend is its probe: while the probe is pending no other
+ * connection is sent to the backend, a successful probe restores it, a failed probe ejects it again.
+ */
+class Backend {
+
+	/** Set to the number of connects in a row that have to fail to eject a backend, defaults to 3. */
+	static final String ENVIRONMENT_VARIABLE_EJECT_FAILURES = "EJECT_FAILURES";
+	/** Set to the number of seconds a backend is ejected for the first time, defaults to 10. */
+	static final String ENVIRONMENT_VARIABLE_EJECT_SECONDS = "EJECT_SECONDS";
+
+	/** Maximum milliseconds to wait for a connect, so a backend not answering is failed over quickly. */
+	static final int CONNECT_TIMEOUT_MILLIS = 3000;
+	/** Weight of the latest connect time in the moving average, {@code 1 / 2^EWMA_SHIFT}. */
+	private static final int EWMA_SHIFT = 3;
+	/** Maximum factor the ejection time doubles to for backends failing again and again. */
+	private static final int MAX_EJECT_FACTOR = 32;
+	private static final int EJECT_FAILURES = ejectFailures();
+	private static final long EJECT_NANOS = ejectNanos();
+
+	final private String host;
+	final private int port;
+
+	/** Number of connections currently forwarded to the backend. */
+	private final AtomicInteger active = new AtomicInteger();
+	/** Moving average of the connect time in nanoseconds, {@code 0} until the first connect. */
+	private final AtomicLong ewmaConnectNanos = new AtomicLong();
+	/** Number of connects failed in a row. */
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	/** Number of ejections in a row, the ejection time doubles with each. */
+	private final AtomicInteger consecutiveEjections = new AtomicInteger();
+	/** {@link System#nanoTime()} the ejection ends at, only valid while {@code ejected}. */
+	private volatile long ejectedUntil;
+	private volatile boolean ejected = false;
+	/** Flag set while the connection probing an ejected backend is pending. */
+	private final AtomicBoolean probing = new AtomicBoolean();
+	/** Number of connects failed. */
+	private final AtomicLong failures = new AtomicLong();
+	/** Distribution of the connect times. */
+	private final Histogram connectTimes = new Histogram();
+
+	/**
+	 * @param host hostname or IP-address of the server
+	 * @param port of the server
+	 */
+	Backend(final String host, final int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	String getHost() {
+		return host;
+	}
+
+	int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return address to connect to, the next of the host's addresses cached by {@link DnsCache}
+	 * @throws UnknownHostException if the host can't be resolved
+	 */
+	InetSocketAddress getAddress() throws UnknownHostException {
+		return DnsCache.shared().resolve(host, port);
+	}
+
+	int getActive() {
+		return active.get();
+	}
+
+	long getEwmaConnectNanos() {
+		return ewmaConnectNanos.get();
+	}
+
+	long getFailures() {
+		return failures.get();
+	}
+
+	Histogram getConnectTimes() {
+		return connectTimes;
+	}
+
+	/**
+	 * @return {@code true} if the backend is ejected and its probe has not yet succeeded
+	 */
+	boolean isEjected() {
+		return ejected;
+	}
+
+	/**
+	 * @return {@link System#nanoTime()} the ejection ends at, only valid while {@link #isEjected()}
+	 */
+	long getEjectedUntil() {
+		return ejectedUntil;
+	}
+
+	/**
+	 * Check if the backend may take another connection, claiming the probe if its ejection has just expired.
+	 *
+	 * @param now current {@link System#nanoTime()}
+	 * @return {@code true} if a connection may be sent to the backend
+	 */
+	boolean tryAcquire(final long now) {
+		if (!ejected) {
+			return true;
+		}
+		if (now - ejectedUntil < 0) {
+			return false;
+		}
+		// Ejection has expired, the first connection probes the backend
+		return probing.compareAndSet(false, true);
+	}
+
+	/**
+	 * Release the probe claimed by {@link #tryAcquire(long)} without using it, so the next connection probes the backend.
+	 */
+	void releaseProbe() {
+		probing.set(false);
+	}
+
+	/**
+	 * Count a connection forwarded to the backend, restoring it if it was ejected.
+	 *
+	 * @param connectNanos time the connect took, negative if there is no connect time, e.g. for {@code UDP}
+	 */
+	void started(final long connectNanos) {
+		active.incrementAndGet();
+		connected(connectNanos);
+	}
+
+	/**
+	 * Count a successful connect, restoring the backend if it was ejected, without counting a connection forwarded to it,
+	 * e.g. for connections pooled by {@link UpstreamPool}.
+	 *
+	 * @param connectNanos time the connect took, negative if there is no connect time
+	 */
+	void connected(final long connectNanos) {
+		consecutiveFailures.set(0);
+		if (ejected) {
+			ejected = false;
+			consecutiveEjections.set(0);
+			probing.set(false);
+			System.out.println("JavaForwarder backend " + this + " restored");
+		}
+		if (connectNanos >= 0) {
+			connectTimes.record(connectNanos);
+			long ewma;
+			long updated;
+			do {
+				ewma = ewmaConnectNanos.get();
+				updated = ewma == 0 ? Math.max(1, connectNanos) : ewma + ((connectNanos - ewma) >> EWMA_SHIFT);
+			} while (!ewmaConnectNanos.compareAndSet(ewma, updated));
+		}
+	}
+
+	/**
+	 * Count the end of a connection counted by {@link #started(long)}.
+	 */
+	void stopped() {
+		active.decrementAndGet();
+	}
+
+	/**
+	 * Count a failed connect, ejecting the backend after {@code EJECT_FAILURES} failures in a row or a failed probe. Other
+	 * connects failing while the backend is ejected, e.g. started before the ejection or sent to it as all backends are
+	 * ejected, are only counted and neither extend the ejection nor double the next one.
+	 */
+	void failed() {
+		failures.incrementAndGet();
+		if (ejected) {
+			// Only the pending probe ejects the backend again
+			if (!probing.compareAndSet(true, false)) {
+				return;
+			}
+		} else if (consecutiveFailures.incrementAndGet() < EJECT_FAILURES) {
+			return;
+		}
+		consecutiveFailures.set(0);
+		final int factor = Math.min(MAX_EJECT_FACTOR, 1 << Math.min(30, consecutiveEjections.getAndIncrement()));
+		ejectedUntil = System.nanoTime() + EJECT_NANOS * factor;
+		ejected = true;
+		System.out.println("JavaForwarder backend " + this + " ejected for "
+				+ TimeUnit.NANOSECONDS.toSeconds(EJECT_NANOS * factor) + "s");
+	}
+
+	@Override
+	public String toString() {
+		return (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + port;
+	}
+
+	private static int ejectFailures() {
+		try {
+			return Math.max(1, Integer.valueOf(System.getProperty(ENVIRONMENT_VARIABLE_EJECT_FAILURES)));
+		} catch (NumberFormatException e) {
+			return 3;
+		}
+	}
+
+	private static long ejectNanos() {
+		try {
+			return TimeUnit.SECONDS.toNanos(Long.valueOf(System.getProperty(ENVIRONMENT_VARIABLE_EJECT_SECONDS)));
+		} catch (NumberFormatException e) {
+			return TimeUnit.SECONDS.toNanos(10);
+		}
+	}
+
+}
@@ -0,0 +1,177 @@
+package at.test.forwarder;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared, bounded pool of direct {@link ByteBuffer}s in a few size classes. Buffers are handed out by the smallest size class
+ * fitting the requested size and are returned with {@link #release(ByteBuffer)}. Each size class keeps at most its share of
+ * the pool's capacity, buffers released to a full size class are left to the garbage collector.
+ */
+public class BufferPool {
+
+	/** Set to the maximum number of megabytes of idle buffers kept in the pool, defaults to 64. */
+	public static final String ENVIRONMENT_VARIABLE_BUFFER_POOL_MB = "BUFFER_POOL_MB";
+
+	/** Capacities of the size classes, from interactive to bulk traffic. */
+	static final int[] SIZE_CLASSES = { 4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024 };
+
+	private static final BufferPool SHARED = new BufferPool(poolMegaBytes() * 1024L * 1024L);
+
+	/** Idle buffers per size class. */
+	private final Queue<ByteBuffer>[] pooled;
+	/** Number of idle buffers per size class, {@link Queue#size()} is not constant time. */
+	private final AtomicInteger[] pooledCount;
+	/** Maximum number of idle buffers per size class. */
+	private final int[] pooledLimit;
+	/** Number of buffers currently handed out. */
+	private final AtomicInteger inUse = new AtomicInteger();
+	/** Number of buffers served from the pool. */
+	private final AtomicLong hits = new AtomicLong();
+	/** Number of buffers that had to be allocated because the pool had none of the size class. */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Create a pool keeping up to {@code capacityBytes} of idle buffers, shared evenly by the size classes.
+	 *
+	 * @param capacityBytes maximum number of bytes of idle buffers
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	BufferPool(final long capacityBytes) {
+		pooled = new Queue[SIZE_CLASSES.length];
+		pooledCount = new AtomicInteger[SIZE_CLASSES.length];
+		pooledLimit = new int[SIZE_CLASSES.length];
+		for (int sizeClass = 0; sizeClass < SIZE_CLASSES.length; sizeClass++) {
+			pooled[sizeClass] = new ConcurrentLinkedQueue<>();
+			pooledCount[sizeClass] = new AtomicInteger();
+			pooledLimit[sizeClass] = (int) Math.min(Integer.MAX_VALUE,
+					capacityBytes / SIZE_CLASSES.length / SIZE_CLASSES[sizeClass]);
+		}
+	}
+
+	/**
+	 * @return pool shared by all connections of the process
+	 */
+	public static BufferPool shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Acquire a cleared direct buffer with a capacity of at least {@code size} bytes, capped at the largest size class.
+	 *
+	 * @param size minimum capacity requested
+	 * @return buffer to {@link #release(ByteBuffer)} when no longer used
+	 */
+	public ByteBuffer acquire(final int size) {
+		final int sizeClass = sizeClass(size);
+		inUse.incrementAndGet();
+		final ByteBuffer buffer = pooled[sizeClass].poll();
+		if (buffer != null) {
+			pooledCount[sizeClass].decrementAndGet();
+			hits.incrementAndGet();
+			return buffer;
+		}
+		misses.incrementAndGet();
+		return ByteBuffer.allocateDirect(SIZE_CLASSES[sizeClass]);
+	}
+
+	/**
+	 * Return a buffer acquired from this pool.
+	 *
+	 * @param buffer to return, ignored if {@code null}
+	 */
+	public void release(final ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		inUse.decrementAndGet();
+		final int sizeClass = sizeClass(buffer.capacity());
+		if (SIZE_CLASSES[sizeClass] != buffer.capacity()) {
+			return;
+		}
+		if (pooledCount[sizeClass].incrementAndGet() > pooledLimit[sizeClass]) {
+			// Size class is full, leave buffer to garbage collector
+			pooledCount[sizeClass].decrementAndGet();
+			return;
+		}
+		buffer.clear();
+		pooled[sizeClass].offer(buffer);
+	}
+
+	/**
+	 * Determine the smallest size class fitting {@code size} bytes.
+	 *
+	 * @param size number of bytes
+	 * @return index into {@link #SIZE_CLASSES}
+	 */
+	static int sizeClass(final int size) {
+		for (int sizeClass = 0; sizeClass < SIZE_CLASSES.length; sizeClass++) {
+			if (size <= SIZE_CLASSES[sizeClass]) {
+				return sizeClass;
+			}
+		}
+		return SIZE_CLASSES.length - 1;
+	}
+
+	/**
+	 * @param sizeClass index into {@link #SIZE_CLASSES}
+	 * @return number of idle buffers of the size class
+	 */
+	public int getPooled(final int sizeClass) {
+		return pooledCount[sizeClass].get();
+	}
+
+	/**
+	 * @return number of bytes of idle buffers in the pool
+	 */
+	public long getPooledBytes() {
+		long pooledBytes = 0;
+		for (int sizeClass = 0; sizeClass < SIZE_CLASSES.length; sizeClass++) {
+			pooledBytes += (long) pooledCount[sizeClass].get() * SIZE_CLASSES[sizeClass];
+		}
+		return pooledBytes;
+	}
+
+	/**
+	 * @return number of buffers currently acquired and not yet released
+	 */
+	public int getInUse() {
+		return inUse.get();
+	}
+
+	/**
+	 * @return number of buffers served from the pool
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of buffers allocated because the pool was empty
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("in use ").append(getInUse()).append(", pooled");
+		for (int sizeClass = 0; sizeClass < SIZE_CLASSES.length; sizeClass++) {
+			sb.append(' ').append(SIZE_CLASSES[sizeClass] / 1024).append("KiB:").append(getPooled(sizeClass)).append('/')
+					.append(pooledLimit[sizeClass]);
+		}
+		return sb.append(", hits ").append(getHits()).append(", misses ").append(getMisses()).toString();
+	}
+
+	private static long poolMegaBytes() {
+		try {
+			return Long.valueOf(System.getProperty(ENVIRONMENT_VARIABLE_BUFFER_POOL_MB));
+		} catch (NumberFormatException e) {
+			return 64;
+		}
+	}
+
+}
@@ -0,0 +1,299 @@
+package at.test.forwarder;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes forwarded data to a {@code pcapng} capture file that standard tools like Wireshark can analyse. Each chunk of data
+ * forwarded becomes a packet with synthetic {@code IP} and {@code TCP} or {@code UDP} headers between the endpoints the data
+ * dump records, time stamped with nanosecond resolution. Packets are appended through a {@link FileChannel}, the file is
+ * rotated when it reaches its maximum size. Only used by the {@link DataDumpPipeline} writer thread, so it needs no locking.
+ */
+class CaptureWriter {
+
+	/** Set to the path of the {@code pcapng} file to capture forwarded data to. */
+	static final String ENVIRONMENT_VARIABLE_CAPTURE = "CAPTURE";
+	/** Set to the maximum size of a capture file in megabytes before rotating to the next file, defaults to 100. */
+	static final String ENVIRONMENT_VARIABLE_CAPTURE_ROTATE_MB = "CAPTURE_ROTATE_MB";
+
+	static final int IPPROTO_TCP = 6;
+	static final int IPPROTO_UDP = 17;
+
+	private static final int BLOCK_TYPE_SECTION_HEADER = 0x0A0D0D0A;
+	private static final int BLOCK_TYPE_INTERFACE_DESCRIPTION = 0x00000001;
+	private static final int BLOCK_TYPE_ENHANCED_PACKET = 0x00000006;
+	private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+	/** Raw {@code IP} packets without link layer header, version determined by the first nibble. */
+	private static final short LINKTYPE_RAW = 101;
+	private static final short OPTION_IF_TSRESOL = 9;
+	/** Maximum payload per packet, so the {@code IP} length fields don't overflow. */
+	private static final int MAX_PAYLOAD = 65000;
+	private static final int TCP_FLAG_FIN = 0x01;
+	private static final int TCP_FLAG_PSH = 0x08;
+	private static final int TCP_FLAG_ACK = 0x10;
+
+	private static CaptureWriter shared = null;
+	private static boolean sharedInitialized = false;
+
+	private final Path path;
+	private final long rotateBytes;
+	/** Sequence number of rotated files, {@code 0} for the first file. */
+	private int fileIndex = 0;
+	private FileChannel fileChannel;
+	private long fileSize;
+	/** Reused to assemble a block, large enough for one packet of {@code MAX_PAYLOAD}. */
+	private final ByteBuffer block = ByteBuffer.allocate(MAX_PAYLOAD + 256).order(ByteOrder.LITTLE_ENDIAN);
+	/** {@code TCP} sequence numbers of the flows captured, keyed by both endpoints. */
+	private final Map<String, Flow> flows = new HashMap<>();
+	/** Flag set if writing failed, no further packets are captured. */
+	private boolean failed = false;
+
+	/**
+	 * {@code TCP} sequence numbers of both directions of a forwarded connection.
+	 */
+	private static class Flow {
+
+		private long sequenceLowToHigh = 1;
+		private long sequenceHighToLow = 1;
+		/** Number of directions not yet closed. */
+		private int openDirections = 2;
+
+	}
+
+	/**
+	 * @param path        of the capture file
+	 * @param rotateBytes maximum size of a capture file
+	 */
+	CaptureWriter(final Path path, final long rotateBytes) {
+		this.path = path;
+		this.rotateBytes = rotateBytes;
+	}
+
+	/**
+	 * @return capture writer of the process, {@code null} if capturing is not active
+	 */
+	static synchronized CaptureWriter shared() {
+		if (!sharedInitialized) {
+			sharedInitialized = true;
+			final String capture = System.getProperty(ENVIRONMENT_VARIABLE_CAPTURE);
+			if (capture != null) {
+				long rotateMegaBytes = 100;
+				try {
+					rotateMegaBytes = Long.valueOf(System.getProperty(ENVIRONMENT_VARIABLE_CAPTURE_ROTATE_MB));
+				} catch (NumberFormatException e) {
+					// Ignore
+				}
+				shared = new CaptureWriter(Paths.get(capture), rotateMegaBytes * 1024L * 1024L);
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * Capture data forwarded from {@code source} to {@code destination}.
+	 *
+	 * @param ipProtocol  {@link #IPPROTO_TCP} or {@link #IPPROTO_UDP}
+	 * @param source      endpoint the data was read from
+	 * @param destination endpoint the data was forwarded to
+	 * @param epochNanos  time the data was read, in nanoseconds since the epoch
+	 * @param data        forwarded
+	 * @param length      number of bytes in {@code data}
+	 */
+	void write(final int ipProtocol, final InetSocketAddress source, final InetSocketAddress destination,
+			final long epochNanos, final byte[] data, final int length) {
+		for (int offset = 0; offset < length; offset += MAX_PAYLOAD) {
+			writePacket(ipProtocol, source, destination, epochNanos, data, offset, Math.min(MAX_PAYLOAD, length - offset),
+					TCP_FLAG_PSH | TCP_FLAG_ACK);
+		}
+	}
+
+	/**
+	 * Capture the end of the data forwarded from {@code source} to {@code destination}, a {@code FIN} for {@code TCP}.
+	 *
+	 * @param ipProtocol  {@link #IPPROTO_TCP} or {@link #IPPROTO_UDP}
+	 * @param source      endpoint the data was read from
+	 * @param destination endpoint the data was forwarded to
+	 * @param epochNanos  time the end of stream was read, in nanoseconds since the epoch
+	 */
+	void close(final int ipProtocol, final InetSocketAddress source, final InetSocketAddress destination,
+			final long epochNanos) {
+		if (IPPROTO_TCP != ipProtocol) {
+			return;
+		}
+		writePacket(ipProtocol, source, destination, epochNanos, null, 0, 0, TCP_FLAG_FIN | TCP_FLAG_ACK);
+		final String key = flowKey(source, destination);
+		final Flow flow = flows.get(key);
+		if ((flow != null) && (--flow.openDirections <= 0)) {
+			flows.remove(key);
+		}
+	}
+
+	/**
+	 * Close the capture file.
+	 */
+	void close() {
+		if (fileChannel != null) {
+			try {
+				fileChannel.close();
+			} catch (IOException e) {
+			}
+			fileChannel = null;
+		}
+	}
+
+	private void writePacket(final int ipProtocol, final InetSocketAddress source, final InetSocketAddress destination,
+			final long epochNanos, final byte[] data, final int offset, final int length, final int tcpFlags) {
+		if (failed) {
+			return;
+		}
+		InetAddress sourceAddress = source.getAddress();
+		InetAddress destinationAddress = destination.getAddress();
+		final boolean ipv6 = (sourceAddress instanceof Inet6Address) || (destinationAddress instanceof Inet6Address);
+		final int ipHeaderLength = ipv6 ? 40 : 20;
+		final int transportHeaderLength = IPPROTO_TCP == ipProtocol ? 20 : 8;
+		final int packetLength = ipHeaderLength + transportHeaderLength + length;
+		final int paddedPacketLength = (packetLength + 3) & ~3;
+		final int blockLength = 32 + paddedPacketLength;
+		try {
+			ensureFile(blockLength);
+			block.clear();
+			// Enhanced packet block
+			block.putInt(BLOCK_TYPE_ENHANCED_PACKET).putInt(blockLength).putInt(0);
+			block.putInt((int) (epochNanos >>> 32)).putInt((int) epochNanos);
+			block.putInt(packetLength).putInt(packetLength);
+			// Network byte order from here on
+			block.order(ByteOrder.BIG_ENDIAN);
+			if (ipv6) {
+				block.putInt(0x60000000).putShort((short) (transportHeaderLength + length)).put((byte) ipProtocol)
+						.put((byte) 64);
+				block.put(ipv6Address(sourceAddress)).put(ipv6Address(destinationAddress));
+			} else {
+				final int ipHeaderStart = block.position();
+				block.put((byte) 0x45).put((byte) 0).putShort((short) packetLength).putShort((short) 0)
+						.putShort((short) 0x4000).put((byte) 64).put((byte) ipProtocol).putShort((short) 0);
+				block.put(sourceAddress.getAddress()).put(destinationAddress.getAddress());
+				block.putShort(ipHeaderStart + 10, ipv4HeaderChecksum(ipHeaderStart));
+			}
+			if (IPPROTO_TCP == ipProtocol) {
+				final Flow flow = flows.computeIfAbsent(flowKey(source, destination), key -> new Flow());
+				final boolean lowToHigh = isLowToHigh(source, destination);
+				final long sequence = lowToHigh ? flow.sequenceLowToHigh : flow.sequenceHighToLow;
+				final long acknowledgement = lowToHigh ? flow.sequenceHighToLow : flow.sequenceLowToHigh;
+				final long nextSequence = sequence + length + ((tcpFlags & TCP_FLAG_FIN) != 0 ? 1 : 0);
+				if (lowToHigh) {
+					flow.sequenceLowToHigh = nextSequence;
+				} else {
+					flow.sequenceHighToLow = nextSequence;
+				}
+				block.putShort((short) source.getPort()).putShort((short) destination.getPort());
+				block.putInt((int) sequence).putInt((int) acknowledgement);
+				block.put((byte) 0x50).put((byte) tcpFlags).putShort((short) 0xFFFF).putShort((short) 0)
+						.putShort((short) 0);
+			} else {
+				block.putShort((short) source.getPort()).putShort((short) destination.getPort())
+						.putShort((short) (8 + length)).putShort((short) 0);
+			}
+			if (length > 0) {
+				block.put(data, offset, length);
+			}
+			block.order(ByteOrder.LITTLE_ENDIAN);
+			for (int padding = packetLength; padding < paddedPacketLength; padding++) {
+				block.put((byte) 0);
+			}
+			block.putInt(blockLength);
+			writeBlock();
+		} catch (IOException e) {
+			failed = true;
+			System.err.println("JavaForwarder failed to write capture file " + path + ", capturing stopped: " + e);
+			close();
+		}
+	}
+
+	/**
+	 * Open the first capture file or rotate to the next one if the block would exceed the maximum file size.
+	 *
+	 * @param blockLength length of the next block
+	 * @throws IOException if the capture file can't be opened
+	 */
+	private void ensureFile(final int blockLength) throws IOException {
+		if ((fileChannel != null) && ((fileSize + blockLength <= rotateBytes) || (fileSize <= 64))) {
+			return;
+		}
+		close();
+		Path filePath = path;
+		if (fileIndex > 0) {
+			final String fileName = path.getFileName().toString();
+			final int extension = fileName.lastIndexOf('.');
+			filePath = path.resolveSibling(extension > 0
+					? fileName.substring(0, extension) + "." + fileIndex + fileName.substring(extension)
+					: fileName + "." + fileIndex);
+		}
+		fileIndex++;
+		fileChannel = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		fileSize = 0;
+		// Section header block
+		block.clear();
+		block.putInt(BLOCK_TYPE_SECTION_HEADER).putInt(28).putInt(BYTE_ORDER_MAGIC).putShort((short) 1)
+				.putShort((short) 0).putLong(-1L).putInt(28);
+		// Interface description block with nanosecond timestamp resolution
+		block.putInt(BLOCK_TYPE_INTERFACE_DESCRIPTION).putInt(32).putShort(LINKTYPE_RAW).putShort((short) 0).putInt(0);
+		block.putShort(OPTION_IF_TSRESOL).putShort((short) 1).put((byte) 9).put((byte) 0).putShort((short) 0);
+		block.putShort((short) 0).putShort((short) 0).putInt(32);
+		writeBlock();
+	}
+
+	private void writeBlock() throws IOException {
+		block.flip();
+		fileSize += block.remaining();
+		while (block.hasRemaining()) {
+			fileChannel.write(block);
+		}
+	}
+
+	private short ipv4HeaderChecksum(final int ipHeaderStart) {
+		int sum = 0;
+		for (int index = ipHeaderStart; index < ipHeaderStart + 20; index += 2) {
+			sum += block.getShort(index) & 0xFFFF;
+		}
+		while ((sum >>> 16) != 0) {
+			sum = (sum & 0xFFFF) + (sum >>> 16);
+		}
+		return (short) ~sum;
+	}
+
+	/**
+	 * @param address {@code IPv4} or {@code IPv6} address
+	 * @return {@code IPv6} address, {@code IPv4} addresses are mapped to {@code ::ffff:a.b.c.d}
+	 */
+	private static byte[] ipv6Address(final InetAddress address) {
+		if (address instanceof Inet4Address) {
+			final byte[] ipv6Address = new byte[16];
+			ipv6Address[10] = (byte) 0xFF;
+			ipv6Address[11] = (byte) 0xFF;
+			System.arraycopy(address.getAddress(), 0, ipv6Address, 12, 4);
+			return ipv6Address;
+		}
+		return address.getAddress();
+	}
+
+	private static boolean isLowToHigh(final InetSocketAddress source, final InetSocketAddress destination) {
+		return source.toString().compareTo(destination.toString()) <= 0;
+	}
+
+	private static String flowKey(final InetSocketAddress source, final InetSocketAddress destination) {
+		return isLowToHigh(source, destination) ? source + "|" + destination : destination + "|" + source;
+	}
+
+}
@@ -0,0 +1,440 @@
+package at.test.forwarder;
+
+import java.net.InetSocketAddress;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of the live {@code TCP} connections of all routes and engines. A connection is registered when it is accepted and
+ * removed when it is closed, so the registry only ever holds live connections, no matter how many were forwarded before.
+ * Each {@link Entry} tracks the state of its connection, the bytes forwarded in both directions and the time of its last
+ * activity, and knows how to close its connection, so shutting down, timing out and listing connections only visits live
+ * connections.
+ * <p>
+ * The {@link Route.Timeout}s of a connection are checked by a single {@link TimerWheel} timeout per connection, not by a
+ * socket timeout per read. Forwarding data only updates timestamps, when the timeout fires it compares them to the route's
+ * timeouts and either closes the connection or schedules itself again for the earliest time a timeout could expire.
+ */
+class ConnectionRegistry {
+
+	/** State of a registered connection. */
+	static enum State {
+		/** Accepted, connecting to a backend. */
+		CONNECTING,
+		/** Forwarding data between client and backend. */
+		FORWARDING
+	};
+
+	/** Live connections by id. */
+	final private Map<Long, Entry> entries = new ConcurrentHashMap<>();
+	/** Timer checking the timeouts of the connections. */
+	final private TimerWheel timerWheel;
+	/** Id of the next connection registered. */
+	private final AtomicLong nextId = new AtomicLong();
+	/** Number of connections closed by a timeout. */
+	private final AtomicLong timedOut = new AtomicLong();
+	/** Notified when the last live connection is removed. */
+	private final Object emptyMonitor = new Object();
+
+	/**
+	 * @param timerWheel to check the timeouts of the connections with
+	 */
+	ConnectionRegistry(final TimerWheel timerWheel) {
+		this.timerWheel = timerWheel;
+	}
+
+	/**
+	 * Register an accepted connection, after it was admitted by the route's {@link AdmissionControl}.
+	 *
+	 * @param route         the connection was accepted by
+	 * @param clientAddress of the client
+	 * @param closer        closing the connection, may be called from any thread
+	 * @return entry to {@link #remove(Entry)} once the connection is closed
+	 */
+	Entry register(final Route route, final InetSocketAddress clientAddress, final Runnable closer) {
+		final Entry entry = new Entry(nextId.incrementAndGet(), route, clientAddress, closer);
+		entries.put(entry.id, entry);
+		if (route.hasTimeouts()) {
+			schedule(entry, System.nanoTime());
+		}
+		return entry;
+	}
+
+	/**
+	 * Remove the entry of a closed connection, releasing its admission by the route's {@link AdmissionControl}. Removing an
+	 * entry again has no effect.
+	 *
+	 * @param entry returned by {@link #register(Route, InetSocketAddress, Runnable)}
+	 */
+	void remove(final Entry entry) {
+		if (entries.remove(entry.id) != null) {
+			entry.route.getDurations().record(System.nanoTime() - entry.startNanos);
+			final AdmissionControl admissionControl = entry.route.getAdmissionControl();
+			if (admissionControl != null) {
+				admissionControl.release(entry.clientAddress.getAddress());
+			}
+			if (entries.isEmpty()) {
+				synchronized (emptyMonitor) {
+					emptyMonitor.notifyAll();
+				}
+			}
+		}
+		final TimerWheel.Timeout timeout = entry.timeout;
+		if (timeout != null) {
+			timeout.cancel();
+		}
+	}
+
+	/**
+	 * @return number of live connections
+	 */
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @param id of the connection
+	 * @return entry of the live connection, {@code null} if there is none
+	 */
+	Entry get(final long id) {
+		return entries.get(id);
+	}
+
+	/**
+	 * Block until all live connections are removed, e.g. while draining on termination.
+	 *
+	 * @param timeoutNanos nanoseconds to wait at most
+	 * @return {@code true} if no connection is live
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	boolean awaitEmpty(final long timeoutNanos) throws InterruptedException {
+		final long deadline = System.nanoTime() + timeoutNanos;
+		synchronized (emptyMonitor) {
+			while (!entries.isEmpty()) {
+				final long remainingNanos = deadline - System.nanoTime();
+				if (remainingNanos <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(emptyMonitor, remainingNanos);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return live connections, a weakly consistent view
+	 */
+	Collection<Entry> getEntries() {
+		return Collections.unmodifiableCollection(entries.values());
+	}
+
+	/**
+	 * Close all live connections, e.g. on termination.
+	 */
+	void closeAll() {
+		for (Entry entry : entries.values()) {
+			entry.closer.run();
+		}
+	}
+
+	/**
+	 * Check the timeouts of {@code entry}, closing its connection if one expired, otherwise scheduling the next check for
+	 * the earliest time one could expire. Runs on the timer thread, except for the first check when registering.
+	 *
+	 * @param entry to check
+	 * @param now   current {@link System#nanoTime()}
+	 */
+	private void schedule(final Entry entry, final long now) {
+		if (entries.get(entry.id) != entry) {
+			// Closed meanwhile
+			return;
+		}
+		long delay = Long.MAX_VALUE;
+		for (Route.Timeout timeout : Route.Timeout.values()) {
+			final long timeoutNanos = entry.route.getTimeoutNanos(timeout);
+			if (timeoutNanos <= 0) {
+				continue;
+			}
+			final long elapsed = entry.elapsed(timeout, now);
+			if (elapsed >= timeoutNanos) {
+				System.out.println("JavaForwarder closing TCP connection after " + timeout + " timeout: " + entry);
+				entry.route.timedOut(timeout);
+				timedOut.incrementAndGet();
+				entry.closer.run();
+				return;
+			}
+			// A timeout not running may start right away, check again after its full time
+			delay = Math.min(delay, timeoutNanos - Math.max(0, elapsed));
+		}
+		entry.timeout = timerWheel.schedule(delay, () -> schedule(entry, System.nanoTime()));
+	}
+
+	long getTimedOut() {
+		return timedOut.get();
+	}
+
+	@Override
+	public String toString() {
+		return "live " + size() + ", registered " + nextId.get() + ", timed out " + getTimedOut();
+	}
+
+	/**
+	 * Live connection.
+	 */
+	static class Entry {
+
+		final private long id;
+		final private Route route;
+		final private InetSocketAddress clientAddress;
+		final private Runnable closer;
+		/** {@link System#currentTimeMillis()} the connection was accepted at. */
+		final private long startMillis = System.currentTimeMillis();
+		/** {@link System#nanoTime()} the connection was accepted at. */
+		final private long startNanos = System.nanoTime();
+		/** Bytes forwarded from the client to the backend. */
+		final private Traffic toRemote;
+		/** Bytes forwarded from the backend to the client. */
+		final private Traffic toClient;
+		private volatile State state = State.CONNECTING;
+		/** Backend the connection is forwarded to, {@code null} while connecting. */
+		private volatile Backend backend;
+		/** Timeout checking the {@link Route.Timeout}s of the connection, {@code null} if the route has none. */
+		private volatile TimerWheel.Timeout timeout;
+
+		private Entry(final long id, final Route route, final InetSocketAddress clientAddress, final Runnable closer) {
+			this.id = id;
+			this.route = route;
+			this.clientAddress = clientAddress;
+			this.closer = closer;
+			this.toRemote = new Traffic(route.getBytesToRemote(), route.getChunksToRemote(), route.getRateToRemote(),
+					route.newConnectionRate(), null, startNanos);
+			this.toClient = new Traffic(route.getBytesToClient(), route.getChunksToClient(), route.getRateToClient(),
+					route.newConnectionRate(), route.getFirstByteTimes(), startNanos);
+		}
+
+		/**
+		 * @return id of the connection, unique within the process
+		 */
+		long getId() {
+			return id;
+		}
+
+		/**
+		 * Switch the data dump of both directions on or off, without affecting forwarding. Only connections whose data is
+		 * inspected have a data dump, spliced data never passes the heap.
+		 *
+		 * @param enabled {@code true} to record a data dump
+		 * @return {@code false} if the data of the connection is not inspected
+		 */
+		boolean setDump(final boolean enabled) {
+			final JavaForwarder.DataDumpManager toRemoteDump = toRemote.dataDumpManager;
+			final JavaForwarder.DataDumpManager toClientDump = toClient.dataDumpManager;
+			if (toRemoteDump != null) {
+				toRemoteDump.setDumpEnabled(enabled);
+			}
+			if (toClientDump != null) {
+				toClientDump.setDumpEnabled(enabled);
+			}
+			return (toRemoteDump != null) || (toClientDump != null);
+		}
+
+		/**
+		 * Close the connection, e.g. through the control endpoint.
+		 */
+		void close() {
+			closer.run();
+		}
+
+		/**
+		 * Record the start of forwarding.
+		 *
+		 * @param backend the connection is forwarded to
+		 */
+		void forwarding(final Backend backend) {
+			this.backend = backend;
+			this.state = State.FORWARDING;
+			final long now = System.nanoTime();
+			toRemote.lastActive = now;
+			toClient.lastActive = now;
+		}
+
+		/**
+		 * @return {@link System#nanoTime()} of the last data forwarded in either direction
+		 */
+		long getLastActive() {
+			final long toRemoteLastActive = toRemote.lastActive;
+			final long toClientLastActive = toClient.lastActive;
+			return toRemoteLastActive - toClientLastActive > 0 ? toRemoteLastActive : toClientLastActive;
+		}
+
+		/**
+		 * @param timeout to check
+		 * @param now     current {@link System#nanoTime()}
+		 * @return nanoseconds {@code timeout} has been running for, negative if it is not running
+		 */
+		long elapsed(final Route.Timeout timeout, final long now) {
+			switch (timeout) {
+			case IDLE:
+				return now - getLastActive();
+			case READ:
+				// Running while data of the client is not answered by the backend
+				final long sent = toRemote.lastActive;
+				return (State.FORWARDING == state) && (sent - toClient.lastActive > 0) ? now - sent : -1;
+			default:
+				return Math.max(toRemote.writeStalled(now), toClient.writeStalled(now));
+			}
+		}
+
+		/**
+		 * @return counter of the bytes forwarded from the client to the backend
+		 */
+		Traffic getToRemote() {
+			return toRemote;
+		}
+
+		/**
+		 * @return counter of the bytes forwarded from the backend to the client
+		 */
+		Traffic getToClient() {
+			return toClient;
+		}
+
+		@Override
+		public String toString() {
+			return "#" + id + " " + clientAddress.getAddress().getHostAddress() + ":" + clientAddress.getPort() + " --> "
+					+ route.getLocalPort() + " --> " + (backend == null ? "-" : backend.toString()) + " " + state
+					+ " since " + new Timestamp(startMillis) + ", bytes to remote " + toRemote.get() + ", bytes to client "
+					+ toClient.get() + ", idle " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - getLastActive()) + "s"
+					+ dumpState();
+		}
+
+		/**
+		 * @return data dump state, empty if the data of the connection is not inspected
+		 */
+		private String dumpState() {
+			final JavaForwarder.DataDumpManager dataDumpManager = toRemote.dataDumpManager;
+			if (dataDumpManager == null) {
+				return "";
+			}
+			return dataDumpManager.isDumpEnabled() ? ", dump on" : ", dump off";
+		}
+
+	}
+
+	/**
+	 * Bytes forwarded in one direction of a connection, added to the route's counters as well and limited by the route's and
+	 * the connection's {@link TokenBucket}. Only the thread forwarding the direction updates it, so counting a read costs
+	 * no locked instruction besides the route's striped counters.
+	 */
+	static class Traffic {
+
+		/** Route counter of the bytes of the direction. */
+		final private LongAdder routeBytes;
+		/** Route counter of the reads of the direction. */
+		final private LongAdder routeChunks;
+		/** Limit of the direction of all connections of the route, {@code null} if not limited. */
+		final private TokenBucket routeRate;
+		/** Limit of the direction of this connection, {@code null} if not limited. */
+		final private TokenBucket connectionRate;
+		/** Route distribution of the time to the first byte of the direction, {@code null} if not recorded. */
+		final private Histogram firstByteTimes;
+		/** {@link System#nanoTime()} the connection was accepted at. */
+		final private long startNanos;
+		private final AtomicLong bytes = new AtomicLong();
+		/** {@link System#nanoTime()} of the last data read. */
+		private volatile long lastActive = System.nanoTime();
+		/** Flag set while writing the data last read is blocked by the peer. */
+		private volatile boolean writeBlocked = false;
+		/** {@link System#nanoTime()} writing the data last read started at, only valid while {@code writeBlocked}. */
+		private volatile long writeBlockedSince;
+		/** Data dump of the direction, {@code null} if its data is not inspected. */
+		private volatile JavaForwarder.DataDumpManager dataDumpManager;
+
+		private Traffic(final LongAdder routeBytes, final LongAdder routeChunks, final TokenBucket routeRate,
+				final TokenBucket connectionRate, final Histogram firstByteTimes, final long startNanos) {
+			this.routeBytes = routeBytes;
+			this.routeChunks = routeChunks;
+			this.routeRate = routeRate;
+			this.connectionRate = connectionRate;
+			this.firstByteTimes = firstByteTimes;
+			this.startNanos = startNanos;
+		}
+
+		/**
+		 * @param dataDumpManager recording the data dump of the direction, so it can be switched per connection
+		 */
+		void setDataDumpManager(final JavaForwarder.DataDumpManager dataDumpManager) {
+			this.dataDumpManager = dataDumpManager;
+		}
+
+		/**
+		 * Count bytes read to forward them, marking the direction active.
+		 *
+		 * @param count bytes read
+		 */
+		void add(final int count) {
+			final long now = System.nanoTime();
+			final long previous = bytes.get();
+			// Single writer, an ordered store is enough for readers on other threads
+			bytes.lazySet(previous + count);
+			routeBytes.add(count);
+			routeChunks.increment();
+			lastActive = now;
+			if ((previous == 0) && (firstByteTimes != null)) {
+				firstByteTimes.record(now - startNanos);
+			}
+		}
+
+		/**
+		 * Reserve bytes read with the rate limits of the direction.
+		 *
+		 * @param count bytes read
+		 * @return nanoseconds to hold the bytes back before writing them, {@code 0} to write them now
+		 */
+		long throttle(final int count) {
+			long delay = 0;
+			if (routeRate != null) {
+				delay = routeRate.reserve(count);
+			}
+			if (connectionRate != null) {
+				delay = Math.max(delay, connectionRate.reserve(count));
+			}
+			return delay;
+		}
+
+		/**
+		 * Mark the write of the data last {@link #add(int) added} as blocked until {@link #writeDone()}.
+		 */
+		void writeBlocked() {
+			writeBlockedSince = System.nanoTime();
+			writeBlocked = true;
+		}
+
+		/**
+		 * Mark the data last {@link #add(int) added} as written.
+		 */
+		void writeDone() {
+			writeBlocked = false;
+		}
+
+		/**
+		 * @param now current {@link System#nanoTime()}
+		 * @return nanoseconds the write has been blocked for, negative if it is not blocked
+		 */
+		long writeStalled(final long now) {
+			return writeBlocked ? now - writeBlockedSince : -1;
+		}
+
+		long get() {
+			return bytes.get();
+		}
+
+	}
+
+}
@@ -0,0 +1,393 @@
+package at.test.forwarder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * {@code HTTP} endpoint on the loopback address controlling a running JavaForwarder, e.g. one started with {@code DAEMON}
+ * that reads no console. All responses are plain text:
+ * <ul>
+ * <li>{@code GET /status} state of the process and number of routes and live connections</li>
+ * <li>{@code GET /routes} routes with their statistics, one per line</li>
+ * <li>{@code POST /routes} add the route in the request body, in the format of the route table</li>
+ * <li>{@code DELETE /routes/<protocol>/<localPort>} remove a route, its live connections are forwarded until they
+ * close</li>
+ * <li>{@code GET /connections} live connections, one per line</li>
+ * <li>{@code POST /connections/<id>/dump?enabled=true|false} switch the data dump of a connection whose data is
+ * inspected</li>
+ * <li>{@code POST /connections/<id>/close} close a connection</li>
+ * <li>{@code POST /drain[?seconds=<seconds>]} stop accepting and terminate once the live connections finished, waiting at
+ * most {@code seconds} instead of {@code DRAIN_SECONDS}</li>
+ * </ul>
+ * Requests run on the endpoint's own thread and only use what forwarding publishes anyway, the registry of live
+ * connections and the route table, so they never stall or slow down forwarding.
+ * <p>
+ * Every request needs the header {@code Authorization: Bearer <token>} with the token in {@code CONTROL_TOKEN_FILE},
+ * which is generated readable by the owner only if missing. Requests with an {@code Origin} header or a {@code Host}
+ * other than the loopback address are refused, so web pages can neither send requests from the browser nor reach the
+ * endpoint by rebinding their name to the loopback address.
+ */
+class ControlServer {
+
+	/** Set to the local port of the control endpoint, defaults to 0 (no endpoint). */
+	static final String ENVIRONMENT_VARIABLE_CONTROL_PORT = "CONTROL_PORT";
+	/**
+	 * Set to the path of the file with the token of the control endpoint, defaults to {@code PID_FILE} with the suffix
+	 * {@code .token}, or to {@code javaforwarder-control-<port>.token} in the temporary directory without
+	 * {@code PID_FILE}.
+	 */
+	static final String ENVIRONMENT_VARIABLE_CONTROL_TOKEN_FILE = "CONTROL_TOKEN_FILE";
+
+	final private HttpServer httpServer;
+	final private byte[] authorization;
+	final private RouteTable routeTable;
+	final private ConnectionRegistry connectionRegistry;
+	final private Lifecycle lifecycle;
+
+	private ControlServer(final HttpServer httpServer, final String token, final RouteTable routeTable,
+			final ConnectionRegistry connectionRegistry, final Lifecycle lifecycle) {
+		this.httpServer = httpServer;
+		this.authorization = ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+		this.routeTable = routeTable;
+		this.connectionRegistry = connectionRegistry;
+		this.lifecycle = lifecycle;
+	}
+
+	/**
+	 * Start the control endpoint on {@code CONTROL_PORT}, if set.
+	 *
+	 * @param routeTable         to list, add and remove routes of
+	 * @param connectionRegistry to list and control the live connections of
+	 * @param lifecycle          to report and to drain
+	 * @return started endpoint to {@link #shutdown()} on termination, {@code null} if not configured
+	 * @throws IOException if the token file can't be read or created, or the port can't be bound
+	 */
+	static ControlServer start(final RouteTable routeTable, final ConnectionRegistry connectionRegistry,
+			final Lifecycle lifecycle) throws IOException {
+		final int port;
+		try {
+			port = Integer.parseInt(System.getProperty(ENVIRONMENT_VARIABLE_CONTROL_PORT));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (port <= 0) {
+			return null;
+		}
+		final Path tokenFile = tokenFile(port);
+		final String token = token(tokenFile);
+		final HttpServer httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		final ControlServer controlServer = new ControlServer(httpServer, token, routeTable, connectionRegistry,
+				lifecycle);
+		httpServer.createContext("/", controlServer::handle);
+		httpServer.start();
+		System.out.println("JavaForwarder control endpoint on http://" + InetAddress.getLoopbackAddress().getHostAddress()
+				+ ":" + port + "/, token in " + tokenFile);
+		return controlServer;
+	}
+
+	private static Path tokenFile(final int port) {
+		final String tokenFile = System.getProperty(ENVIRONMENT_VARIABLE_CONTROL_TOKEN_FILE);
+		if (tokenFile != null) {
+			return Paths.get(tokenFile);
+		}
+		final String pidFile = System.getProperty(Handoff.ENVIRONMENT_VARIABLE_PID_FILE);
+		if (pidFile != null) {
+			return Paths.get(pidFile + ".token");
+		}
+		return Paths.get(System.getProperty("java.io.tmpdir"), "javaforwarder-control-" + port + ".token");
+	}
+
+	/**
+	 * Read the token in the token file, or generate one and create the file readable by the owner only. An existing file
+	 * is kept, so a process taking over accepts the token of the previous one.
+	 */
+	private static String token(final Path tokenFile) throws IOException {
+		final boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+		if (!Files.exists(tokenFile)) {
+			final byte[] random = new byte[32];
+			new SecureRandom().nextBytes(random);
+			final String token = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+			try {
+				if (posix) {
+					Files.createFile(tokenFile,
+							PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+				} else {
+					Files.createFile(tokenFile);
+				}
+				Files.write(tokenFile, token.getBytes(StandardCharsets.US_ASCII));
+				return token;
+			} catch (FileAlreadyExistsException e) {
+				// Created concurrently by another process, use its token
+			}
+		}
+		if (posix) {
+			for (PosixFilePermission permission : Files.getPosixFilePermissions(tokenFile)) {
+				if ((permission != PosixFilePermission.OWNER_READ) && (permission != PosixFilePermission.OWNER_WRITE)) {
+					System.err.println("JavaForwarder " + ENVIRONMENT_VARIABLE_CONTROL_TOKEN_FILE + " " + tokenFile
+							+ " is accessible by other users, restrict it with chmod 600");
+					break;
+				}
+			}
+		}
+		final String token = new String(Files.readAllBytes(tokenFile), StandardCharsets.US_ASCII).trim();
+		if (token.isEmpty()) {
+			throw new IOException(ENVIRONMENT_VARIABLE_CONTROL_TOKEN_FILE + " " + tokenFile + " is empty");
+		}
+		return token;
+	}
+
+	/**
+	 * Stop the endpoint.
+	 */
+	void shutdown() {
+		httpServer.stop(0);
+	}
+
+	private void handle(final HttpExchange exchange) throws IOException {
+		try {
+			if (exchange.getRequestHeaders().containsKey("Origin")
+					|| !isLoopback(exchange.getRequestHeaders().getFirst("Host"))) {
+				respond(exchange, 403, "Only local requests without Origin are accepted");
+				return;
+			}
+			final String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+			if ((authorization == null)
+					|| !MessageDigest.isEqual(authorization.getBytes(StandardCharsets.UTF_8), this.authorization)) {
+				exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+				respond(exchange, 401, "Expected Authorization: Bearer <token in " + ENVIRONMENT_VARIABLE_CONTROL_TOKEN_FILE
+						+ ">");
+				return;
+			}
+			final String method = exchange.getRequestMethod();
+			final String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/+");
+			final Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+			switch (path[0]) {
+			case "status":
+				if ("GET".equals(method)) {
+					respond(exchange, 200, status());
+					return;
+				}
+				break;
+			case "routes":
+				if ((path.length == 1) && "GET".equals(method)) {
+					respond(exchange, 200, routes());
+					return;
+				}
+				if ((path.length == 1) && "POST".equals(method)) {
+					addRoute(exchange);
+					return;
+				}
+				if ((path.length == 3) && "DELETE".equals(method)) {
+					removeRoute(exchange, path[1], path[2]);
+					return;
+				}
+				break;
+			case "connections":
+				if ((path.length == 1) && "GET".equals(method)) {
+					respond(exchange, 200, connections());
+					return;
+				}
+				if ((path.length == 3) && "POST".equals(method)) {
+					controlConnection(exchange, path[1], path[2], query);
+					return;
+				}
+				break;
+			case "drain":
+				if ("POST".equals(method)) {
+					drain(exchange, query);
+					return;
+				}
+				break;
+			default:
+				respond(exchange, 404, "Unknown resource " + exchange.getRequestURI().getPath());
+				return;
+			}
+			respond(exchange, 405, method + " not supported by " + exchange.getRequestURI().getPath());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private String status() {
+		return "state " + lifecycle + "\nroutes " + routeTable.getRoutes().size() + "\nconnections " + connectionRegistry
+				+ "\n";
+	}
+
+	private String routes() {
+		final StringBuilder sb = new StringBuilder();
+		for (Route route : routeTable.getRoutes()) {
+			sb.append(route).append(": ").append(route.getStatistics()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private String connections() {
+		final StringBuilder sb = new StringBuilder();
+		for (ConnectionRegistry.Entry entry : connectionRegistry.getEntries()) {
+			sb.append(entry).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private void addRoute(final HttpExchange exchange) throws IOException {
+		final String line = body(exchange);
+		final Route route;
+		try {
+			route = Route.parse(line);
+		} catch (IllegalArgumentException e) {
+			respond(exchange, 400, "Invalid route: " + line.trim() + ": " + e.getMessage());
+			return;
+		}
+		try {
+			routeTable.add(route);
+		} catch (IllegalArgumentException | IllegalStateException e) {
+			respond(exchange, 409, e.getMessage());
+			return;
+		} catch (IOException e) {
+			respond(exchange, 409, "Failed to listen on local port " + route.getLocalPort() + ": " + e);
+			return;
+		}
+		respond(exchange, 201, "Added " + route);
+	}
+
+	private void removeRoute(final HttpExchange exchange, final String protocol, final String localPort)
+			throws IOException {
+		final Route route;
+		try {
+			route = routeTable.remove(JavaForwarder.Protocol.valueOf(protocol.toUpperCase()), Integer.parseInt(localPort));
+		} catch (IllegalArgumentException e) {
+			respond(exchange, 400, "Expected /routes/<TCP|UDP>/<localPort>");
+			return;
+		}
+		if (route == null) {
+			respond(exchange, 404, "No " + protocol.toUpperCase() + " route on local port " + localPort);
+			return;
+		}
+		respond(exchange, 200, "Removed " + route);
+	}
+
+	private void controlConnection(final HttpExchange exchange, final String id, final String action,
+			final Map<String, String> query) throws IOException {
+		final ConnectionRegistry.Entry entry;
+		try {
+			entry = connectionRegistry.get(Long.parseLong(id));
+		} catch (NumberFormatException e) {
+			respond(exchange, 400, "Expected /connections/<id>/<action>");
+			return;
+		}
+		if (entry == null) {
+			respond(exchange, 404, "No live connection #" + id);
+			return;
+		}
+		switch (action) {
+		case "dump":
+			if (!entry.setDump(Boolean.parseBoolean(query.get("enabled")))) {
+				respond(exchange, 409, "Data of connection #" + id + " is not inspected, set DUMP or CAPTURE");
+				return;
+			}
+			respond(exchange, 200, entry.toString());
+			return;
+		case "close":
+			entry.close();
+			respond(exchange, 200, "Closed connection #" + id);
+			return;
+		default:
+			respond(exchange, 404, "Unknown action " + action);
+		}
+	}
+
+	private void drain(final HttpExchange exchange, final Map<String, String> query) throws IOException {
+		long drainNanos = -1;
+		if (query.containsKey("seconds")) {
+			try {
+				drainNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(query.get("seconds")));
+			} catch (NumberFormatException e) {
+				respond(exchange, 400, "Expected seconds=<seconds>");
+				return;
+			}
+		}
+		// Respond first, with nothing to drain the endpoint is shut down right away
+		respond(exchange, 202, "Draining " + connectionRegistry.size() + " connection(s)");
+		System.out.println("JavaForwarder termination requested by control endpoint ...");
+		if (drainNanos < 0) {
+			lifecycle.stop();
+		} else {
+			lifecycle.stop(drainNanos);
+		}
+	}
+
+	/**
+	 * Check the {@code Host} header names the loopback address, literally or as {@code localhost}, without resolving it.
+	 */
+	private static boolean isLoopback(final String host) {
+		if (host == null) {
+			return false;
+		}
+		final String name;
+		if (host.startsWith("[")) {
+			final int end = host.indexOf(']');
+			name = end < 0 ? host : host.substring(1, end);
+		} else {
+			final int separator = host.indexOf(':');
+			name = separator < 0 ? host : host.substring(0, separator);
+		}
+		return "localhost".equalsIgnoreCase(name) || "::1".equals(name) || "0:0:0:0:0:0:0:1".equals(name)
+				|| name.matches("127\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}");
+	}
+
+	private static Map<String, String> query(final String rawQuery) {
+		final Map<String, String> query = new HashMap<>();
+		if (rawQuery != null) {
+			for (String parameter : rawQuery.split("&")) {
+				final int separator = parameter.indexOf('=');
+				if (separator > 0) {
+					query.put(parameter.substring(0, separator), parameter.substring(separator + 1));
+				}
+			}
+		}
+		return query;
+	}
+
+	private static String body(final HttpExchange exchange) throws IOException {
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try (InputStream inputStream = exchange.getRequestBody()) {
+			final byte[] buffer = new byte[1024];
+			int bytesRead;
+			while ((bytesRead = inputStream.read(buffer)) != -1) {
+				body.write(buffer, 0, bytesRead);
+			}
+		}
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static void respond(final HttpExchange exchange, final int status, final String text) throws IOException {
+		final byte[] body = (text.endsWith("\n") || text.isEmpty() ? text : text + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+		try (OutputStream outputStream = exchange.getResponseBody()) {
+			outputStream.write(body);
+		}
+	}
+
+}
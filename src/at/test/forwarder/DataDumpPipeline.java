@@ -0,0 +1,300 @@
+package at.test.forwarder;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decouples recording of the data dump from forwarding. Forwarding threads hand copies of the data forwarded to a bounded,
+ * lock-free ring buffer, a single background writer thread formats and prints them. The memory held by the ring buffer is
+ * capped, when the cap is reached data is either dropped (default) and counted, or the forwarding thread waits for the
+ * writer to catch up.
+ */
+class DataDumpPipeline {
+
+	/** Set to the maximum number of megabytes of data queued for the data dump writer, defaults to 16. */
+	static final String ENVIRONMENT_VARIABLE_DUMP_BUFFER_MB = "DUMP_BUFFER_MB";
+	/** Set to {@code DROP} (default) or {@code BLOCK} to define what happens when the data dump can't keep up. */
+	static final String ENVIRONMENT_VARIABLE_DUMP_POLICY = "DUMP_POLICY";
+
+	static enum Policy {
+		/** Drop data the writer can't keep up with and count the bytes dropped, forwarding never stalls. */
+		DROP,
+		/** Let forwarding wait until the writer caught up, the data dump is complete. */
+		BLOCK
+	};
+
+	/**
+	 * Receiver of the data recorded, called on the writer thread only.
+	 */
+	static interface Sink {
+
+		/**
+		 * Write data forwarded.
+		 *
+		 * @param localDateTimeForwarding timestamp of the block the data belongs to
+		 * @param epochNanos              time the data was recorded, in nanoseconds since the epoch
+		 * @param data                    forwarded
+		 * @param length                  number of bytes in {@code data}, {@code -1} at end of stream
+		 * @param endOfBlock              {@code true} if the data completes a block
+		 */
+		void write(LocalDateTime localDateTimeForwarding, long epochNanos, byte[] data, int length, boolean endOfBlock);
+
+		/**
+		 * Called after the last data of the sink has been written.
+		 *
+		 * @param epochNanos time the sink was closed, in nanoseconds since the epoch
+		 */
+		void close(long epochNanos);
+
+	}
+
+	/** Number of slots in the ring buffer, a power of 2. */
+	private static final int RING_SIZE = 1 << 14;
+	/** Nanoseconds to wait between attempts to queue data with {@link Policy#BLOCK}. */
+	private static final long BLOCK_PARK_NANOS = 100_000;
+
+	/** Epoch and {@link System#nanoTime()} at startup, to derive nanosecond resolution timestamps. */
+	private static final long BASE_EPOCH_NANOS = System.currentTimeMillis() * 1_000_000L;
+	private static final long BASE_NANO_TIME = System.nanoTime();
+
+	private static final DataDumpPipeline SHARED = new DataDumpPipeline(capacityBytes(), policy());
+
+	private final long capacityBytes;
+	private final Policy policy;
+	/** Slices queued, slot {@code i} may be read once {@code sequences[i]} is one ahead of its position. */
+	private final Slice[] slots = new Slice[RING_SIZE];
+	private final AtomicLongArray sequences = new AtomicLongArray(RING_SIZE);
+	/** Next position to write to, claimed by producers. */
+	private final AtomicLong tail = new AtomicLong();
+	/** Next position to read from, only modified by the writer thread. */
+	private volatile long head = 0;
+	/** Number of bytes currently queued. */
+	private final AtomicLong queuedBytes = new AtomicLong();
+	/** Number of bytes dropped because the queue was full. */
+	private final AtomicLong droppedBytes = new AtomicLong();
+
+	private final Thread writerThread;
+	/** Flag set while the writer thread is (about to be) parked waiting for data. */
+	private volatile boolean writerParked = false;
+
+	/**
+	 * Entry of the ring buffer, a copy of data forwarded or the end of a sink's data.
+	 */
+	private static class Slice {
+
+		final private Sink sink;
+		final private LocalDateTime localDateTimeForwarding;
+		final private long epochNanos;
+		/** Data, {@code null} to close the sink. */
+		final private byte[] data;
+		final private int length;
+		final private boolean endOfBlock;
+
+		Slice(final Sink sink, final LocalDateTime localDateTimeForwarding, final byte[] data, final int length,
+				final boolean endOfBlock) {
+			this.sink = sink;
+			this.localDateTimeForwarding = localDateTimeForwarding;
+			this.epochNanos = BASE_EPOCH_NANOS + (System.nanoTime() - BASE_NANO_TIME);
+			this.data = data;
+			this.length = length;
+			this.endOfBlock = endOfBlock;
+		}
+
+	}
+
+	DataDumpPipeline(final long capacityBytes, final Policy policy) {
+		this.capacityBytes = capacityBytes;
+		this.policy = policy;
+		for (int index = 0; index < RING_SIZE; index++) {
+			sequences.set(index, index);
+		}
+		writerThread = new Thread(this::write, "JavaForwarder-DataDump");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * @return pipeline shared by all connections of the process
+	 */
+	static DataDumpPipeline shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Queue a copy of data forwarded for {@code sink}.
+	 *
+	 * @param sink                    to write the data to
+	 * @param localDateTimeForwarding timestamp of the block the data belongs to
+	 * @param buffer                  containing the data, only read during the call
+	 * @param bytesRead               number of bytes in {@code buffer}, {@code -1} at end of stream
+	 * @param endOfBlock              {@code true} if the data completes a block
+	 */
+	void record(final Sink sink, final LocalDateTime localDateTimeForwarding, final byte[] buffer, final int bytesRead,
+			final boolean endOfBlock) {
+		final int length = Math.max(0, bytesRead);
+		if (!reserve(length)) {
+			droppedBytes.addAndGet(length);
+			return;
+		}
+		if (!offer(new Slice(sink, localDateTimeForwarding, Arrays.copyOf(buffer, length), bytesRead, endOfBlock))) {
+			queuedBytes.addAndGet(-length);
+			droppedBytes.addAndGet(length);
+		}
+	}
+
+	/**
+	 * Queue the end of {@code sink}'s data, so {@link Sink#close(long)} gets called after all its data has been written.
+	 *
+	 * @param sink to close
+	 */
+	void close(final Sink sink) {
+		final Slice slice = new Slice(sink, null, null, 0, true);
+		// Never dropped, otherwise the sink's pending data would not be written
+		while (!offer(slice)) {
+			LockSupport.parkNanos(BLOCK_PARK_NANOS);
+		}
+	}
+
+	/**
+	 * Wait until all data queued has been written.
+	 *
+	 * @param timeout  maximum time to wait
+	 * @param timeUnit of {@code timeout}
+	 */
+	void flush(final long timeout, final TimeUnit timeUnit) {
+		final long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+		while (((tail.get() != head) || !writerParked) && (System.nanoTime() - deadline < 0)) {
+			LockSupport.parkNanos(BLOCK_PARK_NANOS);
+		}
+	}
+
+	/**
+	 * @return number of bytes dropped because the writer could not keep up
+	 */
+	long getDroppedBytes() {
+		return droppedBytes.get();
+	}
+
+	/**
+	 * @return number of bytes currently queued for the writer
+	 */
+	long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	/**
+	 * Reserve space for {@code length} bytes within the memory cap, waiting for space with {@link Policy#BLOCK}.
+	 *
+	 * @param length number of bytes
+	 * @return {@code false} if the data has to be dropped
+	 */
+	private boolean reserve(final int length) {
+		while (true) {
+			final long queued = queuedBytes.get();
+			if ((queued + length <= capacityBytes) || (queued == 0)) {
+				if (queuedBytes.compareAndSet(queued, queued + length)) {
+					return true;
+				}
+			} else if (Policy.DROP == policy) {
+				return false;
+			} else {
+				LockSupport.parkNanos(BLOCK_PARK_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * Add {@code slice} to the ring buffer, see Dmitry Vyukov's bounded MPMC queue.
+	 *
+	 * @param slice to add
+	 * @return {@code false} if the ring buffer is full and {@link Policy#DROP} applies
+	 */
+	private boolean offer(final Slice slice) {
+		while (true) {
+			final long position = tail.get();
+			final int index = (int) position & (RING_SIZE - 1);
+			final long difference = sequences.get(index) - position;
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slots[index] = slice;
+					sequences.set(index, position + 1);
+					if (writerParked) {
+						LockSupport.unpark(writerThread);
+					}
+					return true;
+				}
+			} else if (difference < 0) {
+				// Ring buffer is full
+				if ((Policy.DROP == policy) && (slice.data != null)) {
+					return false;
+				}
+				LockSupport.parkNanos(BLOCK_PARK_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * Take the next slice from the ring buffer, only called by the writer thread.
+	 *
+	 * @return slice, {@code null} if the ring buffer is empty
+	 */
+	private Slice poll() {
+		final int index = (int) head & (RING_SIZE - 1);
+		if (sequences.get(index) != head + 1) {
+			return null;
+		}
+		final Slice slice = slots[index];
+		slots[index] = null;
+		sequences.set(index, head + RING_SIZE);
+		head++;
+		return slice;
+	}
+
+	/**
+	 * Writer thread, forwards the slices queued to their sinks.
+	 */
+	private void write() {
+		while (true) {
+			final Slice slice = poll();
+			if (slice == null) {
+				writerParked = true;
+				if (tail.get() == head) {
+					LockSupport.park(this);
+				}
+				writerParked = false;
+				continue;
+			}
+			try {
+				if (slice.data == null) {
+					slice.sink.close(slice.epochNanos);
+				} else {
+					queuedBytes.addAndGet(-slice.data.length);
+					slice.sink.write(slice.localDateTimeForwarding, slice.epochNanos, slice.data, slice.length,
+							slice.endOfBlock);
+				}
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static long capacityBytes() {
+		try {
+			return Long.valueOf(System.getProperty(ENVIRONMENT_VARIABLE_DUMP_BUFFER_MB)) * 1024L * 1024L;
+		} catch (NumberFormatException e) {
+			return 16L * 1024L * 1024L;
+		}
+	}
+
+	private static Policy policy() {
+		if (Policy.BLOCK.name().equalsIgnoreCase(System.getProperty(ENVIRONMENT_VARIABLE_DUMP_POLICY))) {
+			return Policy.BLOCK;
+		}
+		return Policy.DROP;
+	}
+
+}
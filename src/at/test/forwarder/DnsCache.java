@@ -0,0 +1,197 @@
+package at.test.forwarder;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared cache of resolved hostnames, so connecting to a backend does not wait for a name lookup. Only the first lookup of
+ * a hostname blocks. Once an entry is older than {@code DNS_REFRESH_PERCENT} of {@code DNS_TTL_SECONDS} it is refreshed in
+ * the background while the cached addresses keep being served. If the resolver is slow or fails, the expired addresses are
+ * served for up to {@code DNS_STALE_SECONDS}, so a resolver outage does not become an outage of the forwarder. Connections
+ * are spread over all {@code A} and {@code AAAA} records of a hostname round robin.
+ * <p>
+ * {@link InetAddress} does not expose the {@code TTL} of the records, so one {@code TTL} applies to all entries. The JVM
+ * caches lookups itself for {@code networkaddress.cache.ttl}, a refresh only sees changed records once that expired.
+ */
+public class DnsCache {
+
+	/** Set to the number of seconds resolved addresses are cached, defaults to 30. */
+	public static final String ENVIRONMENT_VARIABLE_DNS_TTL_SECONDS = "DNS_TTL_SECONDS";
+	/** Set to the number of seconds expired addresses are served while they can't be refreshed, defaults to 300. */
+	public static final String ENVIRONMENT_VARIABLE_DNS_STALE_SECONDS = "DNS_STALE_SECONDS";
+	/** Set to the percentage of the {@code TTL} after which an entry is refreshed in the background, defaults to 80. */
+	public static final String ENVIRONMENT_VARIABLE_DNS_REFRESH_PERCENT = "DNS_REFRESH_PERCENT";
+
+	private static final DnsCache SHARED = new DnsCache(seconds(ENVIRONMENT_VARIABLE_DNS_TTL_SECONDS, 30),
+			seconds(ENVIRONMENT_VARIABLE_DNS_STALE_SECONDS, 300), refreshPercent());
+
+	final private long ttlNanos;
+	final private long staleNanos;
+	final private long refreshNanos;
+	/** Cached entries by hostname. */
+	final private Map<String, Entry> entries = new ConcurrentHashMap<>();
+	/** Single daemon thread refreshing entries, so a slow resolver delays refreshes only. */
+	final private ExecutorService refresher = Executors.newSingleThreadExecutor(runnable -> {
+		final Thread thread = new Thread(runnable, "JavaForwarder-DnsRefresh");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/** Number of lookups served from the cache. */
+	private final AtomicLong hits = new AtomicLong();
+	/** Number of lookups that had to wait for the resolver. */
+	private final AtomicLong misses = new AtomicLong();
+	/** Number of lookups served from an expired entry. */
+	private final AtomicLong staleHits = new AtomicLong();
+	/** Number of background refreshes. */
+	private final AtomicLong refreshes = new AtomicLong();
+	/** Number of lookups and refreshes the resolver failed. */
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * @param ttlNanos       nanoseconds resolved addresses are valid
+	 * @param staleNanos     nanoseconds expired addresses are served while they can't be refreshed
+	 * @param refreshPercent percentage of {@code ttlNanos} after which an entry is refreshed
+	 */
+	DnsCache(final long ttlNanos, final long staleNanos, final int refreshPercent) {
+		this.ttlNanos = ttlNanos;
+		this.staleNanos = staleNanos;
+		this.refreshNanos = ttlNanos / 100 * refreshPercent;
+	}
+
+	/**
+	 * @return cache shared by all connections of the process
+	 */
+	public static DnsCache shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Resolve {@code host}, from the cache if possible, selecting the next of its addresses round robin.
+	 *
+	 * @param host hostname or IP-address
+	 * @param port of the address
+	 * @return resolved address
+	 * @throws UnknownHostException if {@code host} is not cached and can't be resolved
+	 */
+	public InetSocketAddress resolve(final String host, final int port) throws UnknownHostException {
+		final long now = System.nanoTime();
+		Entry entry = entries.get(host);
+		if ((entry == null) || (now - entry.resolvedAt >= ttlNanos + staleNanos)) {
+			// Nothing cached or too stale to be used, wait for the resolver
+			misses.incrementAndGet();
+			try {
+				entry = new Entry(InetAddress.getAllByName(host), System.nanoTime());
+			} catch (UnknownHostException e) {
+				failures.incrementAndGet();
+				throw e;
+			}
+			entries.put(host, entry);
+		} else {
+			if (now - entry.resolvedAt >= ttlNanos) {
+				staleHits.incrementAndGet();
+			} else {
+				hits.incrementAndGet();
+			}
+			if ((now - entry.resolvedAt >= refreshNanos) && entry.refreshing.compareAndSet(false, true)) {
+				refresher.execute(() -> refresh(host));
+			}
+		}
+		return new InetSocketAddress(entry.next(), port);
+	}
+
+	/**
+	 * Resolve {@code host} again, keeping the cached entry if the resolver fails, called by the refresher thread only.
+	 *
+	 * @param host to resolve
+	 */
+	private void refresh(final String host) {
+		refreshes.incrementAndGet();
+		final Entry entry = entries.get(host);
+		try {
+			entries.put(host, new Entry(InetAddress.getAllByName(host), System.nanoTime()));
+		} catch (UnknownHostException e) {
+			failures.incrementAndGet();
+			System.err.println("JavaForwarder failed to refresh address of " + host + ", serving cached addresses: " + e);
+			if (entry != null) {
+				// Retry with the next lookup
+				entry.refreshing.set(false);
+			}
+		}
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	long getStaleHits() {
+		return staleHits.get();
+	}
+
+	long getRefreshes() {
+		return refreshes.get();
+	}
+
+	long getFailures() {
+		return failures.get();
+	}
+
+	@Override
+	public String toString() {
+		return "hosts " + entries.size() + ", hits " + getHits() + ", misses " + getMisses() + ", stale hits "
+				+ getStaleHits() + ", refreshes " + getRefreshes() + ", failures " + getFailures();
+	}
+
+	private static long seconds(final String property, final long defaultSeconds) {
+		try {
+			return TimeUnit.SECONDS.toNanos(Long.valueOf(System.getProperty(property)));
+		} catch (NumberFormatException e) {
+			return TimeUnit.SECONDS.toNanos(defaultSeconds);
+		}
+	}
+
+	private static int refreshPercent() {
+		try {
+			return Math.max(0, Math.min(100, Integer.valueOf(System.getProperty(ENVIRONMENT_VARIABLE_DNS_REFRESH_PERCENT))));
+		} catch (NumberFormatException e) {
+			return 80;
+		}
+	}
+
+	/**
+	 * Addresses of a hostname with the {@link System#nanoTime()} they were resolved at.
+	 */
+	private static class Entry {
+
+		final private InetAddress[] addresses;
+		final private long resolvedAt;
+		/** Index of the address to use next. */
+		private final AtomicInteger nextIndex = new AtomicInteger();
+		/** Flag set while a refresh of the entry is pending. */
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+
+		Entry(final InetAddress[] addresses, final long resolvedAt) {
+			this.addresses = addresses;
+			this.resolvedAt = resolvedAt;
+		}
+
+		InetAddress next() {
+			return addresses[Math.floorMod(nextIndex.getAndIncrement(), addresses.length)];
+		}
+
+	}
+
+}
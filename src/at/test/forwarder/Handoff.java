@@ -0,0 +1,159 @@
+package at.test.forwarder;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+/**
+ * Hands the listening ports over from a running JavaForwarder to a new one without refusing any connection. The new process
+ * binds the same ports next to the old one ({@code REUSE_PORT} set for both), then sends the old process, found in
+ * {@code PID_FILE}, a termination signal: the old process stops accepting and drains its connections for up to
+ * {@code DRAIN_SECONDS} while the new process already accepts all new connections. A process in {@code PID_FILE} that
+ * does not run JavaForwarder, as the file is stale, is left alone.
+ */
+final class Handoff {
+
+	/** Set to the path of a file to write the process id to, the file of the process to take over with {@code TAKEOVER}. */
+	static final String ENVIRONMENT_VARIABLE_PID_FILE = "PID_FILE";
+	/** Set to true to terminate the process in {@code PID_FILE} once the listening ports are bound, defaults to false. */
+	static final String ENVIRONMENT_VARIABLE_TAKEOVER = "TAKEOVER";
+
+	private Handoff() {
+	}
+
+	/**
+	 * Take over from the process in {@code PID_FILE} if {@code TAKEOVER} is set and record this process in {@code PID_FILE}.
+	 * Call once all listening ports are bound.
+	 */
+	static void takeOver() {
+		final String pidFile = System.getProperty(ENVIRONMENT_VARIABLE_PID_FILE);
+		if (pidFile == null) {
+			return;
+		}
+		final Path path = Paths.get(pidFile);
+		final long pid = pid();
+		if (Boolean.parseBoolean(System.getProperty(ENVIRONMENT_VARIABLE_TAKEOVER))) {
+			final long previousPid = readPid(path);
+			if ((previousPid > 0) && (previousPid != pid)) {
+				if (!Acceptor.isReusePort()) {
+					System.err.println("JavaForwarder taking over without REUSE_PORT, listening ports were probably not bound");
+				}
+				if (!isForwarder(previousPid)) {
+					// Stale file, the process ended and its id may have been reused by an unrelated process
+					System.err.println("JavaForwarder not taking over from process " + previousPid + " in "
+							+ ENVIRONMENT_VARIABLE_PID_FILE + ", it is not a running JavaForwarder");
+				} else {
+					System.out.println("JavaForwarder taking over from process " + previousPid
+							+ (terminate(previousPid) ? ", requested it to drain" : ", failed to signal it"));
+				}
+			}
+		}
+		try {
+			Files.write(path, String.valueOf(pid).getBytes(StandardCharsets.US_ASCII));
+		} catch (IOException e) {
+			System.err.println("JavaForwarder failed to write " + ENVIRONMENT_VARIABLE_PID_FILE + " " + path + ": " + e);
+		}
+	}
+
+	/**
+	 * Remove {@code PID_FILE} on termination, unless another process has taken over meanwhile.
+	 */
+	static void release() {
+		final String pidFile = System.getProperty(ENVIRONMENT_VARIABLE_PID_FILE);
+		if ((pidFile != null) && (readPid(Paths.get(pidFile)) == pid())) {
+			try {
+				Files.deleteIfExists(Paths.get(pidFile));
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * @return id of this process
+	 */
+	static long pid() {
+		// "pid@hostname" on all common JVMs, ProcessHandle.current() requires Java 9
+		final String name = ManagementFactory.getRuntimeMXBean().getName();
+		try {
+			return Long.parseLong(name.substring(0, name.indexOf('@')));
+		} catch (RuntimeException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @param path of the {@code PID_FILE}
+	 * @return process id in the file, {@code -1} if there is none
+	 */
+	private static long readPid(final Path path) {
+		try {
+			return Long.parseLong(new String(Files.readAllBytes(path), StandardCharsets.US_ASCII).trim());
+		} catch (IOException | NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Check a process runs JavaForwarder, by its command line containing the main class, the jar this process was started
+	 * from, or a jar named like a forwarder.
+	 *
+	 * @param pid of the process
+	 * @return {@code true} if the process runs JavaForwarder, {@code false} if not or if its command line is unavailable
+	 */
+	private static boolean isForwarder(final long pid) {
+		final String[] arguments;
+		try {
+			// ProcessHandle.of(pid).info().arguments(), looked up reflectively as it requires Java 9
+			final Class<?> processHandle = Class.forName("java.lang.ProcessHandle");
+			final Optional<?> process = (Optional<?>) processHandle.getMethod("of", long.class).invoke(null, pid);
+			if (!process.isPresent()) {
+				return false;
+			}
+			final Object info = processHandle.getMethod("info").invoke(process.get());
+			final Optional<?> optionalArguments = (Optional<?>) Class.forName("java.lang.ProcessHandle$Info")
+					.getMethod("arguments").invoke(info);
+			if (!optionalArguments.isPresent()) {
+				return false;
+			}
+			arguments = (String[]) optionalArguments.get();
+		} catch (ReflectiveOperationException e) {
+			return false;
+		}
+		// Main class or jar followed by the program arguments
+		final String command = System.getProperty("sun.java.command", "").split(" ")[0];
+		for (String argument : arguments) {
+			if (argument.equals(JavaForwarder.class.getName()) || argument.equals(command)
+					|| (argument.endsWith(".jar") && argument.toLowerCase().contains("forwarder"))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Send a process the termination signal ({@code SIGTERM}), so it runs its shutdown hook and drains.
+	 *
+	 * @param pid of the process
+	 * @return {@code true} if the signal was sent
+	 */
+	private static boolean terminate(final long pid) {
+		try {
+			// ProcessHandle.of(pid).destroy(), looked up reflectively as it requires Java 9
+			final Class<?> processHandle = Class.forName("java.lang.ProcessHandle");
+			final Optional<?> process = (Optional<?>) processHandle.getMethod("of", long.class).invoke(null, pid);
+			if (!process.isPresent()) {
+				return false;
+			}
+			final Method destroy = processHandle.getMethod("destroy");
+			return (Boolean) destroy.invoke(process.get());
+		} catch (ReflectiveOperationException e) {
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,177 @@
+package at.test.forwarder;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+/**
+ * Encodes forwarded bytes into the rows of the formatted data dump, a header per block of data followed by rows of
+ * {@code dumpWidth} bytes in {@code Hex} and {@code ASCII}. Rows are assembled in a reusable {@code char[]} with lookup
+ * tables, so encoding does not allocate per byte. The output is identical to the format DataDumpManager has always
+ * produced.
+ */
+class HexDumpEncoder {
+
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+	private static final char[] LINE_SEPARATOR = System.lineSeparator().toCharArray();
+	private static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+	/** Character printed in the {@code ASCII} column for each byte value, a blank for non printable characters. */
+	private static final char[] PRINTABLE = new char[256];
+	/** Width of the offset column, e.g. {@code "  00A0F0 "}. */
+	private static final int OFFSET_COLUMN_WIDTH = 9;
+
+	static {
+		for (int value = 0; value < PRINTABLE.length; value++) {
+			final char dataByteChar = (char) (byte) value;
+			final int type = Character.getType(dataByteChar);
+			if ((Character.CONTROL == type) || (Character.FORMAT == type) || (Character.PRIVATE_USE == type)
+					|| (Character.SURROGATE == type) || (Character.UNASSIGNED == type)) {
+				// Ignore non printable characters
+				PRINTABLE[value] = ' ';
+			} else {
+				PRINTABLE[value] = dataByteChar;
+			}
+		}
+	}
+
+	/** Number of bytes dumped in a single row. */
+	private final int dumpWidth;
+	/** Thread ID formatted for the block header. */
+	private final String threadIdHex;
+	/** Source and destination host and port formatted for the block header. */
+	private final String endpoints;
+	/** Column header rows with the hex offsets of the bytes in a row, constant for the dump width. */
+	private final char[] columnHeader;
+	/** Row being assembled: offset column, {@code Hex} column and {@code ASCII} column. */
+	private final char[] row;
+	/** Index of the {@code ASCII} column in {@code row}. */
+	private final int charColumn;
+	/** Blanks to pad the {@code Hex} column of an incomplete row. */
+	private final char[] blankHexColumn;
+	/** Offset column of the current row if the offset needs more than 6 hex digits, {@code null} otherwise. */
+	private String wideOffsetColumn;
+	/** Reused to format the block header. */
+	private final StringBuilder blockHeader = new StringBuilder();
+
+	/** Index in row to record formatted next byte of data dump. */
+	private int bytesIndex = 0;
+	/** Offset of next byte of data dump. */
+	private int bytesOffset = 0;
+
+	/**
+	 * @param threadId  of thread forwarding data, shown in the block header
+	 * @param endpoints source and destination shown in the block header, e.g. {@code "host:port -> host:port"}
+	 * @param dumpWidth number of bytes per row
+	 */
+	HexDumpEncoder(final long threadId, final String endpoints, final int dumpWidth) {
+		this.dumpWidth = dumpWidth;
+		this.endpoints = endpoints;
+		final String threadIdHex = Long.toHexString(threadId);
+		this.threadIdHex = threadIdHex.length() >= 6 ? threadIdHex : "000000".substring(threadIdHex.length()) + threadIdHex;
+		this.charColumn = OFFSET_COLUMN_WIDTH + 3 * dumpWidth;
+		this.row = new char[charColumn + dumpWidth];
+		this.blankHexColumn = new char[3 * dumpWidth];
+		Arrays.fill(row, ' ');
+		Arrays.fill(blankHexColumn, ' ');
+		// Header row with hex offsets of bytes in formatted data dump, and a row to separate it from the dump data
+		final StringBuilder sb = new StringBuilder("  Offset ");
+		for (int i = 0; i < dumpWidth; i++) {
+			final String offsetHex = Integer.toHexString(i).toUpperCase();
+			sb.append(offsetHex.length() < 2 ? "0" : "").append(offsetHex).append(' ');
+		}
+		for (int i = 0; i < dumpWidth; i++) {
+			sb.append(HEX_DIGITS[i & 0xF]);
+		}
+		sb.append(LINE_SEPARATOR).append("  -------");
+		for (int i = 0; i < dumpWidth; i++) {
+			sb.append("----");
+		}
+		sb.append(LINE_SEPARATOR);
+		this.columnHeader = sb.toString().toCharArray();
+	}
+
+	/**
+	 * Start a new block, the next byte encoded will be preceded by the block header.
+	 */
+	void reset() {
+		bytesIndex = 0;
+		bytesOffset = 0;
+	}
+
+	/**
+	 * Encode {@code bytesRead} bytes of {@code buffer} into {@code out}.
+	 *
+	 * @param out                     to append the formatted rows to
+	 * @param localDateTimeForwarding timestamp of the block shown in its header
+	 * @param buffer                  containing the data
+	 * @param bytesRead               number of bytes of {@code buffer} to encode, {@code -1} at end of stream
+	 * @param endOfBlock              {@code true} to complete the current row and end the block
+	 */
+	void encode(final StringBuffer out, final LocalDateTime localDateTimeForwarding, final byte[] buffer,
+			final int bytesRead, final boolean endOfBlock) {
+		for (int bufferOffset = 0; bufferOffset < bytesRead; bufferOffset++) {
+			if (bytesOffset == 0) {
+				appendBlockHeader(out, localDateTimeForwarding);
+			}
+			if (bytesIndex == 0) {
+				startRow();
+			}
+			final int value = buffer[bufferOffset] & 0xFF;
+			final int hexIndex = OFFSET_COLUMN_WIDTH + 3 * bytesIndex;
+			row[hexIndex] = HEX_DIGITS[value >> 4];
+			row[hexIndex + 1] = HEX_DIGITS[value & 0xF];
+			row[charColumn + bytesIndex] = PRINTABLE[value];
+			bytesOffset++;
+			bytesIndex++;
+			// Check for advancing to next line
+			if (bytesIndex >= dumpWidth) {
+				appendRow(out, row.length);
+				out.append(LINE_SEPARATOR);
+				bytesIndex = 0;
+			}
+		}
+		if (endOfBlock) {
+			// Pad not yet complete row, a row without bytes has no offset column either
+			if (bytesIndex == 0) {
+				out.append(blankHexColumn);
+			} else {
+				final int hexIndex = OFFSET_COLUMN_WIDTH + 3 * bytesIndex;
+				System.arraycopy(blankHexColumn, 0, row, hexIndex, charColumn - hexIndex);
+				appendRow(out, charColumn + bytesIndex);
+			}
+			out.append(LINE_SEPARATOR);
+			reset();
+		}
+	}
+
+	private void appendRow(final StringBuffer out, final int length) {
+		if (wideOffsetColumn == null) {
+			out.append(row, 0, length);
+		} else {
+			out.append(wideOffsetColumn).append(row, OFFSET_COLUMN_WIDTH, length - OFFSET_COLUMN_WIDTH);
+		}
+	}
+
+	private void appendBlockHeader(final StringBuffer out, final LocalDateTime localDateTimeForwarding) {
+		blockHeader.setLength(0);
+		blockHeader.append("Thread ").append(threadIdHex).append(": ");
+		TIMESTAMP_FORMATTER.formatTo(localDateTimeForwarding, blockHeader);
+		blockHeader.append(": ").append(endpoints).append(LINE_SEPARATOR);
+		out.append(blockHeader).append(columnHeader);
+	}
+
+	private void startRow() {
+		if (bytesOffset > 0xFFFFFF) {
+			// Rare for blocks beyond 16 MiB, the offset column grows
+			wideOffsetColumn = "  " + Integer.toHexString(bytesOffset).toUpperCase() + " ";
+			return;
+		}
+		wideOffsetColumn = null;
+		int value = bytesOffset;
+		for (int index = 7; index >= 2; index--) {
+			row[index] = HEX_DIGITS[value & 0xF];
+			value >>>= 4;
+		}
+	}
+
+}
@@ -0,0 +1,122 @@
+package at.test.forwarder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in microseconds with logarithmic buckets, like an {@code HdrHistogram} with 1 significant
+ * digit: every power of 2 is split into {@code 8} buckets, so a recorded value is off by at most 12.5% while a few hundred
+ * counters cover a microsecond to hours. Recording costs one increment of a bucket and of the sum, no allocation and no lock.
+ */
+class Histogram {
+
+	/** Bits of a value resolved within each power of 2. */
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** Values are recorded up to {@code 2^MAX_BITS - 1} microseconds (about 19 hours), larger ones in the last bucket. */
+	private static final int MAX_BITS = 36;
+	private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+	/** Number of values recorded per bucket. */
+	private final AtomicLongArray counts = new AtomicLongArray((MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+	/** Sum of the values recorded in microseconds. */
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * Record a duration.
+	 *
+	 * @param nanos duration in nanoseconds, negative values are recorded as {@code 0}
+	 */
+	void record(final long nanos) {
+		final long micros = Math.min(MAX_VALUE, Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)));
+		counts.incrementAndGet(index(micros));
+		sum.add(micros);
+	}
+
+	/**
+	 * @return number of values recorded
+	 */
+	long getCount() {
+		long count = 0;
+		for (int index = 0; index < counts.length(); index++) {
+			count += counts.get(index);
+		}
+		return count;
+	}
+
+	/**
+	 * @return sum of the values recorded in microseconds
+	 */
+	long getSumMicros() {
+		return sum.sum();
+	}
+
+	/**
+	 * @param boundMicros upper bound in microseconds, a power of 2 of at least {@code 8}, so it is a bucket boundary
+	 * @return number of values recorded below {@code boundMicros}
+	 */
+	long getCountBelow(final long boundMicros) {
+		final int last = index(Math.min(MAX_VALUE, boundMicros - 1));
+		long count = 0;
+		for (int index = 0; index <= last; index++) {
+			count += counts.get(index);
+		}
+		return count;
+	}
+
+	/**
+	 * @param percentile between {@code 0} and {@code 100}
+	 * @return upper bound in microseconds of the bucket holding the percentile, {@code 0} if nothing was recorded
+	 */
+	long getPercentileMicros(final double percentile) {
+		final long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+		long seen = 0;
+		for (int index = 0; index < counts.length(); index++) {
+			seen += counts.get(index);
+			if (seen >= rank) {
+				return upperBound(index);
+			}
+		}
+		return upperBound(counts.length() - 1);
+	}
+
+	@Override
+	public String toString() {
+		return "count " + getCount() + ", p50 " + millis(getPercentileMicros(50)) + " ms, p99 "
+				+ millis(getPercentileMicros(99)) + " ms, max " + millis(getPercentileMicros(100)) + " ms";
+	}
+
+	/**
+	 * @param micros value
+	 * @return index of the bucket counting {@code micros}
+	 */
+	private static int index(final long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		final int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) - SUB_BUCKETS);
+	}
+
+	/**
+	 * @param index of a bucket
+	 * @return exclusive upper bound of the values counted by the bucket in microseconds
+	 */
+	private static long upperBound(final int index) {
+		if (index < SUB_BUCKETS) {
+			return index + 1;
+		}
+		final int shift = index / SUB_BUCKETS - 1;
+		return ((long) (index % SUB_BUCKETS + SUB_BUCKETS + 1)) << shift;
+	}
+
+	private static String millis(final long micros) {
+		return String.format("%.3f", micros / 1000.0);
+	}
+
+}
@@ -7,22 +7,23 @@ package at.test.forwarder;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Stream;
 
 /**
@@ -33,156 +34,224 @@ import java.util.stream.Stream;
  */
 public class JavaForwarder {
 
-	private static enum Protocol {
+	static enum Protocol {
 		/** Forward {@code TCP} data over {@link Socket}s. */
 		TCP,
-		/** Forward {@code UDP} data over {@link DatagramSocket}. */
+		/** Forward {@code UDP} datagrams with {@link UdpRelay}. */
 		UDP
 	};
 
+	static enum Engine {
+		/** Forward each {@code TCP} connection with a ClientThread and two ForwardThreads. */
+		THREAD,
+		/** Forward all {@code TCP} connections with {@link NioEngine}'s fixed pool of event loops. */
+		NIO
+	};
+
+	private static enum Threads {
+		/** Run each ClientThread and ForwardThread on its own platform thread. */
+		PLATFORM,
+		/** Run each ClientThread and ForwardThread on its own virtual thread (requires Java 21 or later). */
+		VIRTUAL
+	};
+
+	static enum ForwardingPath {
+		/** Copy data through a heap buffer, so it can be inspected e.g. to record a data dump. */
+		INSPECT,
+		/** Move data socket to socket through direct {@link ByteBuffer}s only, the data never touches the Java heap. */
+		SPLICE
+	};
+
 	/** Mode of forwarding operation, {@code TCP} (default) or {@code UDP}. */
 	private static final String ENVIRONMENT_VARIABLE_MODE = "MODE";
+	/** Engine forwarding {@code TCP} data, {@code THREAD} (default) for threads per connection or {@code NIO}. */
+	private static final String ENVIRONMENT_VARIABLE_ENGINE = "ENGINE";
+	/** Threads running ClientThread and ForwardThread tasks, {@code PLATFORM} (default) or {@code VIRTUAL}. */
+	private static final String ENVIRONMENT_VARIABLE_THREADS = "THREADS";
+	/** Set to the number of {@code NIO} event loops, defaults to the number of available processors. */
+	private static final String ENVIRONMENT_VARIABLE_EVENT_LOOPS = "EVENT_LOOPS";
+	/** Set above 0 to coalesce the data available into a single write with the NIO engine, unset to write every read. */
+	private static final String ENVIRONMENT_VARIABLE_COALESCE_MICROS = "COALESCE_MICROS";
+	/** Size of the heap buffer of the {@link ForwardingPath#INSPECT} path, defaults to 8192 bytes. */
+	private static final String ENVIRONMENT_VARIABLE_BUFFER_SIZE = "BUFFER_SIZE";
+	/** Set to true to run without a console, terminated by {@code SIGTERM} or the control endpoint instead of stdin. */
+	private static final String ENVIRONMENT_VARIABLE_DAEMON = "DAEMON";
+	/** Seconds live connections may finish on termination before they are closed, defaults to 0 (close immediately). */
+	private static final String ENVIRONMENT_VARIABLE_DRAIN_SECONDS = "DRAIN_SECONDS";
+	/** Set to {@code true} or {@code false} to set {@code TCP_NODELAY} on forwarded sockets, unset for the OS default. */
+	private static final String ENVIRONMENT_VARIABLE_NODELAY = "NODELAY";
 	/** Set to any value to activate recording of the forwarded data in a formatted data dump. */
-	private static final String ENVIRONMENT_VARIABLE_DUMP = "DUMP";
+	static final String ENVIRONMENT_VARIABLE_DUMP = "DUMP";
 	/** Set to a multiple of 16 to define non default width (number of bytes per rows) in formatted data dump. */
 	private static final String ENVIRONMENT_VARIALBE_DUMP_WIDTH = "DUMP_WIDTH";
 
-	/** Flag checked by threads if they should terminate. */
-	private static boolean doExit = false;
+	/** Lifecycle of the server, {@link #runServer(List)} runs once per process. */
+	private static final Lifecycle LIFECYCLE = new Lifecycle();
 
 	/**
 	 * ClientThread is responsible for starting forwarding between the client and the server. It keeps track of the client and
 	 * servers sockets that are both closed on input/output error during the forwarding. The forwarding is bidirectional and is
-	 * performed by two ForwardThread instances.
+	 * performed by two ForwardThread instances, which are submitted to the same {@link ExecutorService} the ClientThread is
+	 * run by.
 	 */
-	private static class ClientThread extends Thread {
+	private static class ClientThread implements Runnable {
 
+		/** Route the connection was accepted by. */
+		private Route route;
 		/** Type of {@code IP} data to forward. */
 		private Protocol protocol;
 		/** {@link Socket} to read {@code TCP} data from to forward it to {@code serverSocket}. */
 		private Socket clientSocket;
-		/** {@link Socket} to read {@code UDP} data from to forward it to {@code serverSocket}. */
-		private DatagramSocket clientDatagramSocket;
-		/** Remote host name or IP address. */
-		private String remoteHost;
-		/** Remote port. */
-		private int remotePort;
-
-		/** {@link Socket} connected to {@code remoteHost:remotePort}. */
+		/** {@link ExecutorService} to run the ForwardThreads with. */
+		private ExecutorService executorService;
+		/** Backend {@code serverSocket} is connected to, {@code null} while not connected. */
+		private Backend backend;
+		/** Registry the connection is registered with while it is live. */
+		private ConnectionRegistry connectionRegistry;
+		/** Entry of the connection in {@code connectionRegistry}. */
+		private ConnectionRegistry.Entry registryEntry;
+
+		/** {@link Socket} connected to {@code backend}. */
 		private Socket serverSocket;
-		/** {@link DatagramSocket} connected to {@code remoteHost:remotePort}. */
-		private DatagramSocket serverDatagramSocket;
 		/** Flag set while forwarding is active. */
 		private boolean forwardingActive = false;
+		/**
+		 * Lock serializing {@link #connectionBroken()}, a {@link ReentrantLock} does not pin a virtual thread to its carrier
+		 * thread while closing the sockets blocks.
+		 */
+		private final ReentrantLock connectionLock = new ReentrantLock();
 
 		/**
 		 * Client thread constructor to process {@code TCP} data.
 		 * 
-		 * @param protocol     of {@code IP} data to forward
-		 * @param clientSocket to read data from to forward it to {@code serverSocket}
-		 * @param remoteHost   to connect to
-		 * @param remotePort   to connect to
+		 * @param route              the client connection was accepted by, defines the backends to connect to
+		 * @param clientSocket       to read data from to forward it to {@code serverSocket}
+		 * @param executorService    to run the ForwardThreads with
+		 * @param connectionRegistry to register the connection with while it is live
 		 */
-		public ClientThread(final Protocol protocol, final Socket clientSocket, final String remoteHost, final int remotePort) {
+		public ClientThread(final Route route, final Socket clientSocket, final ExecutorService executorService,
+				final ConnectionRegistry connectionRegistry) {
 			super();
-			this.protocol = protocol;
+			this.route = route;
+			this.protocol = route.getProtocol();
 			this.clientSocket = clientSocket;
-			this.remoteHost = remoteHost;
-			this.remotePort = remotePort;
+			this.executorService = executorService;
 			this.serverSocket = null;
+			this.connectionRegistry = connectionRegistry;
+			this.registryEntry = connectionRegistry.register(route,
+					(InetSocketAddress) clientSocket.getRemoteSocketAddress(), this::connectionBroken);
 		}
 
 		/**
-		 * Client thread constructor to process {@code UDP} data.
-		 * 
-		 * @param protocol             of {@code IP} data to forward
-		 * @param clientDatagramSocket to read data from to forward it to {@code serverSocket}
-		 * @param remoteHost           to connect to
-		 * @param remotePort           to connect to
+		 * Establishes connection to the destination server and starts bidirectional forwarding of data between the client and
+		 * the server.
 		 */
-		public ClientThread(final Protocol protocol, final DatagramSocket clientDatagramSocket, final String remoteHost,
-				final int remotePort) {
-			super();
-			this.protocol = protocol;
-			this.clientSocket = null;
-			this.clientDatagramSocket = clientDatagramSocket;
-			this.remoteHost = remoteHost;
-			this.remotePort = remotePort;
-			this.serverSocket = null;
+		public void run() {
+			/** {@link InputStream} to read data from {@code localhost:localPort}. */
+			InputStream clientInputStream;
+			/** {@link InputStream} to write data to {@code remoteHost:remotePort}. */
+			OutputStream clientOutputStream;
+			/** {@link InputStream} to read data from {@code remoteHost:remotePort}. */
+			InputStream serverInputStream;
+			/** {@link InputStream} to write data to {@code localhost:localPort}. */
+			OutputStream serverOutputStream;
+			System.out.println("JavaForwarder connecting to server ...");
+			// Connect to a backend of the route, a failed backend is not a reason to terminate the forwarder
+			serverSocket = connect();
+			if (serverSocket == null) {
+				System.err.println("JavaForwarder failed to connect to initiate " + protocol + " connection to any backend: "
+						+ route);
+				route.failed();
+				connectionBroken();
+				return;
+			}
+			try {
+				// Turn on keep-alive for both the sockets
+				serverSocket.setKeepAlive(true);
+				clientSocket.setKeepAlive(true);
+				JavaForwarder.configureTcpNoDelay(serverSocket);
+				JavaForwarder.configureTcpNoDelay(clientSocket);
+				// Obtain client & server input & output streams
+				clientInputStream = clientSocket.getInputStream();
+				clientOutputStream = clientSocket.getOutputStream();
+				serverInputStream = serverSocket.getInputStream();
+				serverOutputStream = serverSocket.getOutputStream();
+				System.out.println("JavaForwarder connected to server");
+			} catch (IOException ioe) {
+				System.err.println("JavaForwarder failed to initiate " + protocol + " connection: " + backend + ": " + ioe);
+				route.failed();
+				connectionBroken();
+				return;
+			}
+			// Start forwarding data between server and client, spliced if both sockets are backed by channels
+			ForwardingPath forwardingPath = JavaForwarder.forwardingPath();
+			if ((clientSocket.getChannel() == null) || (serverSocket.getChannel() == null)) {
+				forwardingPath = ForwardingPath.INSPECT;
+			}
+			forwardingActive = true;
+			route.started();
+			registryEntry.forwarding(backend);
+			ForwardThread clientForward = new ForwardThread(this, protocol, forwardingPath, clientSocket, serverSocket,
+					clientInputStream, serverOutputStream, registryEntry.getToRemote());
+			executorService.execute(clientForward);
+			ForwardThread serverForward = new ForwardThread(this, protocol, forwardingPath, serverSocket, clientSocket,
+					serverInputStream, clientOutputStream, registryEntry.getToClient());
+			executorService.execute(serverForward);
+			System.out.println("JavaForwarder " + protocol + " connection: "
+					+ clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort() + " <--> "
+					+ serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getPort() + " started ("
+					+ forwardingPath + ")");
 		}
 
 		/**
-		 * Establishes connection to the destination server and starts bidirectional forwarding of data between the client and
-		 * the server.
+		 * Connect to a backend selected by the route's {@link LoadBalancer}, retrying with the next backend if a connect
+		 * fails. A connection idle in the route's {@link UpstreamPool} is used instead of connecting, if there is one.
+		 * 
+		 * @return {@link Socket} connected to {@code backend}, {@code null} if no backend could be connected to
 		 */
-		public void run() {
-			if (Protocol.TCP == protocol) {
-				/** {@link InputStream} to read data from {@code localhost:localPort}. */
-				InputStream clientInputStream;
-				/** {@link InputStream} to write data to {@code remoteHost:remotePort}. */
-				OutputStream clientOutputStream;
-				/** {@link InputStream} to read data from {@code remoteHost:remotePort}. */
-				InputStream serverInputStream;
-				/** {@link InputStream} to write data to {@code localhost:localPort}. */
-				OutputStream serverOutputStream;
-				try {
-					System.out.println("JavaForwarder connecting to server ...");
-					// Connect to the destination server
-					serverSocket = new Socket(remoteHost, remotePort);
-					// Turn on keep-alive for both the sockets
-					serverSocket.setKeepAlive(true);
-					clientSocket.setKeepAlive(true);
-					// Obtain client & server input & output streams
-					clientInputStream = clientSocket.getInputStream();
-					clientOutputStream = clientSocket.getOutputStream();
-					serverInputStream = serverSocket.getInputStream();
-					serverOutputStream = serverSocket.getOutputStream();
-					System.out.println("JavaForwarder connected to server");
-				} catch (IOException ioe) {
-					System.err.println("JavaForwarder failed to connect to initiate " + protocol + " connection: " + remoteHost
-							+ ":" + remotePort);
-					connectionBroken();
-					JavaForwarder.doExit = true;
-					System.out.println("JavaForwarder failed to start, press Enter to terminate JavaForwarder ...");
-					return;
+		private Socket connect() {
+			final LoadBalancer loadBalancer = route.getLoadBalancer();
+			final UpstreamPool upstreamPool = route.getUpstreamPool();
+			final List<Backend> tried = new ArrayList<>();
+			Backend candidate;
+			while ((candidate = loadBalancer.select(tried)) != null) {
+				tried.add(candidate);
+				final SocketChannel pooled = upstreamPool == null ? null : upstreamPool.take(candidate);
+				if (pooled != null) {
+					try {
+						// Socket streams require a blocking channel
+						pooled.configureBlocking(true);
+						candidate.started(-1);
+						backend = candidate;
+						return pooled.socket();
+					} catch (IOException e) {
+						try {
+							pooled.close();
+						} catch (IOException ce) {
+						}
+					}
 				}
-				// Start forwarding data between server and client
-				forwardingActive = true;
-				ForwardThread clientForward = new ForwardThread(this, protocol, clientSocket, serverSocket, clientInputStream,
-						serverOutputStream);
-				clientForward.start();
-				ForwardThread serverForward = new ForwardThread(this, protocol, serverSocket, clientSocket, serverInputStream,
-						clientOutputStream);
-				serverForward.start();
-				System.out.println("JavaForwarder " + protocol + " connection: "
-						+ clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort() + " <--> "
-						+ serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getPort() + " started");
-			} else {
+				final long connectStart = System.nanoTime();
+				SocketChannel channel = null;
 				try {
-					System.out.println("JavaForwarder connecting to server ...");
-					// Connect to the destination server
-					serverDatagramSocket = new DatagramSocket();
-					System.out.println("JavaForwarder connected to server");
-				} catch (Exception e) {
-					e.printStackTrace();
-//					System.err.println("JavaForwarder failed to connect to initiate " + protocol + " connection: " + remoteHost
-//							+ ":" + remotePort);
-					connectionBroken();
-					JavaForwarder.doExit = true;
-					System.out.println("JavaForwarder failed to start, press Enter to terminate JavaForwarder ...");
-					return;
+					channel = SocketChannel.open();
+					channel.socket().connect(candidate.getAddress(), Backend.CONNECT_TIMEOUT_MILLIS);
+					candidate.started(System.nanoTime() - connectStart);
+					backend = candidate;
+					return channel.socket();
+				} catch (IOException | UnresolvedAddressException e) {
+					System.err.println("JavaForwarder failed to connect to initiate " + protocol + " connection: " + candidate
+							+ ": " + e);
+					candidate.failed();
+					if (channel != null) {
+						try {
+							channel.close();
+						} catch (IOException ce) {
+						}
+					}
 				}
-				// Start forwarding data between server and client
-				forwardingActive = true;
-				ForwardThread clientForward = new ForwardThread(this, protocol, clientDatagramSocket, serverDatagramSocket);
-				clientForward.start();
-//				ForwardThread serverForward = new ForwardThread(this, protocol, serverDatagramSocket, clientDatagramSocket);
-//				serverForward.start();
-//				System.out.println("JavaForwarder " + protocol + " connection: "
-//						+ clientDatagramSocket.getInetAddress().getHostAddress() + ":" + clientDatagramSocket.getPort()
-//						+ " <--> " + serverDatagramSocket.getInetAddress().getHostAddress() + ":"
-//						+ serverDatagramSocket.getPort() + " started");
 			}
+			return null;
 		}
 
 		/**
@@ -190,7 +259,19 @@ public class JavaForwarder {
 		 * sockets should be closed. Closing the client and server sockets causes all threads blocked on reading or writing to
 		 * these sockets to get an exception and to finish their execution.
 		 */
-		public synchronized void connectionBroken() {
+		public void connectionBroken() {
+			connectionLock.lock();
+			try {
+				closeAll();
+			} finally {
+				connectionLock.unlock();
+			}
+		}
+
+		/**
+		 * Close all sockets and log the stopped connection, called while holding {@code connectionLock}.
+		 */
+		private void closeAll() {
 			if (serverSocket != null) {
 				try {
 					serverSocket.close();
@@ -203,77 +284,44 @@ public class JavaForwarder {
 				} catch (Exception e) {
 				}
 			}
-			if (serverDatagramSocket != null) {
-				try {
-					serverDatagramSocket.close();
-				} catch (Exception e) {
-				}
-			}
-			if (clientDatagramSocket != null) {
-				try {
-					clientDatagramSocket.close();
-				} catch (Exception e) {
-				}
+			if (backend != null) {
+				backend.stopped();
+				backend = null;
 			}
+			connectionRegistry.remove(registryEntry);
 			if (forwardingActive) {
-				if (Protocol.TCP == protocol) {
-					System.out.println("JavaForwarder " + protocol + " connection: "
-							+ clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort() + " <--> "
-							+ serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getPort() + " stopped");
-				}
-				if (Protocol.UDP == protocol) {
-					if (clientDatagramSocket.getInetAddress() != null) {
-					System.out.println("JavaForwarder " + protocol + " connection: "
-							+ clientDatagramSocket.getInetAddress().getHostAddress() 
-							+ ":" 
-							+ clientDatagramSocket.getPort()
-							+ " <--> " 
-							+ serverDatagramSocket.getInetAddress().getHostAddress() + ":"
-							+ serverDatagramSocket.getPort() + " stopped");
-					}
-				}
+				System.out.println("JavaForwarder " + protocol + " connection: "
+						+ clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort() + " <--> "
+						+ serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getPort() + " stopped");
 				forwardingActive = false;
+				route.stopped();
 			}
 		}
 
 	}
 
 	/**
-	 * Worker {@link Thread}, so main {@link Thread} can wait for user input to terminate forwarder. A server will be created
-	 * listening on {@code localhost:localPort} to forward and optionally dump the {@code IP} data forwarded to the reverse
-	 * proxy {@code remoteHost:remotePort}.
+	 * Worker {@link Thread}, so main {@link Thread} can wait for user input to terminate forwarder. Servers will be created
+	 * listening on {@code localhost:localPort} of each route to forward and optionally dump the {@code IP} data forwarded to
+	 * the route's reverse proxy {@code remoteHost:remotePort}.
 	 */
 	private static class ProxyThread extends Thread {
 
-		private Protocol protocol;
-		private String remoteHost;
-		private int remotePort;
-		private int localPort;
+		private List<Route> routes;
 
 		/**
 		 * Create a {@link Thread} that runs a reverse proxy to forward {@code IP} data.
 		 * 
-		 * @param protocol   of {@code IP} data to forward
-		 * @param remoteHost hostname or IP-address of server data will be forwarded to
-		 * @param remotePort port of server data will be forwarded to
-		 * @param localPort  port to start a server on {@code localhost} that will receive the data and forward it to
-		 *                   {@code remoteHost:remotePort}
+		 * @param routes to forward
 		 */
-		public ProxyThread(final Protocol protocol, final String remoteHost, final int remotePort, final int localPort) {
+		public ProxyThread(final List<Route> routes) {
 			super();
-			this.protocol = protocol;
-			this.remoteHost = remoteHost;
-			this.remotePort = remotePort;
-			this.localPort = localPort;
+			this.routes = routes;
 		}
 
 		@Override
 		public void run() {
-			try {
-				JavaForwarder.runServer(protocol, remoteHost, remotePort, localPort);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+			JavaForwarder.runServer(routes);
 		}
 
 	}
@@ -283,64 +331,50 @@ public class JavaForwarder {
 	 * It reads the input stream and forwards everything to the output stream. If some of the streams fails, the forwarding
 	 * stops and the parent is notified to close all its sockets.
 	 */
-	private static class ForwardThread extends Thread {
+	private static class ForwardThread implements Runnable {
 
-		private static final int BUFFER_SIZE = 8192;
+		/** Maximum nanoseconds to park between checks for the connection being closed while rate limited. */
+		private static final long THROTTLE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
 
 		final private ClientThread clientThread;
 		/** Type of {@code IP} data to forward. */
 		final private Protocol protocol;
+		/** How {@code TCP} data is moved from {@code inputSocket} to {@code outputSocket}. */
+		final private ForwardingPath forwardingPath;
 		final private Socket inputSocket;
 		final private Socket outputSocket;
-		final private DatagramSocket inputDatagramSocket;
-		final private DatagramSocket outputDatagramSocket;
 		final private InputStream inputStream;
 		final private OutputStream outputStream;
+		/** Counter of the bytes forwarded from {@code inputSocket} to {@code outputSocket}. */
+		final private ConnectionRegistry.Traffic bytesForwarded;
+		/** Size of the heap buffer data is inspected with, spliced data uses pooled {@link AdaptiveBuffer}s. */
+		final private int bufferSize = JavaForwarder.bufferSize();
 
 		/**
 		 * Creates a new {@code TCP} traffic forwarding (copy) thread specifying its parent, input and output {@link Socket}s
 		 * and {@link Stream}s.
 		 * 
-		 * @param clientThread parent {@link Thread}
-		 * @param protocol     of {@code IP} data to forward
-		 * @param inputSocket  where {@code inputStream} reads data from
-		 * @param outputSocket where {@code outputStream} writes data to
-		 * @param inputStream  to read data from
-		 * @param outputStream to forward data from {@code inputStream} to
+		 * @param clientThread   parent ClientThread
+		 * @param protocol       of {@code IP} data to forward
+		 * @param forwardingPath how to move data, {@link ForwardingPath#SPLICE} requires both sockets to have channels
+		 * @param inputSocket    where {@code inputStream} reads data from
+		 * @param outputSocket   where {@code outputStream} writes data to
+		 * @param inputStream    to read data from
+		 * @param outputStream   to forward data from {@code inputStream} to
+		 * @param bytesForwarded connection counter to add the bytes forwarded to
 		 */
-		public ForwardThread(final ClientThread clientThread, final Protocol protocol, final Socket inputSocket,
-				final Socket outputSocket, final InputStream inputStream, final OutputStream outputStream) {
+		public ForwardThread(final ClientThread clientThread, final Protocol protocol, final ForwardingPath forwardingPath,
+				final Socket inputSocket, final Socket outputSocket, final InputStream inputStream,
+				final OutputStream outputStream, final ConnectionRegistry.Traffic bytesForwarded) {
 			super();
 			this.clientThread = clientThread;
 			this.protocol = protocol;
+			this.forwardingPath = forwardingPath;
 			this.inputSocket = inputSocket;
 			this.outputSocket = outputSocket;
-			this.inputDatagramSocket = null;
-			this.outputDatagramSocket = null;
 			this.inputStream = inputStream;
 			this.outputStream = outputStream;
-		}
-
-		/**
-		 * Creates a new {@code TCP} traffic forwarding (copy) thread specifying its parent, input and output
-		 * {@link DatagramSocket}s.
-		 * 
-		 * @param clientThread         parent {@link Thread}
-		 * @param protocol             of {@code IP} data to forward
-		 * @param inputDatagramSocket  to read data from
-		 * @param outputDatagramSocket to write data to
-		 */
-		public ForwardThread(final ClientThread clientThread, final Protocol protocol, final DatagramSocket inputDatagramSocket,
-				final DatagramSocket outputDatagramSocket) {
-			super();
-			this.clientThread = clientThread;
-			this.protocol = protocol;
-			this.inputSocket = null;
-			this.outputSocket = null;
-			this.inputDatagramSocket = inputDatagramSocket;
-			this.outputDatagramSocket = outputDatagramSocket;
-			this.inputStream = null;
-			this.outputStream = null;
+			this.bytesForwarded = bytesForwarded;
 		}
 
 		/**
@@ -348,91 +382,178 @@ public class JavaForwarder {
 		 * writing fail, exits the thread and notifies the parent about the failure.
 		 */
 		public void run() {
-			final byte[] buffer = new byte[BUFFER_SIZE];
+			if (ForwardingPath.SPLICE == forwardingPath) {
+				splice();
+				return;
+			}
+			final byte[] buffer = new byte[bufferSize];
+			// Channels of both sockets move the data, see read(byte[], ByteBuffer)
+			final ByteBuffer channelBuffer = (inputSocket.getChannel() != null) && (outputSocket.getChannel() != null)
+					? ByteBuffer.wrap(buffer)
+					: null;
 			LocalDateTime localDateTimeForward = null;
-			if (Protocol.TCP == protocol) {
-				final DataDumpManager dataDumpManager = new DataDumpManager(Thread.currentThread().getId(), inputSocket,
-						outputSocket);
-				try {
-					while (!JavaForwarder.doExit) {
-						int bytesRead = inputStream.read(buffer);
-						// Record data read
-						if (localDateTimeForward == null) {
-							localDateTimeForward = LocalDateTime.now();
-						}
-						dataDumpManager.record(localDateTimeForward, buffer, bytesRead);
-						// If end of stream is reached --> exit
-						if (bytesRead == -1) {
-							break;
-						}
-						if (bytesRead < BUFFER_SIZE) {
-							localDateTimeForward = null;
-						}
-						// Forward data
-						outputStream.write(buffer, 0, bytesRead);
-						outputStream.flush();
+			final DataDumpManager dataDumpManager = new DataDumpManager(Thread.currentThread().getId(), inputSocket,
+					outputSocket);
+			bytesForwarded.setDataDumpManager(dataDumpManager);
+			try {
+				// Forward until the connection is closed, on termination it is closed by the connection registry
+				while (true) {
+					final int bytesRead = read(buffer, channelBuffer);
+					// Record data read
+					if (localDateTimeForward == null) {
+						localDateTimeForward = LocalDateTime.now();
+					}
+					dataDumpManager.record(localDateTimeForward, buffer, bytesRead);
+					// If end of stream is reached --> exit
+					if (bytesRead == -1) {
+						break;
 					}
-				} catch (IOException e) {
-					// Read/write failed --> connection is broken
+					if (bytesRead < bufferSize) {
+						localDateTimeForward = null;
+					}
+					// Forward data, as fast as the rate limits allow
+					bytesForwarded.add(bytesRead);
+					throttle(bytesForwarded.throttle(bytesRead));
+					bytesForwarded.writeBlocked();
+					write(buffer, bytesRead, channelBuffer);
+					bytesForwarded.writeDone();
 				}
-				// Display threads data dump
-				dataDumpManager.logDataDump();
-				// Notify parent thread that the connection is broken
-				clientThread.connectionBroken();
-			} else if (Protocol.UDP == protocol) {
-				try {
-					while (!JavaForwarder.doExit) {
-						DatagramPacket inputDatagramPacket = new DatagramPacket(buffer, buffer.length);
-						try {
-							inputDatagramSocket.receive(inputDatagramPacket);
-							// Record data read
-							if (localDateTimeForward == null) {
-								localDateTimeForward = LocalDateTime.now();
-							}
-							String clientMessage = new String(inputDatagramPacket.getData(), 0, inputDatagramPacket.getLength());
-							System.out.println(clientMessage);
-						} catch (SocketTimeoutException e) {
-							// Ignore timeout and continue waiting until we should exist
-						}
+			} catch (IOException e) {
+				// Read/write failed --> connection is broken
+			}
+			// Display threads data dump
+			dataDumpManager.logDataDump();
+			// Notify parent thread that the connection is broken
+			clientThread.connectionBroken();
+		}
+
+		/**
+		 * Read data to inspect into {@code buffer}. Sockets backed by channels are read through their channel: before Java 13
+		 * the stream of such a socket holds the channel's blocking lock for the whole blocking read, and writing to the
+		 * socket's output stream needs the same lock, so the thread forwarding the other direction could not write until data
+		 * arrives and every request/response protocol would deadlock. Reads and writes of a channel don't share a lock.
+		 * 
+		 * @param buffer        to read into
+		 * @param channelBuffer wrapping {@code buffer} to read through the channel, {@code null} to read the stream
+		 * @return number of bytes read, {@code -1} at the end of the stream
+		 * @throws IOException if reading fails
+		 */
+		private int read(final byte[] buffer, final ByteBuffer channelBuffer) throws IOException {
+			if (channelBuffer == null) {
+				return inputStream.read(buffer);
+			}
+			channelBuffer.clear();
+			return inputSocket.getChannel().read(channelBuffer);
+		}
+
+		/**
+		 * Write data inspected, through the channel if {@link #read(byte[], ByteBuffer)} read through the channel.
+		 * 
+		 * @param buffer        data to write
+		 * @param length        number of bytes to write
+		 * @param channelBuffer wrapping {@code buffer} to write through the channel, {@code null} to write the stream
+		 * @throws IOException if writing fails
+		 */
+		private void write(final byte[] buffer, final int length, final ByteBuffer channelBuffer) throws IOException {
+			if (channelBuffer == null) {
+				outputStream.write(buffer, 0, length);
+				outputStream.flush();
+				return;
+			}
+			channelBuffer.clear();
+			channelBuffer.limit(length);
+			while (channelBuffer.hasRemaining()) {
+				outputSocket.getChannel().write(channelBuffer);
+			}
+		}
+
+		/**
+		 * Continuously reads the input socket's {@link SocketChannel} into a direct {@link ByteBuffer} and writes it to the
+		 * output socket's {@link SocketChannel}, so the data never gets copied to the Java heap and no flush is required. The
+		 * JDK offers {@code transferTo}/{@code transferFrom} only for {@code FileChannel}s, reading into and writing from the
+		 * same direct buffer is the socket to socket equivalent. The buffer comes from the shared {@link BufferPool} and its
+		 * size follows the recent history of bytes read. If reading or writing fail, exits the thread and notifies the parent
+		 * about the failure.
+		 */
+		private void splice() {
+			final SocketChannel inputChannel = inputSocket.getChannel();
+			final SocketChannel outputChannel = outputSocket.getChannel();
+			final AdaptiveBuffer adaptiveBuffer = new AdaptiveBuffer(BufferPool.shared());
+			try {
+				while (true) {
+					final ByteBuffer buffer = adaptiveBuffer.buffer();
+					final int bytesRead = inputChannel.read(buffer);
+					// If end of stream is reached --> exit
+					if (bytesRead == -1) {
+						break;
 					}
-				} catch (Exception e) {
-					// ???
-					e.printStackTrace();
+					// Forward data, as fast as the rate limits allow
+					bytesForwarded.add(bytesRead);
+					throttle(bytesForwarded.throttle(bytesRead));
+					bytesForwarded.writeBlocked();
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						outputChannel.write(buffer);
+					}
+					bytesForwarded.writeDone();
+					buffer.clear();
+					adaptiveBuffer.update(bytesRead);
 				}
-				// Notify parent thread that the connection is broken
-				clientThread.connectionBroken();
+			} catch (IOException e) {
+				// Read/write failed --> connection is broken
+			}
+			adaptiveBuffer.release();
+			// Notify parent thread that the connection is broken
+			clientThread.connectionBroken();
+		}
+
+		/**
+		 * Hold data back for a rate limit. Only this thread waits, so other connections are not affected. Stops waiting if
+		 * the connection is closed meanwhile, the following write then fails.
+		 * 
+		 * @param delayNanos nanoseconds to wait, {@code 0} to not wait
+		 */
+		private void throttle(final long delayNanos) {
+			final long deadline = System.nanoTime() + delayNanos;
+			long remainingNanos = delayNanos;
+			while ((remainingNanos > 0) && !outputSocket.isClosed()) {
+				LockSupport.parkNanos(Math.min(remainingNanos, THROTTLE_POLL_NANOS));
+				remainingNanos = deadline - System.nanoTime();
 			}
 		}
 	}
 
 	/**
-	 * Data dump manager to store data forwarded by the {@link ForwardThread}.
+	 * Data dump manager to record data forwarded by the {@link ForwardThread}. The data is handed to the
+	 * {@link DataDumpPipeline}, whose writer thread formats it and prints each block once it is complete.
 	 */
-	private static class DataDumpManager {
-
-		/** Map of timestamps and formatted bytes forwarded from {@code inputSocket} to {@code outputSocket}. */
-		private static Map<Long, StringBuffer> mapTimestampDataDump = new TreeMap<Long, StringBuffer>();
-
-		/** ID of thread executing {@link ForwardThread} instance. */
-		private Long threadId = null;
-		/** {@link Socket} data is read from. */
-		private Socket inputSocket = null;
-		/** {@link Socket} data is forwarded (copied) to. */
-		private Socket outputSocket = null;
-
-		/** Number of bytes dumped from data dump in a single line. */
-		private int DUMP_WIDTH = 16;
-
-		/** Index in row to record formatted next byte of data dump. */
-		private int bytesIndex = 0;
-		/** Offset of next byte of data dump. */
-		private int bytesOffset = 0;
-		/** Buffer to record all records of data dump. */
-		private StringBuffer sbBufferFormatted = null;
-		/** Buffer to record up to {@code DUMP_WIDTH} bytes of a single record of data dump bytes in {@code Hex}. */
-		private StringBuffer sbDataHex = null;
-		/** Buffer to record up to {@code DUMP_WIDTH} bytes of a single record of data dump bytes in {@code ASCII}. */
-		private StringBuffer sbDataChar = null;
+	static class DataDumpManager implements DataDumpPipeline.Sink {
+
+		/** Number of characters of an incomplete block printed anyway, so long bulk transfers don't pile up. */
+		private static final int MAX_PENDING_BLOCK = 1024 * 1024;
+
+		/** Flag set if recording of a data dump is active, {@code DUMP} initially, switched by the control endpoint. */
+		private volatile boolean dumpEnabled;
+		/** Flag set once data was handed to the {@link DataDumpPipeline}, only used by the forwarding thread. */
+		private boolean recorded = false;
+		/** Id of the thread forwarding the data, printed in the data dump. */
+		private final long threadId;
+		/** Number of bytes per row of the data dump. */
+		private final int dumpWidth;
+		/** Encoder formatting the bytes forwarded, created once a data dump is formatted by the data dump writer thread. */
+		private HexDumpEncoder hexDumpEncoder;
+		/** Writer capturing the bytes forwarded to a {@code pcapng} file, {@code null} if capturing is not active. */
+		private final CaptureWriter captureWriter;
+		/** {@link CaptureWriter#IPPROTO_TCP} or {@link CaptureWriter#IPPROTO_UDP}, recorded in the capture. */
+		private final int ipProtocol;
+		/** Endpoint data is read from, recorded in the capture. */
+		private final InetSocketAddress source;
+		/** Endpoint data is forwarded to, recorded in the capture. */
+		private final InetSocketAddress destination;
+		/** Formatted rows of the current block not yet printed, only used by the data dump writer thread. */
+		private final StringBuffer sbBufferFormatted = new StringBuffer();
+		/** Timestamp of the current block, only used by the data dump writer thread. */
+		private LocalDateTime localDateTimeBlock = null;
 
 		/**
 		 * {@link DataDumpManager} initialization.
@@ -442,16 +563,55 @@ public class JavaForwarder {
 		 * @param outputSocket to record host and port
 		 */
 		public DataDumpManager(final Long threadId, final Socket inputSocket, final Socket outputSocket) {
+			this(threadId, CaptureWriter.IPPROTO_TCP, (InetSocketAddress) inputSocket.getRemoteSocketAddress(),
+					(InetSocketAddress) outputSocket.getRemoteSocketAddress());
+		}
+
+		/**
+		 * {@link DataDumpManager} initialization.
+		 * 
+		 * @param threadId    of thread forwarding data from {@code source} to {@code destination}
+		 * @param ipProtocol  {@link CaptureWriter#IPPROTO_TCP} or {@link CaptureWriter#IPPROTO_UDP}
+		 * @param source      to record host and port
+		 * @param destination to record host and port
+		 */
+		public DataDumpManager(final Long threadId, final int ipProtocol, final InetSocketAddress source,
+				final InetSocketAddress destination) {
 			super();
+			this.dumpEnabled = System.getProperty(JavaForwarder.ENVIRONMENT_VARIABLE_DUMP) != null;
+			this.captureWriter = CaptureWriter.shared();
 			this.threadId = threadId;
-			this.inputSocket = inputSocket;
-			this.outputSocket = outputSocket;
+			this.ipProtocol = ipProtocol;
+			this.source = source;
+			this.destination = destination;
+			// Number of bytes dumped from data dump in a single line
+			int dumpWidth = 16;
 			try {
-				Integer dumpWidth = Integer.valueOf(System.getProperty(JavaForwarder.ENVIRONMENT_VARIALBE_DUMP_WIDTH));
-				DUMP_WIDTH = (dumpWidth / 16) * 16;
+				Integer dumpWidthProperty = Integer.valueOf(System.getProperty(JavaForwarder.ENVIRONMENT_VARIALBE_DUMP_WIDTH));
+				if (dumpWidthProperty >= 16) {
+					dumpWidth = (dumpWidthProperty / 16) * 16;
+				}
 			} catch (NumberFormatException e) {
 				// Ignore
 			}
+			this.dumpWidth = dumpWidth;
+		}
+
+		/**
+		 * Switch recording of the data dump on or off, e.g. for a single connection through the control endpoint. Data
+		 * recorded before is still formatted when switched off.
+		 * 
+		 * @param dumpEnabled {@code true} to record a data dump
+		 */
+		void setDumpEnabled(final boolean dumpEnabled) {
+			this.dumpEnabled = dumpEnabled;
+		}
+
+		/**
+		 * @return {@code true} if a data dump is recorded
+		 */
+		boolean isDumpEnabled() {
+			return dumpEnabled;
 		}
 
 		/**
@@ -463,98 +623,76 @@ public class JavaForwarder {
 		 * @param bytesRead               containing the number of bytes actually read from {@code inputSocket}
 		 */
 		public void record(final LocalDateTime localDateTimeForwarding, final byte[] buffer, final int bytesRead) {
-			if (System.getProperty(JavaForwarder.ENVIRONMENT_VARIABLE_DUMP) == null) {
+			// A read not filling the buffer ends the block
+			record(localDateTimeForwarding, buffer, bytesRead, bytesRead < buffer.length);
+		}
+
+		/**
+		 * Record the bytes in {@code buffer} forwarded from {@code source} to {@code destination} as a formatted data dump.
+		 * 
+		 * @param localDateTimeForwarding timestamp of forwarding
+		 * @param buffer                  containing the data forwarded
+		 * @param bytesRead               number of bytes in {@code buffer}
+		 * @param endOfBlock              {@code true} if the data completes a block, e.g. a datagram
+		 */
+		public void record(final LocalDateTime localDateTimeForwarding, final byte[] buffer, final int bytesRead,
+				final boolean endOfBlock) {
+			if (!dumpEnabled && (captureWriter == null)) {
 				return;
 			}
-			// Retrieve buffer to record data dump from buffer into
-			final long timeForwardingMilliSeconds = localDateTimeForwarding.atZone(ZoneId.systemDefault()).toInstant()
-					.toEpochMilli();
-			synchronized (mapTimestampDataDump) {
-				sbBufferFormatted = mapTimestampDataDump.get(timeForwardingMilliSeconds);
-				if (sbBufferFormatted == null) {
-					this.bytesIndex = 0;
-					this.bytesOffset = 0;
-					this.sbDataHex = new StringBuffer();
-					this.sbDataChar = new StringBuffer();
-					sbBufferFormatted = new StringBuffer();
-					mapTimestampDataDump.put(timeForwardingMilliSeconds, sbBufferFormatted);
-				}
+			recorded = true;
+			DataDumpPipeline.shared().record(this, localDateTimeForwarding, buffer, bytesRead, endOfBlock);
+		}
+
+		/**
+		 * Log the rest of the recorded data dump once the data recorded before has been formatted.
+		 */
+		public void logDataDump() {
+			if (!dumpEnabled && (captureWriter == null) && !recorded) {
+				return;
 			}
-			// Dump data in hex and ascii in DUMP_WIDTH bytes blocks
-			for (int bufferOffset = 0; bufferOffset < bytesRead; bufferOffset++) {
-				byte dataByte = buffer[bufferOffset];
-				if (bytesOffset == 0) {
-					// Header row with record details
-					sbBufferFormatted
-							.append(String.format("Thread %06x: %s: %s:%s -> %s:%s", threadId,
-									localDateTimeForwarding.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")),
-									inputSocket.getInetAddress().getHostAddress(), inputSocket.getPort(),
-									outputSocket.getInetAddress().getHostAddress(), outputSocket.getPort()))
-							.append(System.lineSeparator());
-					// Header row with hex offsets of bytes in formatted data dump
-					sbBufferFormatted.append("  Offset ");
-					for (int i = 0; i < DUMP_WIDTH; i++) {
-						sbBufferFormatted.append(String.format("%02X ", i));
-					}
-					for (int i = 0; i < DUMP_WIDTH; i++) {
-						sbBufferFormatted.append(String.format("%1X", (i & 0xF)));
-					}
-					sbBufferFormatted.append(System.lineSeparator());
-					// Header row to separate headers with formatted dump data
-					sbBufferFormatted.append("  -------");
-					for (int i = 0; i < DUMP_WIDTH; i++) {
-						sbBufferFormatted.append("----");
-					}
-					sbBufferFormatted.append(System.lineSeparator());
-					sbDataHex = new StringBuffer();
-					sbDataChar = new StringBuffer();
-				}
-				// Record a row of bytes as formatted data dump
-				if (bytesIndex == 0) {
-					sbDataHex.append(String.format("  %06X ", bytesOffset));
-				}
-				sbDataHex.append(String.format("%02X ", dataByte));
-				Character dataByteChar = new Character((char) dataByte);
-				int type = Character.getType(dataByteChar);
-				if ((Character.CONTROL == type) || (Character.FORMAT == type) || (Character.PRIVATE_USE == type)
-						|| (Character.SURROGATE == type) || (Character.UNASSIGNED == type)) {
-					// Ignore non printable characters
-					sbDataChar.append(" ");
-				} else {
-					sbDataChar.append(dataByteChar);
-				}
-				bytesOffset++;
-				bytesIndex++;
-				// Check for advancing to next line
-				if (bytesIndex >= DUMP_WIDTH) {
-					sbBufferFormatted.append(sbDataHex).append(sbDataChar).append(System.lineSeparator());
-					sbDataHex = new StringBuffer();
-					sbDataChar = new StringBuffer();
-					bytesIndex = 0;
-				}
+			DataDumpPipeline.shared().close(this);
+		}
+
+		@Override
+		public void write(final LocalDateTime localDateTimeForwarding, final long epochNanos, final byte[] data,
+				final int length, final boolean endOfBlock) {
+			if ((captureWriter != null) && (length > 0)) {
+				captureWriter.write(ipProtocol, source, destination, epochNanos, data, length);
 			}
-			if (bytesRead < buffer.length) {
-				// Pad not yet complete DATA_WIDTH bytes line
-				for (int bytesIndexNoData = bytesIndex; bytesIndexNoData < DUMP_WIDTH; bytesIndexNoData++) {
-					sbDataHex.append("   ");
-				}
-				sbBufferFormatted.append(sbDataHex).append(sbDataChar).append(System.lineSeparator());
-				bytesIndex = 0;
-				bytesOffset = 0;
-				sbDataHex = new StringBuffer();
-				sbDataChar = new StringBuffer();
+			if (!dumpEnabled) {
+				return;
+			}
+			if (hexDumpEncoder == null) {
+				hexDumpEncoder = new HexDumpEncoder(threadId, source.getAddress().getHostAddress() + ":" + source.getPort()
+						+ " -> " + destination.getAddress().getHostAddress() + ":" + destination.getPort(), dumpWidth);
+			}
+			if (!localDateTimeForwarding.equals(localDateTimeBlock)) {
+				hexDumpEncoder.reset();
+				localDateTimeBlock = localDateTimeForwarding;
+			}
+			// Dump data in hex and ascii in DUMP_WIDTH bytes rows
+			hexDumpEncoder.encode(sbBufferFormatted, localDateTimeForwarding, data, length, endOfBlock);
+			if (endOfBlock || (sbBufferFormatted.length() >= MAX_PENDING_BLOCK)) {
+				printDataDump();
 			}
 		}
 
+		@Override
+		public void close(final long epochNanos) {
+			if (captureWriter != null) {
+				captureWriter.close(ipProtocol, source, destination, epochNanos);
+			}
+			printDataDump();
+		}
+
 		/**
-		 * Log the recorded data dump by increasing timestamp.
+		 * Print the formatted rows not yet printed.
 		 */
-		public void logDataDump() {
-			synchronized (mapTimestampDataDump) {
-				for (Entry<Long, StringBuffer> mapEntry : mapTimestampDataDump.entrySet()) {
-					System.out.print(mapEntry.getValue());
-				}
-				mapTimestampDataDump.clear();
+		private void printDataDump() {
+			if (sbBufferFormatted.length() > 0) {
+				System.out.print(sbBufferFormatted);
+				sbBufferFormatted.setLength(0);
 			}
 		}
 
@@ -572,34 +710,103 @@ public class JavaForwarder {
 			String remoteHost = "localhost";
 			int remotePort = 9080;
 			int localPort = 8888;
-			// Process commandline
-			if (args.length == 3) {
+			// Check IP we want to forward
+			Protocol protocol = Protocol.TCP;
+			if (Protocol.UDP.name().equalsIgnoreCase(System.getProperty(JavaForwarder.ENVIRONMENT_VARIABLE_MODE))) {
+				protocol = Protocol.UDP;
+			}
+			// Process commandline, or the route table replacing it
+			List<Route> routes;
+			String routesFile = System.getProperty(Route.ENVIRONMENT_VARIABLE_ROUTES);
+			if (routesFile != null) {
+				routes = Route.load(Paths.get(routesFile));
+			} else if (args.length == 3) {
 				remoteHost = args[0];
 				remotePort = Integer.valueOf(args[1]);
 				localPort = Integer.valueOf(args[2]);
+				routes = Collections.singletonList(new Route(protocol, localPort, remoteHost, remotePort));
 			} else {
 				System.out.println("");
 				System.out.println("Usage: JavaForwarder remoteHost remotePort localPort");
+				System.out.println("       JavaForwarder (with ROUTES set)");
 				System.out.println("");
 				System.out.println("  Supported optional environment variables:");
+				System.out.println("    ROUTES ... path of a route table, a line \"TCP|UDP localPort remoteHost:remotePort[,...] [option=value ...]\" per route");
+				System.out.println("      options: balance, pool_min_idle, pool_max_idle, idle_timeout, read_timeout, write_stall_timeout, rate, connection_rate, burst, max_connections, max_connections_per_ip, admission_wait");
+				System.out.println("    BALANCE ... ROUND_ROBIN (default), LEAST_CONNECTIONS or LATENCY selection of route backends");
+				System.out.println("    EJECT_FAILURES ... connects failing in a row to eject a backend, defaults to 3");
+				System.out.println("    EJECT_SECONDS ... seconds a backend is ejected for, doubling while it keeps failing, defaults to 10");
+				System.out.println("    POOL_MIN_IDLE ... TCP connections per backend kept idle to forward clients without connecting, defaults to 0");
+				System.out.println("    POOL_MAX_IDLE ... maximum TCP connections per backend idle, defaults to twice POOL_MIN_IDLE");
+				System.out.println("    POOL_IDLE_SECONDS ... seconds before an idle pooled TCP connection is stale, defaults to 30");
+				System.out.println("    DNS_TTL_SECONDS ... seconds resolved backend addresses are cached, defaults to 30");
+				System.out.println("    DNS_STALE_SECONDS ... seconds expired addresses are used while they can't be resolved again, defaults to 300");
+				System.out.println("    DNS_REFRESH_PERCENT ... percentage of DNS_TTL_SECONDS after which addresses are resolved again in the background, defaults to 80");
+				System.out.println("    IDLE_SECONDS ... seconds a TCP connection may forward no data before it is closed, defaults to 0 (never)");
+				System.out.println("    READ_TIMEOUT_SECONDS ... seconds a backend may not answer data of the client before it is closed, defaults to 0 (never)");
+				System.out.println("    WRITE_STALL_SECONDS ... seconds a write may be blocked by a peer not reading before it is closed, defaults to 0 (never)");
+				System.out.println("    RATE ... bytes per second of each direction of a TCP route, with optional suffix K, M or G, defaults to unlimited");
+				System.out.println("    CONNECTION_RATE ... bytes per second of each direction of a TCP connection, defaults to unlimited");
+				System.out.println("    RATE_BURST ... bytes forwarded without limit after being idle, defaults to a fifth of the rate, at least 64K");
+				System.out.println("    MAX_CONNECTIONS ... concurrent connections of a TCP route, defaults to 0 (unlimited)");
+				System.out.println("    MAX_CONNECTIONS_PER_IP ... concurrent connections of a TCP route per client address, defaults to 0 (unlimited)");
+				System.out.println("    ADMISSION_WAIT_MILLIS ... milliseconds a THREAD engine connection over MAX_CONNECTIONS waits, defaults to 0 (reject)");
 				System.out.println("    MODE ... forward TCP (default) or UDP data");
+				System.out.println("    ENGINE ... forward TCP with THREAD (default, threads per connection) or NIO (event loops)");
+				System.out.println("    THREADS ... run THREAD engine on PLATFORM (default) or VIRTUAL (Java 21+) threads");
+				System.out.println("    EVENT_LOOPS ... number of NIO event loops, defaults to number of processors");
+				System.out.println("    METRICS_PORT ... local port of the Prometheus metrics endpoint on the loopback address, defaults to 0 (none)");
+				System.out.println("    CONTROL_PORT ... local port of the HTTP control endpoint on the loopback address, defaults to 0 (none)");
+				System.out.println("    CONTROL_TOKEN_FILE ... file with the token required by the control endpoint, defaults to PID_FILE.token");
+				System.out.println("    DAEMON ... true to run without reading stdin, terminated by SIGTERM or POST /drain to CONTROL_PORT");
+				System.out.println("    ACCEPTORS ... number of threads or NIO event loops accepting connections per TCP route, defaults to 1");
+				System.out.println("    ACCEPT_BACKLOG ... length of the queue of TCP connections not yet accepted, defaults to 1024");
+				System.out.println("    REUSE_ADDRESS ... false to not set SO_REUSEADDR on listening sockets, defaults to true");
+				System.out.println("    REUSE_PORT ... true to set SO_REUSEPORT (Java 9+) and bind a listening socket per acceptor");
+				System.out.println("    DRAIN_SECONDS ... seconds connections may finish on termination before they are closed, defaults to 0");
+				System.out.println("    PID_FILE ... path of a file to write the process id to");
+				System.out.println("    TAKEOVER ... true to make the process in PID_FILE drain once the ports are bound (needs REUSE_PORT)");
+				System.out.println("    BUFFER_POOL_MB ... megabytes of idle direct buffers kept for reuse, defaults to 64");
+				System.out.println("    COALESCE_MICROS ... above 0 to coalesce the data available into one write (NIO engine only)");
+				System.out.println("    BUFFER_SIZE ... bytes of the heap buffer of each INSPECT forwarding direction, defaults to 8192");
+				System.out.println("    NODELAY ... true or false to set TCP_NODELAY on forwarded sockets");
+				System.out.println("    UDP_IDLE_SECONDS ... seconds before an idle UDP session is evicted, defaults to 60");
+				System.out.println("    UDP_BURST ... maximum number of UDP datagrams received before flushing them, defaults to 64");
+				System.out.println("    UDP_MAX_SESSIONS ... maximum number of UDP sessions per local port, defaults to 1024");
 				System.out.println("    DUMP ... any value to record data forwarded a formatted data dump");
+				System.out.println("    DUMP_BUFFER_MB ... megabytes of data queued for the data dump, defaults to 16");
+				System.out.println("    DUMP_POLICY ... DROP (default) or BLOCK forwarding when the data dump can't keep up");
+				System.out.println("    CAPTURE ... path of a pcapng file to capture forwarded data to");
+				System.out.println("    CAPTURE_ROTATE_MB ... megabytes of a capture file before rotating to the next, defaults to 100");
 				System.out.println("    DUMP_WIDTH ... multiple of 16 defining number of bytes per row of formatted data dump");
 				System.out.println("");
 				return;
 			}
-			// Check IP we want to forward
-			Protocol protocol = Protocol.TCP;
-			if (Protocol.UDP.name().equalsIgnoreCase(System.getProperty(JavaForwarder.ENVIRONMENT_VARIABLE_MODE))) {
-				protocol = Protocol.UDP;
-			}
 			// Printing a start-up message
-			System.out.println("JavaForwarder starting proxy thread, forwarding " + protocol + " connection: " + remoteHost
-					+ ":" + remotePort + " on local port " + localPort);
+			System.out.println("JavaForwarder starting proxy thread, forwarding " + routes.size() + " route(s)");
 			// And start running the server
-			ProxyThread proxyThread = new ProxyThread(protocol, remoteHost, remotePort, localPort);
+			ProxyThread proxyThread = new ProxyThread(routes);
 			proxyThread.start();
-			Thread.sleep(100);
+			// Terminate gracefully on SIGTERM as well, e.g. when a new process takes over
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				if (proxyThread.isAlive()) {
+					System.out.println("JavaForwarder termination signalled, waiting for proxy thread ...");
+					JavaForwarder.exit();
+					try {
+						proxyThread.join();
+					} catch (InterruptedException e) {
+					}
+				}
+			}, "JavaForwarder-Shutdown"));
+			LIFECYCLE.awaitRunning(10, TimeUnit.SECONDS);
+			if (Boolean.parseBoolean(System.getProperty(JavaForwarder.ENVIRONMENT_VARIABLE_DAEMON))) {
+				// Without a console stdin may be closed or never readable, run until terminated otherwise
+				System.out.println("JavaForwarder waiting for client connection(s), terminate with SIGTERM or POST /drain to "
+						+ ControlServer.ENVIRONMENT_VARIABLE_CONTROL_PORT + " ...");
+				proxyThread.join();
+				System.out.println("JavaForwarder exiting ...");
+				return;
+			}
 			// Wait for quitting
 			System.out.println("JavaForwarder waiting for client connection(s), press Enter to terminate JavaForwarder ...");
 			try {
@@ -610,7 +817,7 @@ public class JavaForwarder {
 			if (proxyThread.isAlive()) {
 				System.out.println("JavaForwarder termination requested, waiting for proxy thread ...");
 			}
-			JavaForwarder.doExit = true;
+			JavaForwarder.exit();
 			proxyThread.join();
 			System.out.println("JavaForwarder exiting ...");
 		} catch (Exception e) {
@@ -619,75 +826,252 @@ public class JavaForwarder {
 	}
 
 	/**
-	 * It will run a single-threaded proxy server on the provided local port to forward {@code IP} data between
-	 * {@code localhost:localPort} and {@code remoteHost:remotePort}.
+	 * Determine the engine to forward {@code TCP} data with.
 	 * 
-	 * @param protocol   of {@code IP} data to forward
-	 * @param remoteHost hostname or IP-address of server data will be forwarded to
-	 * @param remotePort port of server data will be forwarded to
-	 * @param localPort  port to start a server on {@code localhost} that will receive the data and forward it to
-	 *                   {@code remoteHost:remotePort}
-	 * @throws IOException
+	 * @return {@link Engine#NIO} if requested, {@link Engine#THREAD} otherwise
 	 */
-	public static void runServer(final Protocol protocol, final String remoteHost, final int remotePort, final int localPort)
-			throws IOException {
-		System.out.println("JavaForwarder proxy thread waiting for client connection(s) ...");
-		List<ClientThread> clientThreads = new ArrayList<>();
-		if (Protocol.TCP == protocol) {
-			// Creating a ServerSocket to listen for connections
-			while (!JavaForwarder.doExit) {
-				try (ServerSocket serverSocket = new ServerSocket(localPort)) {
-					serverSocket.setSoTimeout(1000);
-					while (true) {
-						Socket clientSocket = serverSocket.accept();
-						ClientThread clientThread = new ClientThread(protocol, clientSocket, remoteHost, remotePort);
-						System.out.println("JavaForwarder accepted client thread ...");
-						clientThreads.add(clientThread);
-						clientThread.start();
-					}
-				} catch (SocketTimeoutException e) {
-					// Ignore so we can check for termination request
-				} finally {
-				}
+	static Engine engine() {
+		if (Engine.NIO.name().equalsIgnoreCase(System.getProperty(JavaForwarder.ENVIRONMENT_VARIABLE_ENGINE))) {
+			return Engine.NIO;
+		}
+		return Engine.THREAD;
+	}
+
+	/**
+	 * Determine the number of event loops of the {@link Engine#NIO} engine.
+	 * 
+	 * @return {@code EVENT_LOOPS}, the number of processors by default
+	 */
+	static int eventLoops() {
+		try {
+			return Integer.valueOf(System.getProperty(JavaForwarder.ENVIRONMENT_VARIABLE_EVENT_LOOPS));
+		} catch (NumberFormatException e) {
+			return Runtime.getRuntime().availableProcessors();
+		}
+	}
+
+	/**
+	 * Determine how {@code TCP} data is moved between sockets. Data only needs to be copied through a heap buffer when it has
+	 * to be inspected byte by byte, i.e. when a data dump is recorded or the data is captured.
+	 * 
+	 * @return {@link ForwardingPath#INSPECT} if data needs to be inspected, {@link ForwardingPath#SPLICE} otherwise
+	 */
+	static ForwardingPath forwardingPath() {
+		if ((System.getProperty(JavaForwarder.ENVIRONMENT_VARIABLE_DUMP) != null) || (CaptureWriter.shared() != null)) {
+			return ForwardingPath.INSPECT;
+		}
+		return ForwardingPath.SPLICE;
+	}
+
+	/**
+	 * Determine if the NIO engine coalesces the data available into a single write, the THREAD engine never does.
+	 * 
+	 * @return {@code COALESCE_MICROS} in nanoseconds, {@code 0} if every read is written immediately
+	 */
+	static long coalesceNanos() {
+		try {
+			return Math.max(0, TimeUnit.MICROSECONDS.toNanos(Long.valueOf(System.getProperty(ENVIRONMENT_VARIABLE_COALESCE_MICROS))));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Determine the size of the heap buffer data is inspected with.
+	 * 
+	 * @return bytes of the buffer, at least 1
+	 */
+	static int bufferSize() {
+		try {
+			return Math.max(1, Integer.valueOf(System.getProperty(ENVIRONMENT_VARIABLE_BUFFER_SIZE)));
+		} catch (NumberFormatException e) {
+			return 8192;
+		}
+	}
+
+	/**
+	 * Set {@code TCP_NODELAY} on a forwarded socket if configured, otherwise keep the OS default.
+	 * 
+	 * @param socket to configure
+	 * @throws SocketException if the option can't be set
+	 */
+	static void configureTcpNoDelay(final Socket socket) throws SocketException {
+		final String tcpNoDelay = System.getProperty(ENVIRONMENT_VARIABLE_NODELAY);
+		if (tcpNoDelay != null) {
+			socket.setTcpNoDelay(Boolean.parseBoolean(tcpNoDelay));
+		}
+	}
+
+	/**
+	 * Create the {@link ExecutorService} a listener runs its ClientThreads and ForwardThreads with. Each task gets its own
+	 * thread, either a platform thread or, if requested and supported by the Java runtime, a virtual thread.
+	 * 
+	 * @return {@link ExecutorService} starting a new thread per task
+	 */
+	private static ExecutorService newExecutorService() {
+		if (Threads.VIRTUAL.name().equalsIgnoreCase(System.getProperty(JavaForwarder.ENVIRONMENT_VARIABLE_THREADS))) {
+			try {
+				// Looked up reflectively, so JavaForwarder still builds and runs on Java 8
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException e) {
+				System.err.println("JavaForwarder virtual threads are not supported by this Java runtime, using platform threads");
 			}
-		} else if (Protocol.UDP == protocol) {
-			// Creating a ServerSocket to listen for connections
-			try (DatagramSocket clientDatagramSocket = new DatagramSocket(localPort)) {
-				clientDatagramSocket.setSoTimeout(1000);
-//				while (true) {
-				ClientThread clientThread = new ClientThread(protocol, clientDatagramSocket, remoteHost, remotePort);
-				System.out.println("JavaForwarder accepted client thread ...");
-				clientThreads.add(clientThread);
-				clientThread.start();
-//				}
-				while (!JavaForwarder.doExit) {
-					try {
-						Thread.sleep(10000);
-					} catch (InterruptedException e) {
-					}
-				}
-			} catch (SocketException e) {
-				// SocketTimeoutException ?
-				// Ignore so we can check for termination request
-				e.printStackTrace();
-			} finally {
+		}
+		return Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * Request the server to terminate, {@link #runServer(List)} returns once it has shut down all routes.
+	 */
+	static void exit() {
+		LIFECYCLE.stop();
+	}
+
+	/**
+	 * @return lifecycle of the server
+	 */
+	static Lifecycle lifecycle() {
+		return LIFECYCLE;
+	}
+
+	/**
+	 * It will run a proxy server for each route of the route table to forward {@code IP} data between
+	 * {@code localhost:localPort} and {@code remoteHost:remotePort}. All routes share the threads and buffers forwarding their
+	 * data: one {@link ExecutorService}, one {@link NioEngine} and one {@link UdpRelay}, held by the {@link RouteTable}
+	 * routes can be added to and removed from at runtime through the {@link ControlServer}.
+	 * 
+	 * @param routes to forward
+	 */
+	public static void runServer(final List<Route> routes) {
+		System.out.println("JavaForwarder proxy thread waiting for client connection(s) ...");
+		// Time out the connections of all routes with a single timer thread
+		TimerWheel timerWheel = new TimerWheel();
+		timerWheel.start();
+		ConnectionRegistry connectionRegistry = new ConnectionRegistry(timerWheel);
+		ExecutorService executorService = JavaForwarder.newExecutorService();
+		if ((Engine.THREAD == JavaForwarder.engine()) && (JavaForwarder.coalesceNanos() > 0)) {
+			// Waiting for more data would need a timed read, which changes the channel's blocking mode before Java 13
+			System.out.println("JavaForwarder " + ENVIRONMENT_VARIABLE_COALESCE_MICROS
+					+ " ignored by the THREAD engine, set ENGINE=NIO to coalesce writes");
+		}
+		// Accepted sockets are backed by channels, so they can be spliced
+		RouteTable routeTable = new RouteTable(connectionRegistry, route -> clientChannel -> {
+			ClientThread clientThread = new ClientThread(route, clientChannel.socket(), executorService, connectionRegistry);
+			System.out.println("JavaForwarder accepted client thread ...");
+			executorService.execute(clientThread);
+		});
+		for (Route route : routes) {
+			try {
+				routeTable.add(route);
+			} catch (IOException | IllegalArgumentException e) {
+				System.err.println("JavaForwarder failed to listen on local port " + route.getLocalPort() + ": " + e);
 			}
-			while (!JavaForwarder.doExit) {
-				try {
-					Thread.sleep(10000);
-				} catch (InterruptedException e) {
-				}
+		}
+		routeTable.start();
+		// All ports are bound, a process forwarding them before may drain now
+		Handoff.takeOver();
+		MetricsServer metricsServer = null;
+		try {
+			metricsServer = MetricsServer.start(routeTable.getRoutes(), connectionRegistry);
+		} catch (IOException e) {
+			System.err.println("JavaForwarder failed to start metrics endpoint: " + e);
+		}
+		ControlServer controlServer = null;
+		try {
+			controlServer = ControlServer.start(routeTable, connectionRegistry, LIFECYCLE);
+		} catch (IOException e) {
+			System.err.println("JavaForwarder failed to start control endpoint: " + e);
+		}
+		LIFECYCLE.running();
+		LIFECYCLE.awaitStop();
+		// Stop accepting first, so a process taking over gets all new connections while these drain
+		routeTable.stopAccepting();
+		LIFECYCLE.draining();
+		drain(connectionRegistry, LIFECYCLE.getDrainNanos() >= 0 ? LIFECYCLE.getDrainNanos() : drainNanos());
+		routeTable.shutdown();
+		if (controlServer != null) {
+			controlServer.shutdown();
+		}
+		if (metricsServer != null) {
+			metricsServer.shutdown();
+		}
+		System.out.println("JavaForwarder closing " + connectionRegistry.size() + " connection(s) ...");
+		connectionRegistry.closeAll();
+		timerWheel.shutdown();
+		executorService.shutdown();
+		try {
+			executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		if (ForwardingPath.INSPECT == JavaForwarder.forwardingPath()) {
+			DataDumpPipeline.shared().flush(10, TimeUnit.SECONDS);
+			System.out.println("JavaForwarder data dump: dropped " + DataDumpPipeline.shared().getDroppedBytes() + " bytes");
+			if (CaptureWriter.shared() != null) {
+				CaptureWriter.shared().close();
 			}
 		}
-		for (ClientThread clientThread : clientThreads) {
+		for (Route route : routeTable.getRoutes()) {
+			System.out.println("JavaForwarder route " + route + ": " + route.getStatistics());
+		}
+		System.out.println("JavaForwarder connections: " + connectionRegistry);
+		System.out.println("JavaForwarder buffer pool: " + BufferPool.shared());
+		System.out.println("JavaForwarder DNS cache: " + DnsCache.shared());
+		Handoff.release();
+		LIFECYCLE.stopped();
+		System.out.println("JavaForwarder proxy thread terminating ...");
+	}
+
+	/**
+	 * @return nanoseconds live connections may finish on termination, {@code DRAIN_SECONDS}
+	 */
+	private static long drainNanos() {
+		try {
+			return TimeUnit.SECONDS.toNanos(Math.max(0, Long.valueOf(System.getProperty(ENVIRONMENT_VARIABLE_DRAIN_SECONDS))));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Wait up to {@code drainNanos} for the live connections to finish, reporting the connections left at the deadline.
+	 *
+	 * @param connectionRegistry of the live connections
+	 * @param drainNanos         nanoseconds to wait at most
+	 */
+	private static void drain(final ConnectionRegistry connectionRegistry, final long drainNanos) {
+		if ((drainNanos == 0) || (connectionRegistry.size() == 0)) {
+			return;
+		}
+		final long start = System.nanoTime();
+		int live = connectionRegistry.size();
+		System.out.println("JavaForwarder draining " + live + " connection(s) for up to "
+				+ TimeUnit.NANOSECONDS.toSeconds(drainNanos) + "s ...");
+		long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+		while ((live > 0) && (System.nanoTime() - start < drainNanos)) {
+			// Woken as soon as the last connection is closed, otherwise in time to report or give up
+			final long now = System.nanoTime();
 			try {
-				clientThread.connectionBroken();
-				clientThread.join();
+				connectionRegistry.awaitEmpty(Math.min(start + drainNanos - now, nextReport - now));
 			} catch (InterruptedException e) {
-				e.printStackTrace();
+				break;
+			}
+			live = connectionRegistry.size();
+			if ((live > 0) && (System.nanoTime() - nextReport >= 0)) {
+				System.out.println("JavaForwarder draining, " + live + " connection(s) left");
+				nextReport += TimeUnit.SECONDS.toNanos(1);
 			}
 		}
-		System.out.println("JavaForwarder proxy thread terminating ...");
+		final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		if (live == 0) {
+			System.out.println("JavaForwarder drained all connections in " + elapsedMillis + "ms");
+			return;
+		}
+		System.out.println("JavaForwarder drain deadline reached after " + elapsedMillis + "ms, " + live
+				+ " connection(s) left:");
+		for (ConnectionRegistry.Entry entry : connectionRegistry.getEntries()) {
+			System.out.println("JavaForwarder   " + entry);
+		}
 	}
 
 }
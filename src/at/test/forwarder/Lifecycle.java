@@ -0,0 +1,148 @@
+package at.test.forwarder;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lifecycle of a JavaForwarder process, moving from {@link State#STARTING} through {@link State#RUNNING} and
+ * {@link State#DRAINING} to {@link State#STOPPED}. Threads waiting for a state block until it is reached instead of polling a
+ * flag, a stop requested from any thread (stdin, the termination signal, a benchmark) wakes the thread running the server
+ * immediately. The components shut down by that thread stop their blocked I/O by closing their channels, waking their
+ * selectors or unparking their threads.
+ */
+final class Lifecycle {
+
+	/** State of the process. */
+	static enum State {
+		/** Binding the listening ports. */
+		STARTING,
+		/** Accepting and forwarding connections. */
+		RUNNING,
+		/** No longer accepting, the live connections may finish. */
+		DRAINING,
+		/** All listening ports and connections are closed. */
+		STOPPED
+	};
+
+	private volatile State state = State.STARTING;
+	/** Nanoseconds live connections may finish once stopped, {@code -1} for {@code DRAIN_SECONDS}. */
+	private volatile long drainNanos = -1;
+	/** Released once the listening ports are bound, or the process stopped without binding them. */
+	final private CountDownLatch running = new CountDownLatch(1);
+	/** Released once a stop is requested. */
+	final private CountDownLatch stopRequested = new CountDownLatch(1);
+	/** Released once the process stopped. */
+	final private CountDownLatch stopped = new CountDownLatch(1);
+
+	/**
+	 * Enter {@link State#RUNNING}, once all listening ports are bound.
+	 */
+	void running() {
+		transition(State.RUNNING);
+		running.countDown();
+	}
+
+	/**
+	 * Request a stop, may be called from any thread and any number of times.
+	 */
+	void stop() {
+		stopRequested.countDown();
+	}
+
+	/**
+	 * Request a stop, letting the live connections finish for {@code drainNanos} instead of {@code DRAIN_SECONDS}.
+	 *
+	 * @param drainNanos nanoseconds to drain at most
+	 */
+	void stop(final long drainNanos) {
+		this.drainNanos = Math.max(0, drainNanos);
+		stop();
+	}
+
+	/**
+	 * @return nanoseconds to drain requested with {@link #stop(long)}, {@code -1} if not requested
+	 */
+	long getDrainNanos() {
+		return drainNanos;
+	}
+
+	/**
+	 * @return {@code true} if a stop was requested
+	 */
+	boolean isStopRequested() {
+		return stopRequested.getCount() == 0;
+	}
+
+	/**
+	 * Block until a stop is requested.
+	 */
+	void awaitStop() {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				stopRequested.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Enter {@link State#DRAINING}, once the listening ports are closed.
+	 */
+	void draining() {
+		transition(State.DRAINING);
+	}
+
+	/**
+	 * Enter {@link State#STOPPED}, once everything is closed.
+	 */
+	void stopped() {
+		transition(State.STOPPED);
+		running.countDown();
+		stopped.countDown();
+	}
+
+	/**
+	 * Block until the listening ports are bound or the process stopped.
+	 *
+	 * @param timeout to wait at most
+	 * @param unit    of {@code timeout}
+	 * @return {@code true} if the process is {@link State#RUNNING} or further
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	boolean awaitRunning(final long timeout, final TimeUnit unit) throws InterruptedException {
+		return running.await(timeout, unit);
+	}
+
+	/**
+	 * Block until the process stopped.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	void awaitStopped() throws InterruptedException {
+		stopped.await();
+	}
+
+	/**
+	 * @return current state
+	 */
+	State getState() {
+		return state;
+	}
+
+	private void transition(final State next) {
+		System.out.println("JavaForwarder " + state + " -> " + next);
+		state = next;
+	}
+
+	@Override
+	public String toString() {
+		return state.name();
+	}
+
+}
@@ -0,0 +1,128 @@
+package at.test.forwarder;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selects the {@link Backend} of a route the next connection is forwarded to. Ejected backends are skipped until their
+ * ejection expires, backends a connection already failed to connect to are skipped when retrying it. If all backends not
+ * yet tried are ejected, the one whose ejection ends first is tried anyway, so an outage of all backends does not turn
+ * into an outage of the forwarder once they recover.
+ */
+class LoadBalancer {
+
+	/** Set to the default {@link Policy} of all routes, defaults to {@code ROUND_ROBIN}. */
+	static final String ENVIRONMENT_VARIABLE_BALANCE = "BALANCE";
+
+	static enum Policy {
+		/** Cycle through the backends. */
+		ROUND_ROBIN,
+		/** Select the backend with the fewest connections currently forwarded. */
+		LEAST_CONNECTIONS,
+		/** Select the backend with the lowest moving average of its connect time, weighted by its connections. */
+		LATENCY
+	};
+
+	final private List<Backend> backends;
+	final private Policy policy;
+	/** Index of the backend to start searching from, advanced for every selection. */
+	private final AtomicInteger nextIndex = new AtomicInteger();
+
+	/**
+	 * @param backends to balance connections over, at least one
+	 * @param policy   to select backends with
+	 */
+	LoadBalancer(final List<Backend> backends, final Policy policy) {
+		this.backends = Collections.unmodifiableList(backends);
+		this.policy = policy;
+	}
+
+	List<Backend> getBackends() {
+		return backends;
+	}
+
+	Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Select the backend to forward the next connection to.
+	 *
+	 * @param tried backends the connection failed to connect to already
+	 * @return backend, {@code null} if all backends have been tried
+	 */
+	Backend select(final Collection<Backend> tried) {
+		final int size = backends.size();
+		final int start = Math.floorMod(nextIndex.getAndIncrement(), size);
+		final long now = System.nanoTime();
+		Backend selected = null;
+		long selectedCost = Long.MAX_VALUE;
+		for (int offset = 0; offset < size; offset++) {
+			final Backend backend = backends.get((start + offset) % size);
+			if (tried.contains(backend) || !backend.tryAcquire(now)) {
+				continue;
+			}
+			if (Policy.ROUND_ROBIN == policy) {
+				return backend;
+			}
+			final long cost = cost(backend);
+			if (cost < selectedCost) {
+				if ((selected != null) && selected.isEjected()) {
+					// Release the probe claimed, it is not going to be used
+					selected.releaseProbe();
+				}
+				selected = backend;
+				selectedCost = cost;
+			} else if (backend.isEjected()) {
+				backend.releaseProbe();
+			}
+		}
+		if (selected != null) {
+			return selected;
+		}
+		// All backends not yet tried are ejected, try the one recovering first
+		for (Backend backend : backends) {
+			if (!tried.contains(backend) && ((selected == null) || (backend.getEjectedUntil() - selected.getEjectedUntil() < 0))) {
+				selected = backend;
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * @param backend to rate
+	 * @return cost of forwarding the next connection to {@code backend}, lower is better
+	 */
+	private long cost(final Backend backend) {
+		if (Policy.LEAST_CONNECTIONS == policy) {
+			return backend.getActive();
+		}
+		// Backends not yet measured are tried first
+		return backend.getEwmaConnectNanos() * (backend.getActive() + 1);
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		for (Backend backend : backends) {
+			sb.append(sb.length() == 0 ? "" : ",").append(backend);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param name of a {@link Policy}, {@code null} for the default policy
+	 * @return policy
+	 * @throws IllegalArgumentException if {@code name} is not a policy
+	 */
+	static Policy policy(final String name) {
+		if (name != null) {
+			return Policy.valueOf(name.toUpperCase().replace('-', '_'));
+		}
+		final String defaultName = System.getProperty(ENVIRONMENT_VARIABLE_BALANCE);
+		return defaultName == null ? Policy.ROUND_ROBIN : Policy.valueOf(defaultName.toUpperCase().replace('-', '_'));
+	}
+
+}
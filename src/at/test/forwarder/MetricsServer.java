@@ -0,0 +1,239 @@
+package at.test.forwarder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * {@code HTTP} endpoint on the loopback address exporting the counters, gauges and {@link Histogram}s of all routes in the
+ * Prometheus text format at {@code /metrics}. The metrics are only read when scraped: forwarding updates the counters it
+ * updates anyway, the endpoint adds nothing to the copy loops.
+ */
+class MetricsServer {
+
+	/** Set to the local port of the metrics endpoint, defaults to 0 (no endpoint). */
+	static final String ENVIRONMENT_VARIABLE_METRICS_PORT = "METRICS_PORT";
+
+	/** Bounds of the exported histogram buckets in microseconds, powers of 4 from 16 microseconds to about 5 hours. */
+	private static final long[] BUCKET_BOUNDS_MICROS = bucketBounds();
+
+	final private HttpServer httpServer;
+	final private List<Route> routes;
+	final private ConnectionRegistry connectionRegistry;
+
+	private MetricsServer(final HttpServer httpServer, final List<Route> routes,
+			final ConnectionRegistry connectionRegistry) {
+		this.httpServer = httpServer;
+		this.routes = routes;
+		this.connectionRegistry = connectionRegistry;
+	}
+
+	/**
+	 * Start the metrics endpoint on {@code METRICS_PORT}, if set.
+	 *
+	 * @param routes             to export the metrics of
+	 * @param connectionRegistry to export the live connections of
+	 * @return started endpoint to {@link #shutdown()} on termination, {@code null} if not configured
+	 * @throws IOException if the port can't be bound
+	 */
+	static MetricsServer start(final List<Route> routes, final ConnectionRegistry connectionRegistry) throws IOException {
+		final int port;
+		try {
+			port = Integer.parseInt(System.getProperty(ENVIRONMENT_VARIABLE_METRICS_PORT));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (port <= 0) {
+			return null;
+		}
+		final HttpServer httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		final MetricsServer metricsServer = new MetricsServer(httpServer, routes, connectionRegistry);
+		httpServer.createContext("/metrics", metricsServer::handle);
+		httpServer.start();
+		System.out.println("JavaForwarder metrics on http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+				+ port + "/metrics");
+		return metricsServer;
+	}
+
+	/**
+	 * Stop the endpoint.
+	 */
+	void shutdown() {
+		httpServer.stop(0);
+	}
+
+	private void handle(final HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			final byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream outputStream = exchange.getResponseBody()) {
+				outputStream.write(body);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * @return current metrics in the Prometheus text format
+	 */
+	String scrape() {
+		final StringBuilder sb = new StringBuilder(8192);
+		header(sb, "javaforwarder_bytes_total", "counter", "Bytes forwarded.");
+		for (Route route : routes) {
+			sample(sb, "javaforwarder_bytes_total", labels(route) + ",direction=\"to_remote\"",
+					route.getBytesToRemote().sum());
+			sample(sb, "javaforwarder_bytes_total", labels(route) + ",direction=\"to_client\"",
+					route.getBytesToClient().sum());
+		}
+		header(sb, "javaforwarder_chunks_total", "counter", "Reads or datagrams forwarded.");
+		for (Route route : routes) {
+			sample(sb, "javaforwarder_chunks_total", labels(route) + ",direction=\"to_remote\"",
+					route.getChunksToRemote().sum());
+			sample(sb, "javaforwarder_chunks_total", labels(route) + ",direction=\"to_client\"",
+					route.getChunksToClient().sum());
+		}
+		header(sb, "javaforwarder_connections_started_total", "counter", "Connections or UDP sessions started.");
+		for (Route route : routes) {
+			sample(sb, "javaforwarder_connections_started_total", labels(route), route.getStarted());
+		}
+		header(sb, "javaforwarder_connections_failed_total", "counter", "Connections not established to any backend.");
+		for (Route route : routes) {
+			sample(sb, "javaforwarder_connections_failed_total", labels(route), route.getFailed());
+		}
+		header(sb, "javaforwarder_connections_active", "gauge", "Connections or UDP sessions forwarding.");
+		for (Route route : routes) {
+			sample(sb, "javaforwarder_connections_active", labels(route), route.getActive());
+		}
+		header(sb, "javaforwarder_connections_timed_out_total", "counter", "Connections closed by a timeout.");
+		for (Route route : routes) {
+			for (Route.Timeout timeout : Route.Timeout.values()) {
+				sample(sb, "javaforwarder_connections_timed_out_total",
+						labels(route) + ",reason=\"" + timeout.name().toLowerCase() + "\"", route.getTimedOut(timeout));
+			}
+		}
+		header(sb, "javaforwarder_admission_total", "counter", "Connections admitted or rejected by admission control.");
+		for (Route route : routes) {
+			final AdmissionControl admissionControl = route.getAdmissionControl();
+			if (admissionControl != null) {
+				sample(sb, "javaforwarder_admission_total", labels(route) + ",result=\"admitted\"",
+						admissionControl.getAdmitted());
+				sample(sb, "javaforwarder_admission_total", labels(route) + ",result=\"queued\"",
+						admissionControl.getQueued());
+				sample(sb, "javaforwarder_admission_total", labels(route) + ",result=\"rejected_route\"",
+						admissionControl.getRejectedRoute());
+				sample(sb, "javaforwarder_admission_total", labels(route) + ",result=\"rejected_ip\"",
+						admissionControl.getRejectedSource());
+			}
+		}
+		header(sb, "javaforwarder_pool_total", "counter", "Connections taken from the upstream pool.");
+		for (Route route : routes) {
+			final UpstreamPool upstreamPool = route.getUpstreamPool();
+			if (upstreamPool != null) {
+				sample(sb, "javaforwarder_pool_total", labels(route) + ",result=\"hit\"", upstreamPool.getHits());
+				sample(sb, "javaforwarder_pool_total", labels(route) + ",result=\"miss\"", upstreamPool.getMisses());
+				sample(sb, "javaforwarder_pool_total", labels(route) + ",result=\"stale\"", upstreamPool.getStale());
+			}
+		}
+		header(sb, "javaforwarder_backend_active", "gauge", "Connections forwarded to a backend.");
+		for (Route route : routes) {
+			for (Backend backend : route.getLoadBalancer().getBackends()) {
+				sample(sb, "javaforwarder_backend_active", labels(route, backend), backend.getActive());
+			}
+		}
+		header(sb, "javaforwarder_backend_ejected", "gauge", "1 while a backend is ejected.");
+		for (Route route : routes) {
+			for (Backend backend : route.getLoadBalancer().getBackends()) {
+				sample(sb, "javaforwarder_backend_ejected", labels(route, backend), backend.isEjected() ? 1 : 0);
+			}
+		}
+		header(sb, "javaforwarder_backend_connect_seconds", "histogram", "Time to connect to a backend.");
+		for (Route route : routes) {
+			for (Backend backend : route.getLoadBalancer().getBackends()) {
+				histogram(sb, "javaforwarder_backend_connect_seconds", labels(route, backend), backend.getConnectTimes());
+			}
+		}
+		header(sb, "javaforwarder_first_byte_seconds", "histogram",
+				"Time from accepting a TCP connection to forwarding the first byte to its client.");
+		for (Route route : routes) {
+			if (JavaForwarder.Protocol.TCP == route.getProtocol()) {
+				histogram(sb, "javaforwarder_first_byte_seconds", labels(route), route.getFirstByteTimes());
+			}
+		}
+		header(sb, "javaforwarder_connection_duration_seconds", "histogram", "Time a TCP connection was open.");
+		for (Route route : routes) {
+			if (JavaForwarder.Protocol.TCP == route.getProtocol()) {
+				histogram(sb, "javaforwarder_connection_duration_seconds", labels(route), route.getDurations());
+			}
+		}
+		header(sb, "javaforwarder_live_connections", "gauge", "TCP connections registered.");
+		sample(sb, "javaforwarder_live_connections", null, connectionRegistry.size());
+		header(sb, "javaforwarder_threads", "gauge", "Live threads of the JVM.");
+		sample(sb, "javaforwarder_threads", null, ManagementFactory.getThreadMXBean().getThreadCount());
+		if (JavaForwarder.ForwardingPath.INSPECT == JavaForwarder.forwardingPath()) {
+			// Only with inspected data, the pipeline starts its writer thread when first used
+			header(sb, "javaforwarder_dump_dropped_bytes_total", "counter",
+					"Bytes missing in the data dump as the writer could not keep up.");
+			sample(sb, "javaforwarder_dump_dropped_bytes_total", null, DataDumpPipeline.shared().getDroppedBytes());
+		}
+		return sb.toString();
+	}
+
+	private static void header(final StringBuilder sb, final String name, final String type, final String help) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(final StringBuilder sb, final String name, final String labels, final long value) {
+		sb.append(name);
+		if (labels != null) {
+			sb.append('{').append(labels).append('}');
+		}
+		sb.append(' ').append(value).append('\n');
+	}
+
+	private static void histogram(final StringBuilder sb, final String name, final String labels,
+			final Histogram histogram) {
+		for (long bound : BUCKET_BOUNDS_MICROS) {
+			sb.append(name).append("_bucket{").append(labels).append(",le=\"").append(bound / 1e6).append("\"} ")
+					.append(histogram.getCountBelow(bound)).append('\n');
+		}
+		final long count = histogram.getCount();
+		sb.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+		sb.append(name).append("_sum{").append(labels).append("} ").append(histogram.getSumMicros() / 1e6).append('\n');
+		sb.append(name).append("_count{").append(labels).append("} ").append(count).append('\n');
+	}
+
+	private static String labels(final Route route) {
+		return "protocol=\"" + route.getProtocol().name().toLowerCase() + "\",port=\"" + route.getLocalPort() + "\"";
+	}
+
+	private static String labels(final Route route, final Backend backend) {
+		return labels(route) + ",backend=\"" + escape(backend.toString()) + "\"";
+	}
+
+	private static String escape(final String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static long[] bucketBounds() {
+		final long[] bounds = new long[16];
+		for (int index = 0; index < bounds.length; index++) {
+			bounds[index] = 16L << (2 * index);
+		}
+		return bounds;
+	}
+
+}
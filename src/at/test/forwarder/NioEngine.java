@@ -0,0 +1,741 @@
+package at.test.forwarder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NioEngine forwards {@code TCP} data with a small fixed pool of {@link Selector} event loops (one per core by default)
+ * instead of starting a ClientThread and two ForwardThreads for every accepted connection. Each connection is a pair of
+ * non-blocking {@link SocketChannel}s owned by a single event loop, so no locking is required while forwarding. As with
+ * the thread per connection engine, either side closing or failing tears down both sockets of the pair.
+ */
+class NioEngine {
+
+	/** Flag set to coalesce all data immediately available into a single write. */
+	private final boolean coalesce = JavaForwarder.coalesceNanos() > 0;
+	/** Event loops connections are distributed to in round robin order, the first {@code ACCEPTORS} also accept them. */
+	private final EventLoop[] eventLoops;
+	/** Index of event loop the next accepted connection will be assigned to. */
+	private final AtomicInteger nextEventLoop = new AtomicInteger();
+	/** Registry of the live connections of all engines. */
+	private final ConnectionRegistry connectionRegistry;
+
+	/**
+	 * Create the event loops, but do not start them yet.
+	 *
+	 * @param eventLoopCount     number of {@link Selector} event loops to forward data with
+	 * @param connectionRegistry to register connections with while they are live
+	 * @throws IOException if a {@link Selector} can't be opened
+	 */
+	NioEngine(final int eventLoopCount, final ConnectionRegistry connectionRegistry) throws IOException {
+		this.connectionRegistry = connectionRegistry;
+		eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+		for (int index = 0; index < eventLoops.length; index++) {
+			eventLoops[index] = new EventLoop(index);
+		}
+	}
+
+	/**
+	 * Start all event loops.
+	 */
+	void start() {
+		for (EventLoop eventLoop : eventLoops) {
+			eventLoop.start();
+		}
+	}
+
+	/**
+	 * Listen on {@code localhost:localPort} of {@code route} and forward all accepted connections to its
+	 * {@code remoteHost:remotePort}. The listening socket is registered with {@code ACCEPTORS} event loops, with
+	 * {@code REUSE_PORT} each of them binds its own socket.
+	 *
+	 * @param route to forward
+	 * @throws IOException if {@code localPort} can't be bound
+	 */
+	void listen(final Route route) throws IOException {
+		final int localPort = route.getLocalPort();
+		ServerSocketChannel serverSocketChannel = null;
+		for (int index = 0; index < Math.min(Acceptor.acceptors(), eventLoops.length); index++) {
+			if ((serverSocketChannel == null) || Acceptor.isReusePort()) {
+				serverSocketChannel = Acceptor.open(localPort);
+				serverSocketChannel.configureBlocking(false);
+			}
+			final Listener listener = new Listener(serverSocketChannel, route);
+			final EventLoop eventLoop = eventLoops[index];
+			eventLoop.execute(() -> {
+				try {
+					listener.serverSocketChannel.register(eventLoop.selector, SelectionKey.OP_ACCEPT, listener);
+				} catch (IOException e) {
+					System.err.println("JavaForwarder failed to listen on local port " + localPort + ": " + e);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Close all listening sockets, so no more connections are accepted, e.g. while draining. Connections already accepted
+	 * or queued by the kernel are still forwarded.
+	 */
+	void stopAccepting() {
+		closeListeners(null);
+	}
+
+	/**
+	 * Close the listening sockets of {@code route}, e.g. when it is removed. Its connections already accepted are still
+	 * forwarded.
+	 *
+	 * @param route to stop accepting connections for
+	 */
+	void unlisten(final Route route) {
+		closeListeners(route);
+	}
+
+	/**
+	 * Close listening sockets on all event loops and wait for it.
+	 *
+	 * @param route to close the listening sockets of, {@code null} for all
+	 */
+	private void closeListeners(final Route route) {
+		final CountDownLatch closed = new CountDownLatch(eventLoops.length);
+		for (EventLoop eventLoop : eventLoops) {
+			eventLoop.execute(() -> {
+				eventLoop.closeListeners(route, true);
+				closed.countDown();
+			});
+		}
+		try {
+			closed.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stop all event loops, closing all listening sockets and all forwarded connections.
+	 */
+	void shutdown() {
+		for (EventLoop eventLoop : eventLoops) {
+			eventLoop.shutdown();
+		}
+		for (EventLoop eventLoop : eventLoops) {
+			try {
+				eventLoop.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Select the event loop to assign the next accepted connection to.
+	 *
+	 * @return event loop
+	 */
+	private EventLoop nextEventLoop() {
+		return eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+	}
+
+	/**
+	 * Listening {@link ServerSocketChannel} and the route its accepted connections are forwarded by.
+	 */
+	private static class Listener {
+
+		final private ServerSocketChannel serverSocketChannel;
+		final private Route route;
+
+		Listener(final ServerSocketChannel serverSocketChannel, final Route route) {
+			this.serverSocketChannel = serverSocketChannel;
+			this.route = route;
+		}
+
+	}
+
+	/**
+	 * Single threaded {@link Selector} loop. All state of the connections registered with an event loop is only accessed
+	 * from its thread, other threads hand over work with {@link #execute(Runnable)}.
+	 */
+	private class EventLoop extends Thread {
+
+		final private Selector selector;
+		/** Tasks submitted by other threads to run on this event loop. */
+		final private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		/** Connections currently owned by this event loop. */
+		final private Set<Connection> connections = new HashSet<>();
+		/** Endpoints holding data back for a rate limit, the first to resume first. */
+		final private Queue<Endpoint> throttled = new PriorityQueue<>(
+				(endpoint, other) -> Long.signum(endpoint.resumeAt - other.resumeAt));
+		/** Flag cleared to terminate the event loop. */
+		private volatile boolean running = true;
+
+		EventLoop(final int index) throws IOException {
+			super("JavaForwarder-EventLoop-" + index);
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * Run {@code task} on the event loop thread.
+		 *
+		 * @param task to run
+		 */
+		void execute(final Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+
+		/**
+		 * Resume forwarding the data of {@code endpoint} after {@code delayNanos}, called on the event loop thread.
+		 *
+		 * @param endpoint   holding data back
+		 * @param delayNanos nanoseconds to hold the data back
+		 */
+		void throttle(final Endpoint endpoint, final long delayNanos) {
+			endpoint.resumeAt = System.nanoTime() + delayNanos;
+			throttled.add(endpoint);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					final Endpoint next = throttled.peek();
+					if (next == null) {
+						selector.select();
+					} else {
+						// Wake up in time to resume the next endpoint, select(0) would block
+						selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.resumeAt - System.nanoTime())));
+					}
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						try {
+							task.run();
+						} catch (RuntimeException e) {
+							System.err.println("JavaForwarder event loop task failed: " + e);
+							e.printStackTrace();
+						}
+					}
+					final long now = System.nanoTime();
+					while (!throttled.isEmpty() && (throttled.peek().resumeAt - now <= 0)) {
+						final Endpoint endpoint = throttled.poll();
+						try {
+							endpoint.resume();
+						} catch (RuntimeException e) {
+							failed(endpoint, e);
+						}
+					}
+					Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+					while (iterator.hasNext()) {
+						SelectionKey selectionKey = iterator.next();
+						iterator.remove();
+						if (!selectionKey.isValid()) {
+							continue;
+						}
+						try {
+							if (selectionKey.attachment() instanceof Listener) {
+								accept((Listener) selectionKey.attachment());
+							} else {
+								((Endpoint) selectionKey.attachment()).handle(selectionKey);
+							}
+						} catch (RuntimeException e) {
+							if (selectionKey.attachment() instanceof Endpoint) {
+								failed((Endpoint) selectionKey.attachment(), e);
+							} else {
+								System.err.println("JavaForwarder failed to accept client connection: " + e);
+								e.printStackTrace();
+							}
+						}
+					}
+				}
+			} catch (IOException | ClosedSelectorException e) {
+				e.printStackTrace();
+			}
+			// Terminate everything owned by this event loop
+			for (Connection connection : new ArrayList<>(connections)) {
+				connection.connectionBroken();
+			}
+			closeListeners(null, false);
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+
+		/**
+		 * Close the connection of {@code endpoint} after an unexpected failure handling it, so the other connections of the
+		 * event loop keep being forwarded.
+		 *
+		 * @param endpoint that failed
+		 * @param e        failure
+		 */
+		private void failed(final Endpoint endpoint, final RuntimeException e) {
+			System.err.println("JavaForwarder TCP connection failed: " + e);
+			e.printStackTrace();
+			try {
+				endpoint.connection.connectionBroken();
+			} catch (RuntimeException ce) {
+				System.err.println("JavaForwarder failed to close TCP connection: " + ce);
+			}
+		}
+
+		/**
+		 * Close the listening sockets registered with this event loop, called on the event loop thread. Closing a listening
+		 * socket resets the connections the kernel queued for it, with {@code drain} these are accepted first, so with
+		 * {@code REUSE_PORT} only handshakes completing in between are lost while another process takes over the port.
+		 *
+		 * @param route to close the listening sockets of, {@code null} for all
+		 * @param drain {@code true} to accept the queued connections before closing
+		 */
+		private void closeListeners(final Route route, final boolean drain) {
+			for (SelectionKey selectionKey : selector.keys()) {
+				if ((selectionKey.attachment() instanceof Listener)
+						&& ((route == null) || (((Listener) selectionKey.attachment()).route == route))) {
+					if (drain && selectionKey.isValid()) {
+						accept((Listener) selectionKey.attachment());
+					}
+					selectionKey.cancel();
+					try {
+						selectionKey.channel().close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+
+		/**
+		 * Accept all pending connections of {@code listener} and hand them over to the event loops.
+		 *
+		 * @param listener with pending connections
+		 */
+		private void accept(final Listener listener) {
+			while (true) {
+				final SocketChannel clientChannel;
+				try {
+					clientChannel = listener.serverSocketChannel.accept();
+				} catch (IOException e) {
+					System.err.println("JavaForwarder failed to accept client connection: " + e);
+					return;
+				}
+				if (clientChannel == null) {
+					return;
+				}
+				// Event loops never wait for admission, connections over the limits are rejected right away
+				final AdmissionControl admissionControl = listener.route.getAdmissionControl();
+				if ((admissionControl != null) && !admissionControl.tryAcquire(clientChannel.socket().getInetAddress())) {
+					AdmissionControl.reject(clientChannel);
+					continue;
+				}
+				System.out.println("JavaForwarder accepted client connection ...");
+				final EventLoop eventLoop = nextEventLoop();
+				eventLoop.execute(() -> eventLoop.connect(clientChannel, listener.route));
+			}
+		}
+
+		/**
+		 * Establish a non-blocking connection to the destination server for an accepted client connection.
+		 *
+		 * @param clientChannel accepted client connection
+		 * @param route         to connect to the destination of
+		 */
+		private void connect(final SocketChannel clientChannel, final Route route) {
+			// Registered first, so a failure below removes it from the registry and releases its admission
+			final Connection connection = new Connection(this, route, clientChannel);
+			connections.add(connection);
+			try {
+				clientChannel.configureBlocking(false);
+				// Turn on keep-alive for the client socket, the server socket is set up by Connection.connect()
+				clientChannel.socket().setKeepAlive(true);
+				JavaForwarder.configureTcpNoDelay(clientChannel.socket());
+				connection.client.selectionKey = clientChannel.register(selector, 0, connection.client);
+				connection.connect();
+			} catch (IOException e) {
+				System.err.println("JavaForwarder failed to initiate TCP connection: " + route + ": " + e);
+				route.failed();
+				connection.connectionBroken();
+			}
+		}
+
+	}
+
+	/**
+	 * Pair of client and server {@link SocketChannel}s forwarding data in both directions.
+	 */
+	private class Connection {
+
+		final private EventLoop eventLoop;
+		final private Route route;
+		final private Endpoint client;
+		final private Endpoint server;
+		/** Backend being connected to or forwarded to. */
+		private Backend backend;
+		/** Backends that failed to connect, skipped when retrying. */
+		private final List<Backend> tried = new ArrayList<>(1);
+		/** {@link System#nanoTime()} the connect to {@code backend} started at. */
+		private long connectStart;
+		/** Flag set if the server channel was taken from the route's {@link UpstreamPool} instead of connecting. */
+		private boolean pooled = false;
+		/** Flag set while forwarding is active. */
+		private boolean forwardingActive = false;
+		/** Flag set once both channels have been closed. */
+		private boolean closed = false;
+		/** Entry of the connection in the {@link ConnectionRegistry}, closing it on the event loop. */
+		final private ConnectionRegistry.Entry registryEntry;
+
+		Connection(final EventLoop eventLoop, final Route route, final SocketChannel clientChannel) {
+			this.eventLoop = eventLoop;
+			this.route = route;
+			this.registryEntry = connectionRegistry.register(route,
+					(InetSocketAddress) clientChannel.socket().getRemoteSocketAddress(),
+					() -> eventLoop.execute(this::connectionBroken));
+			this.client = new Endpoint(this, clientChannel, registryEntry.getToRemote());
+			this.server = new Endpoint(this, null, registryEntry.getToClient());
+			this.client.peer = server;
+			this.server.peer = client;
+		}
+
+		/**
+		 * Start a non-blocking connect to the next backend selected by the route's {@link LoadBalancer}, closing both
+		 * channels if all backends have been tried. A connection idle in the route's {@link UpstreamPool} is used instead
+		 * of connecting, if there is one.
+		 */
+		void connect() {
+			final UpstreamPool upstreamPool = route.getUpstreamPool();
+			while ((backend = route.getLoadBalancer().select(tried)) != null) {
+				tried.add(backend);
+				final SocketChannel pooledChannel = upstreamPool == null ? null : upstreamPool.take(backend);
+				if (pooledChannel != null) {
+					try {
+						server.channel = pooledChannel;
+						server.selectionKey = pooledChannel.register(eventLoop.selector, 0, server);
+						pooled = true;
+						connected();
+						return;
+					} catch (IOException e) {
+						closeQuietly(pooledChannel);
+						server.channel = null;
+					}
+				}
+				connectStart = System.nanoTime();
+				try {
+					final SocketChannel serverChannel = SocketChannel.open();
+					server.channel = serverChannel;
+					serverChannel.configureBlocking(false);
+					// Turn on keep-alive for the server socket
+					serverChannel.socket().setKeepAlive(true);
+					JavaForwarder.configureTcpNoDelay(serverChannel.socket());
+					server.selectionKey = serverChannel.register(eventLoop.selector, SelectionKey.OP_CONNECT, server);
+					if (serverChannel.connect(backend.getAddress())) {
+						connected();
+					}
+					return;
+				} catch (IOException | UnresolvedAddressException e) {
+					connectFailed(e);
+				}
+			}
+			System.err.println("JavaForwarder failed to connect to initiate TCP connection to any backend: " + route);
+			route.failed();
+			connectionBroken();
+		}
+
+		/**
+		 * Called if the connect to {@code backend} failed, to close the server channel so the next backend can be tried.
+		 *
+		 * @param e reason of the failure
+		 */
+		void connectFailed(final Exception e) {
+			System.err.println("JavaForwarder failed to connect to initiate TCP connection: " + backend + ": " + e);
+			backend.failed();
+			backend = null;
+			if (server.selectionKey != null) {
+				server.selectionKey.cancel();
+				server.selectionKey = null;
+			}
+			closeQuietly(server.channel);
+			server.channel = null;
+		}
+
+		/**
+		 * Called once the connection to the destination server is established to start forwarding in both directions.
+		 */
+		void connected() {
+			backend.started(pooled ? -1 : System.nanoTime() - connectStart);
+			forwardingActive = true;
+			route.started();
+			registryEntry.forwarding(backend);
+			client.connected();
+			server.connected();
+			client.selectionKey.interestOps(SelectionKey.OP_READ);
+			server.selectionKey.interestOps(SelectionKey.OP_READ);
+			System.out.println("JavaForwarder TCP connection: " + describe() + " started ("
+					+ (client.dataDumpManager == null ? JavaForwarder.ForwardingPath.SPLICE
+							: JavaForwarder.ForwardingPath.INSPECT)
+					+ ")");
+		}
+
+		/**
+		 * Called when either channel is closed or fails to close both client and server channels, like
+		 * ClientThread.connectionBroken() does for the thread per connection engine.
+		 */
+		void connectionBroken() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			eventLoop.connections.remove(this);
+			connectionRegistry.remove(registryEntry);
+			final String description = forwardingActive ? describe() : null;
+			client.close();
+			server.close();
+			if (forwardingActive) {
+				backend.stopped();
+			}
+			if (forwardingActive) {
+				System.out.println("JavaForwarder TCP connection: " + description + " stopped");
+				forwardingActive = false;
+				route.stopped();
+			}
+		}
+
+		private String describe() {
+			return client.channel.socket().getInetAddress().getHostAddress() + ":" + client.channel.socket().getPort()
+					+ " <--> " + server.channel.socket().getInetAddress().getHostAddress() + ":"
+					+ server.channel.socket().getPort();
+		}
+
+	}
+
+	/**
+	 * One side of a {@link Connection}. Data read from {@code channel} is buffered in {@code buffer} until it has been
+	 * written to the {@code peer}'s channel, reading is suspended while the peer can't keep up. The buffer is taken from the
+	 * shared {@link BufferPool} for each read and returned as soon as it has been written, so idle connections hold no
+	 * buffers.
+	 */
+	private class Endpoint {
+
+		final private Connection connection;
+		/** Channel of the endpoint, for the server endpoint {@code null} while no connect is pending. */
+		private SocketChannel channel;
+		/** Counter of the bytes read from {@code channel}. */
+		final private ConnectionRegistry.Traffic bytesForwarded;
+		/** Data read from {@code channel} not yet written to {@code peer}. */
+		private ByteBuffer buffer;
+		/** Source of {@code buffer}, sized by the history of bytes read. */
+		final private AdaptiveBuffer adaptiveBuffer = new AdaptiveBuffer(BufferPool.shared());
+		/** Number of bytes of the last read, still being written to {@code peer} while {@code buffer} is not empty. */
+		private int lastBytesRead;
+		/** {@link System#nanoTime()} to resume forwarding {@code buffer} at while it is held back for a rate limit. */
+		private long resumeAt;
+		private SelectionKey selectionKey;
+		private Endpoint peer;
+		/** Data dump of data read from {@code channel}, {@code null} if dumping is not active. */
+		private JavaForwarder.DataDumpManager dataDumpManager;
+		/** Copy of data read from {@code channel} to record in the data dump. */
+		private byte[] dumpBuffer;
+		private LocalDateTime localDateTimeForward;
+
+		Endpoint(final Connection connection, final SocketChannel channel,
+				final ConnectionRegistry.Traffic bytesForwarded) {
+			this.connection = connection;
+			this.channel = channel;
+			this.bytesForwarded = bytesForwarded;
+		}
+
+		void connected() {
+			if (JavaForwarder.ForwardingPath.INSPECT == JavaForwarder.forwardingPath()) {
+				dataDumpManager = new JavaForwarder.DataDumpManager(connection.eventLoop.getId(), channel.socket(),
+						peer.channel.socket());
+				bytesForwarded.setDataDumpManager(dataDumpManager);
+			}
+		}
+
+		/**
+		 * Process readiness of {@code channel}.
+		 *
+		 * @param selectionKey of {@code channel}
+		 */
+		void handle(final SelectionKey selectionKey) {
+			try {
+				if (selectionKey.isConnectable()) {
+					if (channel.finishConnect()) {
+						connection.connected();
+					}
+					return;
+				}
+				if (selectionKey.isWritable()) {
+					// Continue writing data buffered by peer
+					channel.write(peer.buffer);
+					if (!peer.buffer.hasRemaining()) {
+						peer.forwarded();
+						selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_WRITE);
+						peer.selectionKey.interestOps(peer.selectionKey.interestOps() | SelectionKey.OP_READ);
+					}
+				}
+				if (selectionKey.isValid() && selectionKey.isReadable()) {
+					read();
+				}
+			} catch (IOException e) {
+				if (!connection.forwardingActive && !connection.closed && (connection.backend != null)) {
+					// Connect failed --> try the next backend
+					connection.connectFailed(e);
+					connection.connect();
+					return;
+				}
+				// Read/write failed --> connection is broken
+				connection.connectionBroken();
+			}
+		}
+
+		private void read() throws IOException {
+			buffer = adaptiveBuffer.buffer();
+			int bytesRead = channel.read(buffer);
+			if (bytesRead == 0) {
+				adaptiveBuffer.release();
+				buffer = null;
+				return;
+			}
+			if ((bytesRead > 0) && coalesce) {
+				// Coalesce everything available without waiting, an event loop must not block
+				int bytesCoalesced;
+				while (buffer.hasRemaining() && ((bytesCoalesced = channel.read(buffer)) > 0)) {
+					bytesRead += bytesCoalesced;
+				}
+			}
+			record(bytesRead);
+			// If end of stream is reached --> close both sides
+			if (bytesRead == -1) {
+				connection.connectionBroken();
+				return;
+			}
+			bytesForwarded.add(bytesRead);
+			lastBytesRead = bytesRead;
+			buffer.flip();
+			final long delayNanos = bytesForwarded.throttle(bytesRead);
+			if (delayNanos > 0) {
+				// Hold the data back for the rate limit, without reading more meanwhile
+				selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+				connection.eventLoop.throttle(this, delayNanos);
+				return;
+			}
+			write();
+		}
+
+		/**
+		 * Forward the data read, if peer can't take all of it stop reading until it can.
+		 *
+		 * @throws IOException if writing fails
+		 */
+		private void write() throws IOException {
+			peer.channel.write(buffer);
+			if (buffer.hasRemaining()) {
+				bytesForwarded.writeBlocked();
+				selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+				peer.selectionKey.interestOps(peer.selectionKey.interestOps() | SelectionKey.OP_WRITE);
+			} else {
+				forwarded();
+			}
+		}
+
+		/**
+		 * Forward the data held back for a rate limit and read again once it has been written.
+		 */
+		void resume() {
+			if (connection.closed || (buffer == null)) {
+				return;
+			}
+			try {
+				write();
+				if (buffer == null) {
+					selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+				}
+			} catch (IOException e) {
+				// Write failed --> connection is broken
+				connection.connectionBroken();
+			}
+		}
+
+		/**
+		 * Called once all data in {@code buffer} has been written to {@code peer}, to adapt the buffer size to the last read
+		 * and to return the buffer to the pool.
+		 */
+		private void forwarded() {
+			bytesForwarded.writeDone();
+			adaptiveBuffer.update(lastBytesRead);
+			adaptiveBuffer.release();
+			buffer = null;
+			lastBytesRead = 0;
+		}
+
+		/**
+		 * Record data just read into {@code buffer} in the data dump, if dumping is active.
+		 *
+		 * @param bytesRead number of bytes read, {@code -1} at end of stream
+		 */
+		private void record(final int bytesRead) {
+			if (dataDumpManager == null) {
+				return;
+			}
+			if (localDateTimeForward == null) {
+				localDateTimeForward = LocalDateTime.now();
+			}
+			if ((dumpBuffer == null) || (dumpBuffer.length != buffer.capacity())) {
+				dumpBuffer = new byte[buffer.capacity()];
+			}
+			if (bytesRead > 0) {
+				// Reading only starts with an empty buffer, so the data read starts at its beginning
+				final ByteBuffer readBuffer = buffer.duplicate();
+				readBuffer.flip();
+				readBuffer.get(dumpBuffer, 0, bytesRead);
+			}
+			dataDumpManager.record(localDateTimeForward, dumpBuffer, bytesRead);
+			if (bytesRead < buffer.capacity()) {
+				localDateTimeForward = null;
+			}
+		}
+
+		void close() {
+			if (selectionKey != null) {
+				selectionKey.cancel();
+			}
+			closeQuietly(channel);
+			adaptiveBuffer.release();
+			buffer = null;
+			if (dataDumpManager != null) {
+				dataDumpManager.logDataDump();
+				dataDumpManager = null;
+			}
+		}
+
+	}
+
+	private static void closeQuietly(final SocketChannel channel) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+}
@@ -0,0 +1,461 @@
+package at.test.forwarder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Entry of the route table, forwarding {@code IP} data received on {@code localhost:localPort} to one or more backends
+ * {@code remoteHost:remotePort} selected by a {@link LoadBalancer}. All routes of a process share the threads and
+ * buffers forwarding their data, but each route keeps its own counters. The bytes forwarded are counted with
+ * {@link LongAdder}s, as many threads update them concurrently for every read.
+ */
+class Route {
+
+	/** Set to the path of a route table file to forward many routes with one process. */
+	static final String ENVIRONMENT_VARIABLE_ROUTES = "ROUTES";
+	/** Set to the number of seconds a {@code TCP} connection may forward no data before it is closed, defaults to 0 (never). */
+	static final String ENVIRONMENT_VARIABLE_IDLE_SECONDS = "IDLE_SECONDS";
+	/** Set to the number of seconds a backend may not answer data sent by the client before it is closed, defaults to 0. */
+	static final String ENVIRONMENT_VARIABLE_READ_TIMEOUT_SECONDS = "READ_TIMEOUT_SECONDS";
+	/** Set to the number of seconds a write may be blocked by a peer not reading before it is closed, defaults to 0. */
+	static final String ENVIRONMENT_VARIABLE_WRITE_STALL_SECONDS = "WRITE_STALL_SECONDS";
+
+	/** Set to the bytes per second all {@code TCP} connections of a route may forward in each direction, e.g. 10M. */
+	static final String ENVIRONMENT_VARIABLE_RATE = "RATE";
+	/** Set to the bytes per second a single {@code TCP} connection may forward in each direction, e.g. 1M. */
+	static final String ENVIRONMENT_VARIABLE_CONNECTION_RATE = "CONNECTION_RATE";
+	/** Set to the bytes forwarded without limit after being idle, defaults to a fifth of the rate, at least 64K. */
+	static final String ENVIRONMENT_VARIABLE_RATE_BURST = "RATE_BURST";
+
+	/** Reasons a {@code TCP} connection is timed out for, each configured by a route option or a property. */
+	static enum Timeout {
+		/** No data forwarded in either direction. */
+		IDLE("idle_timeout", ENVIRONMENT_VARIABLE_IDLE_SECONDS),
+		/** Data sent by the client not answered by the backend. */
+		READ("read_timeout", ENVIRONMENT_VARIABLE_READ_TIMEOUT_SECONDS),
+		/** Write blocked, the peer does not read. */
+		WRITE_STALL("write_stall_timeout", ENVIRONMENT_VARIABLE_WRITE_STALL_SECONDS);
+
+		final private String option;
+		final private String property;
+
+		private Timeout(final String option, final String property) {
+			this.option = option;
+			this.property = property;
+		}
+	};
+
+	final private JavaForwarder.Protocol protocol;
+	final private int localPort;
+	final private LoadBalancer loadBalancer;
+	/** Options of the route table entry, e.g. {@code balance=LEAST_CONNECTIONS}. */
+	final private Map<String, String> options;
+	/** Pool of idle connections to the backends, {@code null} if connections are not pooled. */
+	final private UpstreamPool upstreamPool;
+	/** Limit of the concurrent connections, {@code null} if not limited. */
+	final private AdmissionControl admissionControl;
+	/** Nanoseconds of each {@link Timeout}, {@code 0} if not timed out. */
+	final private long[] timeoutNanos = new long[Timeout.values().length];
+	/** Limit of the bytes forwarded from clients to the backends, {@code null} if not limited. */
+	final private TokenBucket rateToRemote;
+	/** Limit of the bytes forwarded from the backends to clients, {@code null} if not limited. */
+	final private TokenBucket rateToClient;
+	/** Bytes per second of each direction of each connection, {@code 0} if not limited. */
+	final private long connectionRate;
+	/** Burst of the route and connection limits, {@code 0} for the default. */
+	final private long rateBurst;
+
+	/** Number of connections or {@code UDP} sessions started. */
+	private final AtomicLong started = new AtomicLong();
+	/** Number of connections or {@code UDP} sessions currently forwarded. */
+	private final AtomicInteger active = new AtomicInteger();
+	/** Number of connections that could not be established to any backend. */
+	private final AtomicLong failed = new AtomicLong();
+	/** Number of bytes forwarded from clients to the backends. */
+	private final LongAdder bytesToRemote = new LongAdder();
+	/** Number of bytes forwarded from the backends to clients. */
+	private final LongAdder bytesToClient = new LongAdder();
+	/** Number of reads or datagrams forwarded from clients to the backends. */
+	private final LongAdder chunksToRemote = new LongAdder();
+	/** Number of reads or datagrams forwarded from the backends to clients. */
+	private final LongAdder chunksToClient = new LongAdder();
+	/** Distribution of the times from accepting a connection to forwarding the first byte to its client. */
+	private final Histogram firstByteTimes = new Histogram();
+	/** Distribution of the times connections were open. */
+	private final Histogram durations = new Histogram();
+	/** Number of connections closed by each {@link Timeout}. */
+	private final AtomicLongArray timedOut = new AtomicLongArray(Timeout.values().length);
+
+	/**
+	 * Create a route to a single backend.
+	 * 
+	 * @param protocol   of {@code IP} data to forward
+	 * @param localPort  port to receive data on
+	 * @param remoteHost hostname or IP-address of server data will be forwarded to
+	 * @param remotePort port of server data will be forwarded to
+	 */
+	Route(final JavaForwarder.Protocol protocol, final int localPort, final String remoteHost, final int remotePort) {
+		this(protocol, localPort,
+				new LoadBalancer(Collections.singletonList(new Backend(remoteHost, remotePort)), LoadBalancer.policy(null)),
+				Collections.<String, String>emptyMap());
+	}
+
+	/**
+	 * @param protocol     of {@code IP} data to forward
+	 * @param localPort    port to receive data on
+	 * @param loadBalancer selecting the backend data will be forwarded to
+	 * @param options      of the route table entry
+	 */
+	Route(final JavaForwarder.Protocol protocol, final int localPort, final LoadBalancer loadBalancer,
+			final Map<String, String> options) {
+		this.protocol = protocol;
+		this.localPort = localPort;
+		this.loadBalancer = loadBalancer;
+		this.options = options;
+		this.upstreamPool = UpstreamPool.create(this);
+		this.admissionControl = JavaForwarder.Protocol.TCP == protocol
+				? AdmissionControl.create(setting("max_connections", AdmissionControl.ENVIRONMENT_VARIABLE_MAX_CONNECTIONS),
+						setting("max_connections_per_ip", AdmissionControl.ENVIRONMENT_VARIABLE_MAX_CONNECTIONS_PER_IP),
+						setting("admission_wait", AdmissionControl.ENVIRONMENT_VARIABLE_ADMISSION_WAIT_MILLIS))
+				: null;
+		for (Timeout timeout : Timeout.values()) {
+			final String seconds = setting(timeout.option, timeout.property);
+			timeoutNanos[timeout.ordinal()] = seconds == null ? 0 : TimeUnit.SECONDS.toNanos(Long.parseLong(seconds));
+		}
+		final long rate = parseBytes(setting("rate", ENVIRONMENT_VARIABLE_RATE));
+		this.connectionRate = parseBytes(setting("connection_rate", ENVIRONMENT_VARIABLE_CONNECTION_RATE));
+		this.rateBurst = parseBytes(setting("burst", ENVIRONMENT_VARIABLE_RATE_BURST));
+		this.rateToRemote = rate > 0 ? new TokenBucket(rate, burst(rate)) : null;
+		this.rateToClient = rate > 0 ? new TokenBucket(rate, burst(rate)) : null;
+	}
+
+	/**
+	 * Load a route table, one route per line in the format
+	 * {@code protocol localPort remoteHost:remotePort[,remoteHost:remotePort...] [option=value...]}, e.g.
+	 * {@code TCP 8888 app1:9080,app2:9080 balance=LEAST_CONNECTIONS}. Empty lines and lines starting with {@code #} are
+	 * ignored, {@code IPv6} addresses are written in brackets, e.g. {@code [::1]:9080}. Supported options:
+	 * <ul>
+	 * <li>{@code balance} ... {@link LoadBalancer.Policy} selecting the backend of each connection</li>
+	 * <li>{@code pool_min_idle} ... idle connections kept per backend by the {@link UpstreamPool}, {@code 0} for none</li>
+	 * <li>{@code pool_max_idle} ... maximum idle connections per backend while the pool is drained</li>
+	 * <li>{@code idle_timeout}, {@code read_timeout}, {@code write_stall_timeout} ... seconds of each {@link Timeout}</li>
+	 * <li>{@code rate}, {@code connection_rate} ... bytes per second of each direction of the route and of each of its
+	 * connections, with an optional suffix {@code K}, {@code M} or {@code G}</li>
+	 * <li>{@code burst} ... bytes forwarded without limit after being idle</li>
+	 * <li>{@code max_connections}, {@code max_connections_per_ip} ... concurrent {@code TCP} connections of the route and
+	 * per client address, see {@link AdmissionControl}</li>
+	 * <li>{@code admission_wait} ... milliseconds a connection over {@code max_connections} waits to be admitted</li>
+	 * </ul>
+	 *
+	 * @param path of the route table file
+	 * @return routes in the order of the file
+	 * @throws IOException if the file can't be read or contains an invalid route
+	 */
+	static List<Route> load(final Path path) throws IOException {
+		final List<Route> routes = new ArrayList<>();
+		int lineNumber = 0;
+		for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			try {
+				routes.add(parse(line));
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Invalid route in " + path + " line " + lineNumber + ": " + line, e);
+			}
+		}
+		if (routes.isEmpty()) {
+			throw new IOException("No routes in " + path);
+		}
+		return routes;
+	}
+
+	/**
+	 * Parse a route in the format of the route table.
+	 *
+	 * @param line route, e.g. {@code TCP 8888 localhost:9080}
+	 * @return route
+	 * @throws IllegalArgumentException if {@code line} is not a valid route
+	 */
+	static Route parse(final String line) {
+		final String[] fields = line.trim().split("\\s+");
+		if (fields.length < 3) {
+			throw new IllegalArgumentException("Expected: protocol localPort remoteHost:remotePort");
+		}
+		final JavaForwarder.Protocol protocol = JavaForwarder.Protocol.valueOf(fields[0].toUpperCase());
+		final int localPort = Integer.parseInt(fields[1]);
+		final List<Backend> backends = new ArrayList<>();
+		for (String backend : fields[2].split(",")) {
+			final int separator = backend.lastIndexOf(':');
+			if (separator <= 0) {
+				throw new IllegalArgumentException("Expected remoteHost:remotePort");
+			}
+			String remoteHost = backend.substring(0, separator);
+			if (remoteHost.startsWith("[") && remoteHost.endsWith("]")) {
+				remoteHost = remoteHost.substring(1, remoteHost.length() - 1);
+			}
+			backends.add(new Backend(remoteHost, Integer.parseInt(backend.substring(separator + 1))));
+		}
+		final Map<String, String> options = new HashMap<>();
+		for (int index = 3; index < fields.length; index++) {
+			final int separator = fields[index].indexOf('=');
+			if (separator <= 0) {
+				throw new IllegalArgumentException("Expected option=value");
+			}
+			options.put(fields[index].substring(0, separator).toLowerCase(), fields[index].substring(separator + 1));
+		}
+		final LoadBalancer loadBalancer = new LoadBalancer(backends, LoadBalancer.policy(options.get("balance")));
+		return new Route(protocol, localPort, loadBalancer, options);
+	}
+
+	JavaForwarder.Protocol getProtocol() {
+		return protocol;
+	}
+
+	int getLocalPort() {
+		return localPort;
+	}
+
+	LoadBalancer getLoadBalancer() {
+		return loadBalancer;
+	}
+
+	/**
+	 * @return pool of idle connections to the backends, {@code null} if connections are not pooled
+	 */
+	UpstreamPool getUpstreamPool() {
+		return upstreamPool;
+	}
+
+	/**
+	 * @return limit of the concurrent connections, {@code null} if not limited
+	 */
+	AdmissionControl getAdmissionControl() {
+		return admissionControl;
+	}
+
+	/**
+	 * @param name of the option, lower case
+	 * @return value of the option in the route table entry, {@code null} if not set
+	 */
+	String getOption(final String name) {
+		return options.get(name);
+	}
+
+	/**
+	 * @return limit of the bytes forwarded from clients to the backends, {@code null} if not limited
+	 */
+	TokenBucket getRateToRemote() {
+		return rateToRemote;
+	}
+
+	/**
+	 * @return limit of the bytes forwarded from the backends to clients, {@code null} if not limited
+	 */
+	TokenBucket getRateToClient() {
+		return rateToClient;
+	}
+
+	/**
+	 * @return limit of one direction of a new connection, {@code null} if connections are not limited
+	 */
+	TokenBucket newConnectionRate() {
+		return connectionRate > 0 ? new TokenBucket(connectionRate, burst(connectionRate)) : null;
+	}
+
+	/**
+	 * @param timeout reason
+	 * @return nanoseconds after which connections are closed for {@code timeout}, {@code 0} if they are not
+	 */
+	long getTimeoutNanos(final Timeout timeout) {
+		return timeoutNanos[timeout.ordinal()];
+	}
+
+	/**
+	 * @return {@code true} if connections of the route are closed for any {@link Timeout}
+	 */
+	boolean hasTimeouts() {
+		for (long nanos : timeoutNanos) {
+			if (nanos > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Count a connection closed for {@code timeout}.
+	 *
+	 * @param timeout reason
+	 */
+	void timedOut(final Timeout timeout) {
+		timedOut.incrementAndGet(timeout.ordinal());
+	}
+
+	long getTimedOut(final Timeout timeout) {
+		return timedOut.get(timeout.ordinal());
+	}
+
+	/**
+	 * Count a connection or {@code UDP} session starting to forward data, call {@link #stopped()} when it ends.
+	 */
+	void started() {
+		started.incrementAndGet();
+		active.incrementAndGet();
+	}
+
+	/**
+	 * Count the end of a connection or {@code UDP} session counted by {@link #started()}.
+	 */
+	void stopped() {
+		active.decrementAndGet();
+	}
+
+	/**
+	 * Count a connection that could not be established to any backend.
+	 */
+	void failed() {
+		failed.incrementAndGet();
+	}
+
+	/**
+	 * @return counter of bytes forwarded from clients to the backends
+	 */
+	LongAdder getBytesToRemote() {
+		return bytesToRemote;
+	}
+
+	/**
+	 * @return counter of bytes forwarded from the backends to clients
+	 */
+	LongAdder getBytesToClient() {
+		return bytesToClient;
+	}
+
+	/**
+	 * @return counter of reads or datagrams forwarded from clients to the backends
+	 */
+	LongAdder getChunksToRemote() {
+		return chunksToRemote;
+	}
+
+	/**
+	 * @return counter of reads or datagrams forwarded from the backends to clients
+	 */
+	LongAdder getChunksToClient() {
+		return chunksToClient;
+	}
+
+	/**
+	 * @return distribution of the times from accepting a {@code TCP} connection to forwarding the first byte to its client
+	 */
+	Histogram getFirstByteTimes() {
+		return firstByteTimes;
+	}
+
+	/**
+	 * @return distribution of the times {@code TCP} connections were open
+	 */
+	Histogram getDurations() {
+		return durations;
+	}
+
+	long getStarted() {
+		return started.get();
+	}
+
+	int getActive() {
+		return active.get();
+	}
+
+	long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return counters of the route, e.g. to log them at shutdown
+	 */
+	String getStatistics() {
+		final StringBuilder sb = new StringBuilder("started ").append(getStarted()).append(", active ").append(getActive())
+				.append(", failed ").append(getFailed()).append(", bytes to remote ").append(bytesToRemote.sum())
+				.append(", bytes to client ").append(bytesToClient.sum());
+		if (durations.getCount() > 0) {
+			sb.append(", first byte ").append(firstByteTimes).append(", duration ").append(durations);
+		}
+		if (upstreamPool != null) {
+			sb.append(", ").append(upstreamPool);
+		}
+		if (admissionControl != null) {
+			sb.append(", ").append(admissionControl);
+		}
+		if (rateToRemote != null) {
+			sb.append(", rate to remote ").append(rateToRemote).append(", rate to client ").append(rateToClient);
+		}
+		for (Timeout timeout : Timeout.values()) {
+			if (getTimeoutNanos(timeout) > 0) {
+				sb.append(", timed out ").append(timeout.name().toLowerCase().replace('_', ' ')).append(' ')
+						.append(getTimedOut(timeout));
+			}
+		}
+		for (Backend backend : loadBalancer.getBackends()) {
+			sb.append(", ").append(backend).append(" active ").append(backend.getActive()).append(" failures ")
+					.append(backend.getFailures()).append(backend.isEjected() ? " ejected" : "");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param option   name of the route option
+	 * @param property name of the property with the default of all routes
+	 * @return value of the option, or of the property if the option is not set, {@code null} if neither is set
+	 */
+	private String setting(final String option, final String property) {
+		final String value = options.get(option);
+		return value != null ? value : System.getProperty(property);
+	}
+
+	/**
+	 * @param bytesPerSecond rate of a limit
+	 * @return burst of the limit
+	 */
+	private long burst(final long bytesPerSecond) {
+		return rateBurst > 0 ? rateBurst : Math.max(64 * 1024, bytesPerSecond / 5);
+	}
+
+	/**
+	 * @param value number of bytes with an optional suffix {@code K}, {@code M} or {@code G}, {@code null} for none
+	 * @return number of bytes, {@code 0} if {@code value} is {@code null}
+	 * @throws NumberFormatException if {@code value} is not a number of bytes
+	 */
+	static long parseBytes(final String value) {
+		if (value == null) {
+			return 0;
+		}
+		final String number = value.trim().toUpperCase();
+		final int unit = "KMG".indexOf(number.isEmpty() ? ' ' : number.charAt(number.length() - 1));
+		if (unit < 0) {
+			return Long.parseLong(number);
+		}
+		return Long.parseLong(number.substring(0, number.length() - 1)) << (10 * (unit + 1));
+	}
+
+	@Override
+	public String toString() {
+		return protocol + " " + localPort + " -> " + loadBalancer;
+	}
+
+}
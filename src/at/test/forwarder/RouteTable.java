@@ -0,0 +1,202 @@
+package at.test.forwarder;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Routes forwarded by the server and the engines listening on their local ports. All routes share the engines: {@code TCP}
+ * routes are accepted by {@link Acceptor}s or the {@link NioEngine}, {@code UDP} routes are relayed by the
+ * {@link UdpRelay} and the idle connections of pooling routes are kept by a single {@link UpstreamPool.Refiller}, each
+ * created with the first route needing it. Routes can be added and removed while forwarding, e.g. by the
+ * {@link ControlServer}. Removing a route only closes its local port, its live connections are forwarded until they close.
+ */
+class RouteTable {
+
+	/** Routes forwarded, read without locking by the metrics and control endpoints. */
+	final private List<Route> routes = new CopyOnWriteArrayList<>();
+	/** Registry of the live connections of all engines. */
+	final private ConnectionRegistry connectionRegistry;
+	/** Creates the handler of the connections accepted for a route by the thread per connection engine. */
+	final private Function<Route, Consumer<SocketChannel>> acceptHandler;
+	/** Acceptors of the routes forwarded by the thread per connection engine. */
+	final private Map<Route, List<Acceptor>> acceptors = new HashMap<>();
+	private NioEngine nioEngine;
+	private UdpRelay udpRelay;
+	private UpstreamPool.Refiller refiller;
+	/** Flag set by {@link #start()}, engines created later are started right away. */
+	private boolean started = false;
+	/** Flag set by {@link #stopAccepting()}, no more routes can be added. */
+	private boolean stopped = false;
+
+	/**
+	 * @param connectionRegistry to register the connections of all routes with
+	 * @param acceptHandler      creating the handler of the connections accepted for a route with the thread per connection
+	 *                           engine
+	 */
+	RouteTable(final ConnectionRegistry connectionRegistry, final Function<Route, Consumer<SocketChannel>> acceptHandler) {
+		this.connectionRegistry = connectionRegistry;
+		this.acceptHandler = acceptHandler;
+	}
+
+	/**
+	 * Listen on the local port of {@code route} and forward its data.
+	 *
+	 * @param route to forward
+	 * @throws IOException              if the local port can't be bound
+	 * @throws IllegalArgumentException if a route with the same protocol and local port is already forwarded
+	 * @throws IllegalStateException    if the server stopped accepting
+	 */
+	synchronized void add(final Route route) throws IOException {
+		if (stopped) {
+			throw new IllegalStateException("Not accepting, terminating");
+		}
+		if (find(route.getProtocol(), route.getLocalPort()) != null) {
+			throw new IllegalArgumentException(route.getProtocol() + " local port " + route.getLocalPort()
+					+ " is already forwarded");
+		}
+		System.out.println("JavaForwarder forwarding " + route.getProtocol() + " connection: " + route.getLoadBalancer()
+				+ " on local port " + route.getLocalPort() + " (" + route.getLoadBalancer().getPolicy() + ")");
+		if (JavaForwarder.Protocol.UDP == route.getProtocol()) {
+			// Relay datagrams of all clients with a single selector thread
+			if (udpRelay == null) {
+				udpRelay = new UdpRelay();
+				if (started) {
+					udpRelay.start();
+				}
+			}
+			udpRelay.listen(route);
+		} else if (JavaForwarder.Engine.NIO == JavaForwarder.engine()) {
+			// Forward all connections with a fixed pool of event loops
+			if (nioEngine == null) {
+				final int eventLoops = JavaForwarder.eventLoops();
+				System.out.println("JavaForwarder forwarding with " + eventLoops + " NIO event loop(s)");
+				nioEngine = new NioEngine(eventLoops, connectionRegistry);
+				if (started) {
+					nioEngine.start();
+				}
+			}
+			nioEngine.listen(route);
+		} else {
+			acceptors.put(route, Acceptor.start(route, acceptHandler.apply(route)));
+		}
+		// Keep connections to the backends of routes pooling them idle with a single thread
+		if (route.getUpstreamPool() != null) {
+			if (refiller == null) {
+				refiller = new UpstreamPool.Refiller();
+				if (started) {
+					refiller.start();
+				}
+			}
+			refiller.add(route.getUpstreamPool());
+		}
+		routes.add(route);
+	}
+
+	/**
+	 * Stop forwarding a route, closing its local port. Its live connections are forwarded until they close, its
+	 * {@code UDP} sessions are closed.
+	 *
+	 * @param protocol  of the route
+	 * @param localPort of the route
+	 * @return route removed, {@code null} if no route matched
+	 */
+	synchronized Route remove(final JavaForwarder.Protocol protocol, final int localPort) {
+		final Route route = find(protocol, localPort);
+		if (route == null) {
+			return null;
+		}
+		routes.remove(route);
+		final List<Acceptor> routeAcceptors = acceptors.remove(route);
+		if (routeAcceptors != null) {
+			for (Acceptor acceptor : routeAcceptors) {
+				acceptor.shutdown();
+			}
+		} else if (JavaForwarder.Protocol.UDP == protocol) {
+			udpRelay.unlisten(route);
+		} else {
+			nioEngine.unlisten(route);
+		}
+		if (route.getUpstreamPool() != null) {
+			refiller.remove(route.getUpstreamPool());
+		}
+		System.out.println("JavaForwarder stopped forwarding route " + route + ": " + route.getStatistics());
+		return route;
+	}
+
+	/**
+	 * @param protocol  of the route
+	 * @param localPort of the route
+	 * @return route forwarded, {@code null} if there is none
+	 */
+	Route find(final JavaForwarder.Protocol protocol, final int localPort) {
+		for (Route route : routes) {
+			if ((route.getProtocol() == protocol) && (route.getLocalPort() == localPort)) {
+				return route;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return routes forwarded, a live view
+	 */
+	List<Route> getRoutes() {
+		return Collections.unmodifiableList(routes);
+	}
+
+	/**
+	 * Start the engines of the routes added so far, once all initial routes are added.
+	 */
+	synchronized void start() {
+		started = true;
+		if (nioEngine != null) {
+			nioEngine.start();
+		}
+		if (udpRelay != null) {
+			udpRelay.start();
+		}
+		if (refiller != null) {
+			refiller.start();
+		}
+	}
+
+	/**
+	 * Close the local ports of all {@code TCP} routes, so a process taking over gets all new connections while the live
+	 * ones drain. {@code UDP} routes are still relayed until {@link #shutdown()}.
+	 */
+	synchronized void stopAccepting() {
+		stopped = true;
+		if (nioEngine != null) {
+			nioEngine.stopAccepting();
+		}
+		for (List<Acceptor> routeAcceptors : acceptors.values()) {
+			for (Acceptor acceptor : routeAcceptors) {
+				acceptor.shutdown();
+			}
+		}
+		if (refiller != null) {
+			refiller.shutdown();
+		}
+	}
+
+	/**
+	 * Stop all engines, closing the connections they forward.
+	 */
+	synchronized void shutdown() {
+		if (nioEngine != null) {
+			nioEngine.shutdown();
+		}
+		if (udpRelay != null) {
+			udpRelay.shutdown();
+			System.out.println("JavaForwarder UDP relay: " + udpRelay);
+		}
+	}
+
+}
@@ -0,0 +1,182 @@
+package at.test.forwarder;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed wheel timer running the timeouts of all connections with a single thread. Timeouts are hashed by their deadline
+ * into a ring of buckets, one bucket per tick, so scheduling and cancelling cost {@code O(1)} and each tick only visits the
+ * timeouts of one bucket. Timeouts further away than one revolution of the wheel stay in their bucket for as many rounds.
+ * Timeouts fire up to one tick late, which is plenty accurate for timeouts measured in seconds. While no timeout is
+ * scheduled the thread parks without a deadline instead of ticking, so an idle process does not wake up.
+ */
+class TimerWheel extends Thread {
+
+	/** Nanoseconds per tick. */
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	/** Number of buckets, a power of 2. */
+	private static final int WHEEL_SIZE = 512;
+
+	/** Timeouts of each bucket, only accessed from the timer thread. */
+	private final List<List<Timeout>> wheel = new ArrayList<>(WHEEL_SIZE);
+	/** Timeouts scheduled by other threads, not yet added to their bucket. */
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+	/** {@link System#nanoTime()} the wheel started at, tick 0. */
+	private final long startNanos = System.nanoTime();
+	/** Next tick to process. */
+	private long tick = 0;
+	/** Number of timeouts in the buckets, only accessed from the timer thread. */
+	private int size = 0;
+	/** Set while the timer thread parks without a deadline, {@link #schedule(long, Runnable)} unparks it. */
+	private volatile boolean idle = false;
+	/** Flag cleared to terminate the timer. */
+	private volatile boolean running = true;
+
+	TimerWheel() {
+		super("JavaForwarder-Timer");
+		setDaemon(true);
+		for (int index = 0; index < WHEEL_SIZE; index++) {
+			wheel.add(new ArrayList<>());
+		}
+	}
+
+	/**
+	 * Schedule {@code task} to run on the timer thread after {@code delayNanos}. The task must not block.
+	 *
+	 * @param delayNanos nanoseconds to wait
+	 * @param task       to run
+	 * @return timeout to {@link Timeout#cancel()}
+	 */
+	Timeout schedule(final long delayNanos, final Runnable task) {
+		final Timeout timeout = new Timeout(System.nanoTime() + Math.max(0, delayNanos), task);
+		pending.add(timeout);
+		if (idle) {
+			LockSupport.unpark(this);
+		}
+		return timeout;
+	}
+
+	/**
+	 * Stop the timer, pending timeouts never fire.
+	 */
+	void shutdown() {
+		running = false;
+		LockSupport.unpark(this);
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			if ((size == 0) && pending.isEmpty()) {
+				idle = true;
+				// Checked again after publishing idle, a timeout scheduled meanwhile unparks or is seen here
+				if (pending.isEmpty() && running) {
+					LockSupport.park(this);
+				}
+				idle = false;
+				// All buckets are empty, skip the ticks passed while parked
+				tick = Math.max(tick, (System.nanoTime() - startNanos) / TICK_NANOS);
+				continue;
+			}
+			final long tickDeadline = startNanos + (tick + 1) * TICK_NANOS;
+			final long waitNanos = tickDeadline - System.nanoTime();
+			if (waitNanos > 0) {
+				LockSupport.parkNanos(waitNanos);
+				continue;
+			}
+			addPending();
+			expire(wheel.get((int) (tick & (WHEEL_SIZE - 1))));
+			tick++;
+		}
+	}
+
+	/**
+	 * Move the scheduled timeouts to the bucket of their deadline.
+	 */
+	private void addPending() {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.cancelled) {
+				continue;
+			}
+			// Deadlines already passed expire with the current tick
+			final long ticks = Math.max(tick, (timeout.deadline - startNanos) / TICK_NANOS);
+			timeout.rounds = (ticks - tick) / WHEEL_SIZE;
+			wheel.get((int) (ticks & (WHEEL_SIZE - 1))).add(timeout);
+			size++;
+		}
+	}
+
+	/**
+	 * Run the timeouts of a bucket due in this round, drop the cancelled ones.
+	 *
+	 * @param bucket of the current tick
+	 */
+	private void expire(final List<Timeout> bucket) {
+		final Iterator<Timeout> iterator = bucket.iterator();
+		List<Timeout> expired = null;
+		while (iterator.hasNext()) {
+			final Timeout timeout = iterator.next();
+			if (timeout.cancelled) {
+				iterator.remove();
+				size--;
+			} else if (timeout.rounds > 0) {
+				timeout.rounds--;
+			} else {
+				iterator.remove();
+				size--;
+				if (expired == null) {
+					expired = new ArrayList<>();
+				}
+				expired.add(timeout);
+			}
+		}
+		if (expired == null) {
+			return;
+		}
+		// Run outside the iteration, tasks may schedule again
+		for (Timeout timeout : expired) {
+			try {
+				timeout.task.run();
+			} catch (RuntimeException e) {
+				System.err.println("JavaForwarder timer task failed: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Scheduled task.
+	 */
+	static class Timeout {
+
+		final private long deadline;
+		final private Runnable task;
+		/** Revolutions of the wheel left before the timeout is due, only accessed from the timer thread. */
+		private long rounds;
+		private volatile boolean cancelled = false;
+
+		private Timeout(final long deadline, final Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		/**
+		 * Prevent the task from running, if it has not yet run.
+		 */
+		void cancel() {
+			cancelled = true;
+		}
+
+	}
+
+}
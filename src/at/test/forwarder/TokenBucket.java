@@ -0,0 +1,81 @@
+package at.test.forwarder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket limiting the bytes per second forwarded, allowing bursts of up to {@code burst} bytes. The bucket
+ * is kept as the single {@link System#nanoTime()} at which all bytes reserved so far are paid for, advanced with one
+ * compare-and-set per reservation, so a bucket shared by all connections of a route costs no lock on the copy loops.
+ * Reservations never fail: bytes over the limit are paid for in advance and the caller is told how long to hold them back,
+ * so the caller decides how to wait without blocking anybody else.
+ */
+class TokenBucket {
+
+	private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	final private long bytesPerSecond;
+	final private long burst;
+	/** Nanoseconds the burst takes at the rate, the time reservations may run ahead of now without waiting. */
+	final private long burstNanos;
+	/** {@link System#nanoTime()} at which all bytes reserved are paid for. */
+	private final AtomicLong paidUntil = new AtomicLong(System.nanoTime());
+	/** Number of reservations that had to wait. */
+	private final AtomicLong throttled = new AtomicLong();
+
+	/**
+	 * @param bytesPerSecond rate, at least 1
+	 * @param burst          bytes forwarded without waiting after being idle
+	 */
+	TokenBucket(final long bytesPerSecond, final long burst) {
+		this.bytesPerSecond = Math.max(1, bytesPerSecond);
+		this.burst = Math.max(0, burst);
+		this.burstNanos = nanos(this.burst);
+	}
+
+	/**
+	 * Reserve {@code bytes}.
+	 *
+	 * @param bytes to forward
+	 * @return nanoseconds to wait before forwarding them, {@code 0} to forward them now
+	 */
+	long reserve(final int bytes) {
+		final long cost = nanos(bytes);
+		while (true) {
+			final long now = System.nanoTime();
+			final long paid = paidUntil.get();
+			// An idle bucket does not collect more than the burst
+			final long next = (paid - now < 0 ? now : paid) + cost;
+			if (paidUntil.compareAndSet(paid, next)) {
+				final long wait = next - now - burstNanos;
+				if (wait <= 0) {
+					return 0;
+				}
+				throttled.incrementAndGet();
+				return wait;
+			}
+		}
+	}
+
+	long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	long getThrottled() {
+		return throttled.get();
+	}
+
+	@Override
+	public String toString() {
+		return bytesPerSecond + " bytes/s (burst " + burst + "), throttled " + getThrottled();
+	}
+
+	/**
+	 * @param bytes to forward
+	 * @return nanoseconds {@code bytes} take at the rate
+	 */
+	private long nanos(final long bytes) {
+		return bytes * NANOS_PER_SECOND / bytesPerSecond;
+	}
+
+}
@@ -0,0 +1,628 @@
+package at.test.forwarder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.UnresolvedAddressException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UdpRelay forwards {@code UDP} datagrams received on the local port of each of its routes to the route's
+ * {@code remoteHost:remotePort} and routes the replies back to the client that sent them. Each client
+ * {@link SocketAddress} gets a session with its own upstream {@link DatagramChannel} connected to the destination, so
+ * the destination sees one source port per client. Sessions not forwarding any datagram for the idle timeout are
+ * evicted. All channels of all routes are non-blocking and served by a single {@link Selector} thread. A ready channel
+ * is drained in bursts into a pre-allocated ring of direct buffers, then the burst is flushed, so a single wakeup of
+ * the selector forwards many datagrams without allocating.
+ */
+class UdpRelay extends Thread {
+
+	/** Set to the number of seconds a session may be idle before it is evicted, defaults to 60. */
+	static final String ENVIRONMENT_VARIABLE_UDP_IDLE_SECONDS = "UDP_IDLE_SECONDS";
+	/** Set to the maximum number of datagrams received before they are flushed, defaults to 64. */
+	static final String ENVIRONMENT_VARIABLE_UDP_BURST = "UDP_BURST";
+	/** Set to the maximum number of sessions per local port, datagrams of further clients are dropped, defaults to 1024. */
+	static final String ENVIRONMENT_VARIABLE_UDP_MAX_SESSIONS = "UDP_MAX_SESSIONS";
+
+	/** Largest possible {@code UDP} payload, larger datagrams don't exist. */
+	private static final int MAX_DATAGRAM_SIZE = 65535;
+	/** Maximum milliseconds between checks for idle sessions. */
+	private static final long EVICTION_INTERVAL_MILLIS = 1000;
+
+	final private Selector selector;
+	/** Tasks submitted by other threads to run on the relay thread. */
+	final private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	/** Local ports datagrams are received on, only accessed from the relay thread. */
+	final private List<Listener> listeners = new ArrayList<>();
+	/** Buffers a burst of datagrams is received into, acquired once from the shared {@link BufferPool}. */
+	final private ByteBuffer[] ring;
+	/** Senders of the datagrams in {@code ring}, only used for datagrams from clients. */
+	final private SocketAddress[] ringAddresses;
+	/** Heap copy of a datagram for the data dump, {@code null} if data is not inspected. */
+	final private byte[] dumpBuffer;
+	/** Nanoseconds a session may be idle before it is evicted. */
+	final private long idleNanos = idleNanos();
+	/** Maximum number of sessions per listener, each holds an upstream channel and its port. */
+	final private int maxSessions = maxSessions();
+	/** Flag cleared to terminate the relay. */
+	private volatile boolean running = true;
+
+	/** Number of bursts received. */
+	private final AtomicLong bursts = new AtomicLong();
+	/** Number of datagrams received. */
+	private final AtomicLong datagrams = new AtomicLong();
+	/** Number of bytes received. */
+	private final AtomicLong bytes = new AtomicLong();
+	/** Number of bursts that filled the whole ring, more datagrams were pending. */
+	private final AtomicLong fullBursts = new AtomicLong();
+	/** Largest number of datagrams flushed in a single burst. */
+	private final AtomicInteger maxBurst = new AtomicInteger();
+	/** Number of datagrams dropped because a socket buffer could not take them. */
+	private final AtomicLong dropped = new AtomicLong();
+	/** Number of datagrams dropped because their listener had the maximum number of sessions. */
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Allocate the buffer ring, but do not start relaying yet.
+	 *
+	 * @throws IOException if the {@link Selector} can't be opened
+	 */
+	UdpRelay() throws IOException {
+		super("JavaForwarder-UdpRelay");
+		this.selector = Selector.open();
+		this.ring = new ByteBuffer[burstSize()];
+		this.ringAddresses = new SocketAddress[ring.length];
+		for (int index = 0; index < ring.length; index++) {
+			ring[index] = BufferPool.shared().acquire(MAX_DATAGRAM_SIZE);
+		}
+		this.dumpBuffer = JavaForwarder.ForwardingPath.INSPECT == JavaForwarder.forwardingPath() ? new byte[MAX_DATAGRAM_SIZE]
+				: null;
+	}
+
+	/**
+	 * Receive datagrams on {@code localhost:localPort} of {@code route} and forward them to its
+	 * {@code remoteHost:remotePort}.
+	 *
+	 * @param route to forward
+	 * @throws IOException if {@code localPort} can't be bound
+	 */
+	void listen(final Route route) throws IOException {
+		final DatagramChannel clientChannel = DatagramChannel.open();
+		try {
+			Acceptor.reusePort(clientChannel);
+			clientChannel.bind(new InetSocketAddress(route.getLocalPort()));
+			clientChannel.configureBlocking(false);
+		} catch (IOException e) {
+			closeQuietly(clientChannel);
+			throw e;
+		}
+		final Listener listener = new Listener(route, clientChannel);
+		execute(() -> {
+			try {
+				clientChannel.register(selector, SelectionKey.OP_READ, listener);
+				listeners.add(listener);
+			} catch (IOException e) {
+				System.err.println("JavaForwarder failed to listen on local port " + route.getLocalPort() + ": " + e);
+				closeQuietly(clientChannel);
+			}
+		});
+	}
+
+	/**
+	 * Stop receiving datagrams for {@code route}, closing its sessions and the channel bound to its local port, and wait
+	 * for it.
+	 *
+	 * @param route to stop relaying
+	 */
+	void unlisten(final Route route) {
+		final CountDownLatch closed = new CountDownLatch(1);
+		execute(() -> {
+			final Iterator<Listener> iterator = listeners.iterator();
+			while (iterator.hasNext()) {
+				final Listener listener = iterator.next();
+				if (listener.route == route) {
+					iterator.remove();
+					for (Session session : new ArrayList<>(listener.sessions.values())) {
+						session.close();
+					}
+					closeQuietly(listener.clientChannel);
+				}
+			}
+			closed.countDown();
+		});
+		try {
+			closed.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Run {@code task} on the relay thread.
+	 *
+	 * @param task to run
+	 */
+	private void execute(final Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Stop relaying, closing all sessions and the channels bound to the local ports.
+	 */
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			long nextEviction = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(EVICTION_INTERVAL_MILLIS);
+			while (running) {
+				// Without sessions there is nothing to evict, sleep until a datagram or task arrives
+				selector.select(hasSessions() ? EVICTION_INTERVAL_MILLIS : 0);
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey selectionKey = iterator.next();
+					iterator.remove();
+					if (!selectionKey.isValid()) {
+						continue;
+					}
+					// A failure is confined to its listener or session, the relay keeps serving all others
+					try {
+						if (selectionKey.attachment() instanceof Listener) {
+							receiveFromClients((Listener) selectionKey.attachment());
+						} else {
+							receiveFromServer((Session) selectionKey.attachment());
+						}
+					} catch (RuntimeException e) {
+						if (selectionKey.attachment() instanceof Session) {
+							final Session session = (Session) selectionKey.attachment();
+							System.err.println("JavaForwarder UDP session of " + session.clientAddress + " failed: " + e);
+							session.close();
+						} else {
+							System.err.println("JavaForwarder failed to relay UDP datagrams on local port "
+									+ ((Listener) selectionKey.attachment()).route.getLocalPort() + ": " + e);
+						}
+						e.printStackTrace();
+					}
+				}
+				final long now = System.nanoTime();
+				if (now - nextEviction >= 0) {
+					evictIdleSessions(now);
+					nextEviction = now + TimeUnit.MILLISECONDS.toNanos(EVICTION_INTERVAL_MILLIS);
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			e.printStackTrace();
+		}
+		// Terminate all sessions
+		for (Listener listener : listeners) {
+			for (Session session : new ArrayList<>(listener.sessions.values())) {
+				session.close();
+			}
+			closeQuietly(listener.clientChannel);
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+		}
+		for (int index = 0; index < ring.length; index++) {
+			BufferPool.shared().release(ring[index]);
+			ring[index] = null;
+		}
+	}
+
+	/**
+	 * @return {@code true} if any listener has a session, only called from the relay thread
+	 */
+	private boolean hasSessions() {
+		for (Listener listener : listeners) {
+			if (!listener.sessions.isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Forward all datagrams pending on a listener's channel to the destination, through the session of their client, one
+	 * burst at a time.
+	 *
+	 * @param listener with pending datagrams
+	 */
+	private void receiveFromClients(final Listener listener) {
+		int count;
+		boolean failed = false;
+		do {
+			// Drain the channel into the ring
+			for (count = 0; count < ring.length; count++) {
+				ring[count].clear();
+				try {
+					ringAddresses[count] = listener.clientChannel.receive(ring[count]);
+				} catch (IOException e) {
+					// Only this wakeup of the listener ends, the datagrams received so far are still flushed
+					System.err.println("JavaForwarder failed to receive UDP datagram on local port "
+							+ listener.route.getLocalPort() + ": " + e);
+					ringAddresses[count] = null;
+					failed = true;
+				}
+				if (ringAddresses[count] == null) {
+					break;
+				}
+				ring[count].flip();
+			}
+			// Flush the burst upstream
+			final long now = System.nanoTime();
+			for (int index = 0; index < count; index++) {
+				final Session session = session(listener, (InetSocketAddress) ringAddresses[index]);
+				ringAddresses[index] = null;
+				if (session == null) {
+					continue;
+				}
+				session.lastActive = now;
+				record(session.clientDataDumpManager, ring[index]);
+				listener.route.getBytesToRemote().add(ring[index].remaining());
+				listener.route.getChunksToRemote().increment();
+				try {
+					// A datagram the socket buffer can't take is dropped, as it would be by the network
+					if ((session.serverChannel.write(ring[index]) == 0) && ring[index].hasRemaining()) {
+						dropped.incrementAndGet();
+					}
+				} catch (IOException e) {
+					session.close();
+				}
+			}
+			recordBurst(count);
+		} while ((count == ring.length) && !failed);
+	}
+
+	/**
+	 * Route all datagrams pending on a session's upstream channel back to its client, one burst at a time.
+	 *
+	 * @param session with pending datagrams
+	 */
+	private void receiveFromServer(final Session session) {
+		int count;
+		do {
+			// Drain the channel into the ring
+			for (count = 0; count < ring.length; count++) {
+				ring[count].clear();
+				try {
+					// Fails e.g. with PortUnreachableException if the destination is not listening
+					if (session.serverChannel.read(ring[count]) <= 0) {
+						break;
+					}
+				} catch (PortUnreachableException e) {
+					// Count as failed connect, so a backend not listening gets ejected
+					session.backend.failed();
+					session.close();
+					break;
+				} catch (IOException e) {
+					session.close();
+					break;
+				}
+				ring[count].flip();
+			}
+			// Flush the burst to the client
+			if (count > 0) {
+				session.lastActive = System.nanoTime();
+			}
+			for (int index = 0; index < count; index++) {
+				record(session.serverDataDumpManager, ring[index]);
+				session.listener.route.getBytesToClient().add(ring[index].remaining());
+				session.listener.route.getChunksToClient().increment();
+				try {
+					if ((session.listener.clientChannel.send(ring[index], session.clientAddress) == 0) && ring[index].hasRemaining()) {
+						dropped.incrementAndGet();
+					}
+				} catch (IOException e) {
+					System.err.println("JavaForwarder failed to send UDP datagram to " + session.clientAddress + ": " + e);
+				}
+			}
+			recordBurst(count);
+		} while (count == ring.length);
+	}
+
+	/**
+	 * Look up the session of a client, starting a new session for its first datagram.
+	 *
+	 * @param listener      the datagram was received by
+	 * @param clientAddress sender of a datagram
+	 * @return session, {@code null} if no session could be started or the listener has the maximum number of sessions
+	 */
+	private Session session(final Listener listener, final InetSocketAddress clientAddress) {
+		Session session = listener.sessions.get(clientAddress);
+		if (session != null) {
+			return session;
+		}
+		if (listener.sessions.size() >= maxSessions) {
+			// Spoofed or many sources must not exhaust file descriptors and ephemeral ports, drop until sessions are evicted
+			if (rejected.getAndIncrement() == 0) {
+				System.err.println("JavaForwarder UDP local port " + listener.route.getLocalPort() + " has " + maxSessions
+						+ " sessions, dropping datagrams of new clients");
+			}
+			return null;
+		}
+		final List<Backend> tried = new ArrayList<>(1);
+		Backend backend;
+		while ((backend = listener.route.getLoadBalancer().select(tried)) != null) {
+			tried.add(backend);
+			try {
+				session = new Session(listener, clientAddress, backend);
+				listener.sessions.put(clientAddress, session);
+				return session;
+			} catch (IOException | UnresolvedAddressException e) {
+				System.err.println("JavaForwarder failed to initiate UDP session: " + backend + ": " + e);
+				backend.failed();
+			}
+		}
+		listener.route.failed();
+		return null;
+	}
+
+	/**
+	 * Record the datagram in {@code datagram} as a block of its own, leaves the position of {@code datagram} untouched.
+	 *
+	 * @param dataDumpManager to record with, {@code null} if data is not inspected
+	 * @param datagram        to record
+	 */
+	private void record(final JavaForwarder.DataDumpManager dataDumpManager, final ByteBuffer datagram) {
+		if (dataDumpManager == null) {
+			return;
+		}
+		final int length = datagram.remaining();
+		datagram.mark();
+		datagram.get(dumpBuffer, 0, length);
+		datagram.reset();
+		dataDumpManager.record(LocalDateTime.now(), dumpBuffer, length, true);
+	}
+
+	/**
+	 * Update the burst metrics with a burst flushed.
+	 *
+	 * @param count number of datagrams in the burst, {@code 0} if the channel had none pending
+	 */
+	private void recordBurst(final int count) {
+		if (count == 0) {
+			return;
+		}
+		bursts.incrementAndGet();
+		datagrams.addAndGet(count);
+		for (int index = 0; index < count; index++) {
+			bytes.addAndGet(ring[index].limit());
+		}
+		if (count == ring.length) {
+			fullBursts.incrementAndGet();
+		}
+		if (count > maxBurst.get()) {
+			maxBurst.set(count);
+		}
+	}
+
+	/**
+	 * Close all sessions that have not forwarded a datagram for {@code idleNanos}.
+	 *
+	 * @param now current {@link System#nanoTime()}
+	 */
+	private void evictIdleSessions(final long now) {
+		for (Listener listener : listeners) {
+			for (Session session : new ArrayList<>(listener.sessions.values())) {
+				if (now - session.lastActive >= idleNanos) {
+					session.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Channel bound to the local port of a route, datagrams from all its clients are received on and replies are sent from.
+	 */
+	private static class Listener {
+
+		final private Route route;
+		final private DatagramChannel clientChannel;
+		/** Sessions keyed by the address of their client. */
+		final private Map<SocketAddress, Session> sessions = new HashMap<>();
+
+		Listener(final Route route, final DatagramChannel clientChannel) {
+			this.route = route;
+			this.clientChannel = clientChannel;
+		}
+
+	}
+
+	/**
+	 * Datagrams exchanged between one client and a backend of the route, through an upstream {@link DatagramChannel}
+	 * connected to the backend.
+	 */
+	private class Session {
+
+		final private Listener listener;
+		final private InetSocketAddress clientAddress;
+		final private Backend backend;
+		final private InetSocketAddress remoteAddress;
+		final private DatagramChannel serverChannel;
+		/** Data dump of datagrams from the client, {@code null} if data is not inspected. */
+		final private JavaForwarder.DataDumpManager clientDataDumpManager;
+		/** Data dump of datagrams from the destination, {@code null} if data is not inspected. */
+		final private JavaForwarder.DataDumpManager serverDataDumpManager;
+		/** {@link System#nanoTime()} a datagram was last forwarded at. */
+		private long lastActive;
+
+		Session(final Listener listener, final InetSocketAddress clientAddress, final Backend backend) throws IOException {
+			this.listener = listener;
+			this.clientAddress = clientAddress;
+			this.backend = backend;
+			this.remoteAddress = backend.getAddress();
+			final DatagramChannel serverChannel = DatagramChannel.open();
+			try {
+				serverChannel.connect(remoteAddress);
+				serverChannel.configureBlocking(false);
+				serverChannel.register(selector, SelectionKey.OP_READ, this);
+			} catch (IOException | UnresolvedAddressException e) {
+				closeQuietly(serverChannel);
+				throw e;
+			}
+			this.serverChannel = serverChannel;
+			if (dumpBuffer == null) {
+				this.clientDataDumpManager = null;
+				this.serverDataDumpManager = null;
+			} else {
+				final long threadId = UdpRelay.this.getId();
+				this.clientDataDumpManager = new JavaForwarder.DataDumpManager(threadId, CaptureWriter.IPPROTO_UDP,
+						clientAddress, remoteAddress);
+				this.serverDataDumpManager = new JavaForwarder.DataDumpManager(threadId, CaptureWriter.IPPROTO_UDP,
+						remoteAddress, clientAddress);
+			}
+			listener.route.started();
+			// There is no handshake to time for UDP
+			backend.started(-1);
+			System.out.println("JavaForwarder UDP session: " + describe() + " started ("
+					+ (dumpBuffer == null ? JavaForwarder.ForwardingPath.SPLICE : JavaForwarder.ForwardingPath.INSPECT)
+					+ ")");
+		}
+
+		/**
+		 * Close the upstream channel and remove the session, the next datagram of the client starts a new session.
+		 */
+		void close() {
+			if (listener.sessions.remove(clientAddress) == null) {
+				return;
+			}
+			listener.route.stopped();
+			backend.stopped();
+			closeQuietly(serverChannel);
+			if (clientDataDumpManager != null) {
+				clientDataDumpManager.logDataDump();
+				serverDataDumpManager.logDataDump();
+			}
+			System.out.println("JavaForwarder UDP session: " + describe() + " stopped");
+		}
+
+		private String describe() {
+			return clientAddress.getAddress().getHostAddress() + ":" + clientAddress.getPort() + " <--> "
+					+ remoteAddress.getAddress().getHostAddress() + ":" + remoteAddress.getPort();
+		}
+
+	}
+
+	/**
+	 * @return number of bursts received
+	 */
+	long getBursts() {
+		return bursts.get();
+	}
+
+	/**
+	 * @return number of datagrams received
+	 */
+	long getDatagrams() {
+		return datagrams.get();
+	}
+
+	/**
+	 * @return number of bytes received
+	 */
+	long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return number of bursts that filled the whole ring
+	 */
+	long getFullBursts() {
+		return fullBursts.get();
+	}
+
+	/**
+	 * @return largest number of datagrams received in a single burst
+	 */
+	int getMaxBurst() {
+		return maxBurst.get();
+	}
+
+	/**
+	 * @return number of datagrams dropped because a socket buffer could not take them
+	 */
+	long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return number of datagrams dropped because their listener had the maximum number of sessions
+	 */
+	long getRejected() {
+		return rejected.get();
+	}
+
+	@Override
+	public String toString() {
+		final long bursts = getBursts();
+		final long datagrams = getDatagrams();
+		return new StringBuilder("bursts ").append(bursts).append(" (full ").append(getFullBursts()).append(", max ")
+				.append(getMaxBurst()).append(" of ").append(ring.length).append(", average ")
+				.append(bursts == 0 ? 0 : datagrams / bursts).append("), datagrams ").append(datagrams).append(", bytes ")
+				.append(getBytes()).append(", dropped ").append(getDropped()).append(", rejected ").append(getRejected())
+				.toString();
+	}
+
+	private static void closeQuietly(final DatagramChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private static int burstSize() {
+		try {
+			return Math.max(1, Integer.valueOf(System.getProperty(ENVIRONMENT_VARIABLE_UDP_BURST)));
+		} catch (NumberFormatException e) {
+			return 64;
+		}
+	}
+
+	private static int maxSessions() {
+		try {
+			return Math.max(1, Integer.valueOf(System.getProperty(ENVIRONMENT_VARIABLE_UDP_MAX_SESSIONS)));
+		} catch (NumberFormatException e) {
+			return 1024;
+		}
+	}
+
+	private static long idleNanos() {
+		try {
+			return TimeUnit.SECONDS.toNanos(Long.valueOf(System.getProperty(ENVIRONMENT_VARIABLE_UDP_IDLE_SECONDS)));
+		} catch (NumberFormatException e) {
+			return TimeUnit.SECONDS.toNanos(60);
+		}
+	}
+
+}
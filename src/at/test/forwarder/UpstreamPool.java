@@ -0,0 +1,567 @@
+package at.test.forwarder;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of idle {@code TCP} connections to the backends of a route, connected in advance so an accepted client connection
+ * can be forwarded without waiting for the name lookup and handshake of a connect. A {@link Refiller} thread keeps at least
+ * {@code POOL_MIN_IDLE} connections per backend idle, and up to {@code POOL_MAX_IDLE} while clients take them faster than
+ * they are refilled. It connects to all backends at once without blocking, so a backend not answering does not hold up
+ * the others. Connections idle for {@code POOL_IDLE_SECONDS}, closed by the backend or receiving data before any
+ * client was forwarded to them are stale and closed instead of being used. Connections are never returned to the pool, as
+ * the state of the forwarded stream is unknown once a client is done with it.
+ */
+class UpstreamPool {
+
+	/** Set to the number of idle connections kept per backend, defaults to 0 to not pool connections. */
+	static final String ENVIRONMENT_VARIABLE_POOL_MIN_IDLE = "POOL_MIN_IDLE";
+	/** Set to the maximum number of idle connections per backend, defaults to twice {@code POOL_MIN_IDLE}. */
+	static final String ENVIRONMENT_VARIABLE_POOL_MAX_IDLE = "POOL_MAX_IDLE";
+	/** Set to the number of seconds a connection may be idle before it is stale, defaults to 30. */
+	static final String ENVIRONMENT_VARIABLE_POOL_IDLE_SECONDS = "POOL_IDLE_SECONDS";
+
+	/** Milliseconds to wait before connecting to a backend again after a failed connect, while it is not ejected. */
+	private static final long RETRY_MILLIS = 100;
+
+	final private int minIdle;
+	final private int maxIdle;
+	final private long idleNanos;
+	/** Idle connections per backend, most recently connected first. */
+	final private Map<Backend, Deque<Idle>> idle = new IdentityHashMap<>();
+	/** Connects per backend, only used by the {@link Refiller}. */
+	final private Map<Backend, Connects> connects = new IdentityHashMap<>();
+	/** Flag set by a miss, so the next refill fills up to {@code maxIdle} instead of {@code minIdle}. */
+	private final AtomicBoolean drained = new AtomicBoolean();
+	/** Thread refilling the pool, {@code null} until started. */
+	private volatile Refiller refiller;
+
+	/** Number of client connections forwarded to a pooled connection. */
+	private final AtomicLong hits = new AtomicLong();
+	/** Number of client connections that found no pooled connection and had to connect. */
+	private final AtomicLong misses = new AtomicLong();
+	/** Number of pooled connections closed as stale. */
+	private final AtomicLong stale = new AtomicLong();
+
+	/**
+	 * @param backends to connect to
+	 * @param minIdle  connections kept idle per backend
+	 * @param maxIdle  maximum connections idle per backend
+	 */
+	private UpstreamPool(final List<Backend> backends, final int minIdle, final int maxIdle) {
+		this.minIdle = minIdle;
+		this.maxIdle = Math.max(minIdle, maxIdle);
+		this.idleNanos = idleNanos();
+		for (Backend backend : backends) {
+			idle.put(backend, new ConcurrentLinkedDeque<>());
+			connects.put(backend, new Connects());
+		}
+	}
+
+	/**
+	 * Create the pool of a route, configured by the route options {@code pool_min_idle} and {@code pool_max_idle} or the
+	 * properties {@code POOL_MIN_IDLE} and {@code POOL_MAX_IDLE}.
+	 *
+	 * @param route to pool connections for
+	 * @return pool, {@code null} if the route does not pool connections
+	 * @throws IllegalArgumentException if an option is not a number
+	 */
+	static UpstreamPool create(final Route route) {
+		if (JavaForwarder.Protocol.TCP != route.getProtocol()) {
+			return null;
+		}
+		final int minIdle = limit(route.getOption("pool_min_idle"), ENVIRONMENT_VARIABLE_POOL_MIN_IDLE, 0);
+		if (minIdle <= 0) {
+			return null;
+		}
+		final int maxIdle = limit(route.getOption("pool_max_idle"), ENVIRONMENT_VARIABLE_POOL_MAX_IDLE, 2 * minIdle);
+		return new UpstreamPool(route.getLoadBalancer().getBackends(), minIdle, maxIdle);
+	}
+
+	/**
+	 * Take an idle connection to {@code backend}, closing stale connections found on the way.
+	 *
+	 * @param backend to take a connection to
+	 * @return non-blocking connected channel, {@code null} if no connection is idle
+	 */
+	SocketChannel take(final Backend backend) {
+		final Deque<Idle> connections = idle.get(backend);
+		Idle connection;
+		while ((connection = connections.pollFirst()) != null) {
+			if (connection.isStale(System.nanoTime())) {
+				stale.incrementAndGet();
+				closeQuietly(connection.channel);
+				continue;
+			}
+			hits.incrementAndGet();
+			if (connections.size() < minIdle) {
+				wakeRefiller();
+			}
+			return connection.channel;
+		}
+		misses.incrementAndGet();
+		drained.set(true);
+		wakeRefiller();
+		return null;
+	}
+
+	/**
+	 * Close stale connections and start connecting to each backend not ejected until it has enough idle and pending
+	 * connections, called by the {@link Refiller} only. An ejected backend is refilled once its ejection has expired, the
+	 * first connect probing it.
+	 *
+	 * @param selector to register the pending connects with
+	 * @param now      current {@link System#nanoTime()}
+	 * @return nanoseconds until the pool has to be refilled again without being woken, e.g. as its oldest connection
+	 *         expires, {@link Long#MAX_VALUE} if it only needs to be refilled once drained
+	 */
+	private long refill(final Selector selector, final long now) {
+		final int target = drained.getAndSet(false) ? maxIdle : minIdle;
+		long delay = Long.MAX_VALUE;
+		for (Map.Entry<Backend, Deque<Idle>> entry : idle.entrySet()) {
+			final Backend backend = entry.getKey();
+			final Deque<Idle> connections = entry.getValue();
+			// The oldest connections are at the end, these get stale first
+			Idle connection;
+			while (((connection = connections.peekLast()) != null) && connection.isExpired(now)) {
+				if (connections.removeLastOccurrence(connection)) {
+					stale.incrementAndGet();
+					closeQuietly(connection.channel);
+				}
+			}
+			if (connection != null) {
+				delay = Math.min(delay, connection.since + idleNanos - now);
+			}
+			final Connects backendConnects = connects.get(backend);
+			if (connections.size() + backendConnects.pending >= target) {
+				continue;
+			}
+			if (backendConnects.retrying && (now - backendConnects.retryAt < 0)) {
+				delay = Math.min(delay, backendConnects.retryAt - now);
+				continue;
+			}
+			backendConnects.retrying = false;
+			final boolean probe = backend.isEjected();
+			if (!backend.tryAcquire(now)) {
+				// Ejected, retried once the ejection expired or the probe of a client connection finished
+				delay = Math.min(delay, Math.max(TimeUnit.MILLISECONDS.toNanos(RETRY_MILLIS), backend.getEjectedUntil() - now));
+				continue;
+			}
+			while ((connections.size() + backendConnects.pending < target) && connect(selector, backend, now)) {
+				if (probe) {
+					// No more connects until the probe succeeded
+					break;
+				}
+			}
+		}
+		return delay;
+	}
+
+	/**
+	 * Start a non-blocking connect to {@code backend}, completed by {@link #connected(Connect)} or
+	 * {@link #failed(Connect, Exception)}.
+	 *
+	 * @param selector to register the connect with while it is pending
+	 * @param backend  to connect to
+	 * @param now      current {@link System#nanoTime()}
+	 * @return {@code true} if the connect is pending or completed, {@code false} if it failed
+	 */
+	private boolean connect(final Selector selector, final Backend backend, final long now) {
+		final SocketChannel channel;
+		try {
+			channel = SocketChannel.open();
+		} catch (IOException e) {
+			// Not the backend's fault, e.g. the process is out of file descriptors
+			System.err.println("JavaForwarder failed to pool TCP connection: " + backend + ": " + e);
+			retry(connects.get(backend), now);
+			return false;
+		}
+		final Connect connect = new Connect(this, backend, channel, now);
+		connects.get(backend).pending++;
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setKeepAlive(true);
+			JavaForwarder.configureTcpNoDelay(channel.socket());
+			if (channel.connect(backend.getAddress())) {
+				connected(connect);
+			} else {
+				channel.register(selector, SelectionKey.OP_CONNECT, connect);
+			}
+			return true;
+		} catch (IOException | UnresolvedAddressException e) {
+			failed(connect, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Add the connection of a completed connect to the idle connections, called by the {@link Refiller} only once the
+	 * channel is no longer registered with its selector.
+	 *
+	 * @param connect completed
+	 */
+	private void connected(final Connect connect) {
+		connects.get(connect.backend).pending--;
+		final long now = System.nanoTime();
+		connect.backend.connected(now - connect.start);
+		idle.get(connect.backend).offerFirst(new Idle(connect.channel, now));
+	}
+
+	/**
+	 * Count a failed connect, connecting to the backend again after {@code RETRY_MILLIS} unless it got ejected, called by
+	 * the {@link Refiller} only.
+	 *
+	 * @param connect failed
+	 * @param e       failure
+	 */
+	private void failed(final Connect connect, final Exception e) {
+		System.err.println("JavaForwarder failed to pool TCP connection: " + connect.backend + ": " + e);
+		final Connects backendConnects = connects.get(connect.backend);
+		backendConnects.pending--;
+		retry(backendConnects, System.nanoTime());
+		connect.backend.failed();
+		closeQuietly(connect.channel);
+	}
+
+	private static void retry(final Connects backendConnects, final long now) {
+		backendConnects.retrying = true;
+		backendConnects.retryAt = now + TimeUnit.MILLISECONDS.toNanos(RETRY_MILLIS);
+	}
+
+	/**
+	 * Close all idle connections and abort the pending connects, called by the {@link Refiller} only.
+	 *
+	 * @param selector the pending connects are registered with
+	 */
+	private void close(final Selector selector) {
+		for (Deque<Idle> connections : idle.values()) {
+			Idle connection;
+			while ((connection = connections.pollFirst()) != null) {
+				closeQuietly(connection.channel);
+			}
+		}
+		for (SelectionKey selectionKey : selector.keys()) {
+			final Connect connect = (Connect) selectionKey.attachment();
+			if (selectionKey.isValid() && (connect.pool == this)) {
+				connects.get(connect.backend).pending--;
+				closeQuietly(connect.channel);
+			}
+		}
+	}
+
+	private void wakeRefiller() {
+		final Refiller thread = refiller;
+		if (thread != null) {
+			thread.selector.wakeup();
+		}
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	long getStale() {
+		return stale.get();
+	}
+
+	/**
+	 * @return number of connections currently idle
+	 */
+	int getIdle() {
+		int count = 0;
+		for (Deque<Idle> connections : idle.values()) {
+			count += connections.size();
+		}
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return "pool idle " + getIdle() + " (" + minIdle + "-" + maxIdle + " per backend), hits " + getHits() + ", misses "
+				+ getMisses() + ", stale " + getStale();
+	}
+
+	private static void closeQuietly(final SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * @param option       value of the route option, {@code null} if not set
+	 * @param property     name of the property with the default of all routes
+	 * @param defaultValue if neither is set
+	 * @return limit
+	 */
+	private static int limit(final String option, final String property, final int defaultValue) {
+		if (option != null) {
+			return Integer.parseInt(option);
+		}
+		try {
+			return Integer.valueOf(System.getProperty(property));
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private static long idleNanos() {
+		try {
+			return TimeUnit.SECONDS.toNanos(Long.valueOf(System.getProperty(ENVIRONMENT_VARIABLE_POOL_IDLE_SECONDS)));
+		} catch (NumberFormatException e) {
+			return TimeUnit.SECONDS.toNanos(30);
+		}
+	}
+
+	/**
+	 * Idle connection with the {@link System#nanoTime()} it was connected at.
+	 */
+	private class Idle {
+
+		final private SocketChannel channel;
+		final private long since;
+
+		Idle(final SocketChannel channel, final long since) {
+			this.channel = channel;
+			this.since = since;
+		}
+
+		/**
+		 * @param now current {@link System#nanoTime()}
+		 * @return {@code true} if the connection has been idle for too long
+		 */
+		boolean isExpired(final long now) {
+			return now - since >= idleNanos;
+		}
+
+		/**
+		 * Check if the connection may be used, without blocking: it must neither be expired, nor closed by the backend, nor
+		 * have received any data, which would not be forwarded to the client.
+		 *
+		 * @param now current {@link System#nanoTime()}
+		 * @return {@code true} if the connection must not be used
+		 */
+		boolean isStale(final long now) {
+			if (isExpired(now) || !channel.isOpen()) {
+				return true;
+			}
+			try {
+				return channel.read(ByteBuffer.allocate(1)) != 0;
+			} catch (IOException e) {
+				return true;
+			}
+		}
+
+	}
+
+	/**
+	 * Connects to a backend, only used by the {@link Refiller}.
+	 */
+	private static class Connects {
+
+		/** Number of connects pending. */
+		private int pending;
+		/** Flag set after a failed connect, until {@code retryAt}. */
+		private boolean retrying;
+		/** {@link System#nanoTime()} to connect again at, only valid while {@code retrying}. */
+		private long retryAt;
+
+	}
+
+	/**
+	 * Pending connect, attached to its key of the {@link Refiller}'s selector.
+	 */
+	private static class Connect {
+
+		final private UpstreamPool pool;
+		final private Backend backend;
+		final private SocketChannel channel;
+		/** {@link System#nanoTime()} the connect started at. */
+		final private long start;
+
+		Connect(final UpstreamPool pool, final Backend backend, final SocketChannel channel, final long start) {
+			this.pool = pool;
+			this.backend = backend;
+			this.channel = channel;
+			this.start = start;
+		}
+
+	}
+
+	/**
+	 * Thread refilling the pools of all routes, woken whenever a pool falls below its minimum. The connects of all pools
+	 * are non-blocking and completed by a single {@link Selector}, without anything pending or expiring it sleeps until a
+	 * pool is drained. Pools can be added and removed while it runs, as routes are.
+	 */
+	static class Refiller extends Thread {
+
+		final private List<UpstreamPool> pools = new CopyOnWriteArrayList<>();
+		/** Pools removed, closed by the refiller once it no longer refills them. */
+		final private Queue<UpstreamPool> removed = new ConcurrentLinkedQueue<>();
+		/** Selector completing the connects, woken to refill. */
+		final private Selector selector;
+		/** Connects completed, added to their pools once no longer registered with {@code selector}. */
+		final private List<Connect> connected = new ArrayList<>();
+		/** Flag cleared to terminate the refiller. */
+		private volatile boolean running = true;
+
+		/**
+		 * @throws IOException if the selector can't be opened
+		 */
+		Refiller() throws IOException {
+			super("JavaForwarder-UpstreamPool");
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		/**
+		 * @param pool to refill from now on
+		 */
+		void add(final UpstreamPool pool) {
+			pool.refiller = this;
+			pools.add(pool);
+			selector.wakeup();
+		}
+
+		/**
+		 * Stop refilling {@code pool} and close its idle connections, e.g. when its route is removed.
+		 *
+		 * @param pool to remove
+		 */
+		void remove(final UpstreamPool pool) {
+			if (pools.remove(pool)) {
+				removed.add(pool);
+				selector.wakeup();
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					final long now = System.nanoTime();
+					long delay = Long.MAX_VALUE;
+					for (UpstreamPool pool : pools) {
+						delay = Math.min(delay, pool.refill(selector, now));
+					}
+					UpstreamPool pool;
+					while ((pool = removed.poll()) != null) {
+						pool.close(selector);
+					}
+					delay = Math.min(delay, expireConnects(now));
+					if (delay == Long.MAX_VALUE) {
+						selector.select();
+					} else {
+						// select(0) would block
+						selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(delay)));
+					}
+					finishConnects();
+				}
+			} catch (IOException | ClosedSelectorException e) {
+				e.printStackTrace();
+			}
+			for (UpstreamPool pool : pools) {
+				pool.close(selector);
+			}
+			UpstreamPool pool;
+			while ((pool = removed.poll()) != null) {
+				pool.close(selector);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+
+		/**
+		 * Fail the connects pending for longer than {@link Backend#CONNECT_TIMEOUT_MILLIS}.
+		 *
+		 * @param now current {@link System#nanoTime()}
+		 * @return nanoseconds until the next pending connect times out, {@link Long#MAX_VALUE} if none is pending
+		 */
+		private long expireConnects(final long now) {
+			final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Backend.CONNECT_TIMEOUT_MILLIS);
+			long delay = Long.MAX_VALUE;
+			for (SelectionKey selectionKey : selector.keys()) {
+				if (!selectionKey.isValid()) {
+					continue;
+				}
+				final Connect connect = (Connect) selectionKey.attachment();
+				final long remaining = connect.start + timeoutNanos - now;
+				if (remaining <= 0) {
+					connect.pool.failed(connect, new SocketTimeoutException("connect timed out"));
+				} else {
+					delay = Math.min(delay, remaining);
+				}
+			}
+			return delay;
+		}
+
+		/**
+		 * Complete the connects selected.
+		 *
+		 * @throws IOException if the selector fails
+		 */
+		private void finishConnects() throws IOException {
+			final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+			while (iterator.hasNext()) {
+				final SelectionKey selectionKey = iterator.next();
+				iterator.remove();
+				final Connect connect = (Connect) selectionKey.attachment();
+				try {
+					if (connect.channel.finishConnect()) {
+						selectionKey.cancel();
+						connected.add(connect);
+					}
+				} catch (IOException e) {
+					connect.pool.failed(connect, e);
+				}
+			}
+			if (!connected.isEmpty()) {
+				// Deregister the channels, a client making them blocking fails while they are registered
+				selector.selectNow();
+				for (Connect connect : connected) {
+					connect.pool.connected(connect);
+				}
+				connected.clear();
+			}
+		}
+
+		/**
+		 * Stop refilling and close all idle connections.
+		 */
+		void shutdown() {
+			running = false;
+			selector.wakeup();
+			try {
+				join();
+			} catch (InterruptedException e) {
+			}
+		}
+
+	}
+
+}
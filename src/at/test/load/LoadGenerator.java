@@ -0,0 +1,467 @@
+package at.test.load;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator pushing traffic of {@code clients} concurrent clients through a running JavaForwarder, with the echo and
+ * sink servers it forwards to built in, so a whole test runs on one box over loopback:
+ * <ul>
+ * <li>{@code tcp} ... every client sends requests of {@code size} bytes on its connection and waits for the echo</li>
+ * <li>{@code udp} ... every client sends datagrams of {@code size} bytes and waits for the echo</li>
+ * <li>{@code stream} ... every client writes {@code size} bytes chunks to a sink as fast as it can</li>
+ * <li>{@code servers} ... only runs the echo and sink servers, until Enter is pressed</li>
+ * </ul>
+ * With a {@code rate} the requests are sent on a fixed schedule and their latency is measured from the time they should
+ * have been sent, not from when they were sent: a stalled forwarder then delays all requests scheduled meanwhile, instead of
+ * only the one request that happened to wait for it (coordinated omission). Both latencies are reported.
+ * <p>
+ * Example, forwarding port 9102 to the echo server on port 9101:
+ *
+ * <pre>
+ * java at.test.forwarder.JavaForwarder 127.0.0.1 9101 9102
+ * java at.test.load.LoadGenerator tcp 9102 server=9101 clients=32 rate=20000 size=512 seconds=30
+ * </pre>
+ */
+public class LoadGenerator {
+
+	/** Maximum milliseconds to wait for a response before a request counts as failed. */
+	private static final int RESPONSE_TIMEOUT_MILLIS = 5000;
+
+	/** Number of requests or chunks completed, reported every second. */
+	private static final AtomicLong completed = new AtomicLong();
+	/** Number of bytes sent, reported every second. */
+	private static final AtomicLong bytesSent = new AtomicLong();
+	/** Number of requests that failed or timed out. */
+	private static final AtomicLong errors = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			usage();
+			return;
+		}
+		final String scenario = args[0].toLowerCase();
+		final Map<String, String> options = new HashMap<>();
+		int port = 0;
+		for (int index = 1; index < args.length; index++) {
+			final int separator = args[index].indexOf('=');
+			if (separator > 0) {
+				options.put(args[index].substring(0, separator).toLowerCase(), args[index].substring(separator + 1));
+			} else {
+				port = Integer.parseInt(args[index]);
+			}
+		}
+		if ("servers".equals(scenario)) {
+			servers(options);
+			return;
+		}
+		if ((!"tcp".equals(scenario) && !"udp".equals(scenario) && !"stream".equals(scenario)) || (port <= 0)) {
+			usage();
+			return;
+		}
+		final InetSocketAddress target = new InetSocketAddress(option(options, "host", "127.0.0.1"), port);
+		final int clients = Integer.parseInt(option(options, "clients", "16"));
+		final long rate = Long.parseLong(option(options, "rate", "0"));
+		final int size = Integer.parseInt(option(options, "size", "stream".equals(scenario) ? "16384" : "64"));
+		final int seconds = Integer.parseInt(option(options, "seconds", "10"));
+		final int warmupSeconds = Integer.parseInt(option(options, "warmup", "2"));
+		if (options.containsKey("server")) {
+			final int serverPort = Integer.parseInt(options.get("server"));
+			if ("udp".equals(scenario)) {
+				startUdpEcho(serverPort);
+			} else {
+				startTcpServer(serverPort, "tcp".equals(scenario));
+			}
+		}
+		System.out.println("LoadGenerator " + scenario + ": " + clients + " client(s) to " + target + ", "
+				+ (rate > 0 && !"stream".equals(scenario) ? rate + " requests/s" : "as fast as possible") + ", " + size
+				+ " bytes, " + warmupSeconds + "s warmup, " + seconds + "s measured");
+
+		final long startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+		final long measureNanos = startNanos + TimeUnit.SECONDS.toNanos(warmupSeconds);
+		final long endNanos = measureNanos + TimeUnit.SECONDS.toNanos(seconds);
+		// Each client sends every intervalNanos, the clients offset from each other to spread the requests evenly
+		final long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) * clients / rate : 0;
+		final List<Client> clientThreads = new ArrayList<>();
+		for (int index = 0; index < clients; index++) {
+			final long firstNanos = startNanos + (intervalNanos > 0 ? intervalNanos * index / clients : 0);
+			final Client client = new Client(scenario, index, target, size, firstNanos, intervalNanos, measureNanos,
+					endNanos);
+			clientThreads.add(client);
+			client.start();
+		}
+		report(startNanos, measureNanos, endNanos);
+		final LatencyHistogram corrected = new LatencyHistogram();
+		final LatencyHistogram uncorrected = new LatencyHistogram();
+		long measured = 0;
+		long measuredBytes = 0;
+		for (Client client : clientThreads) {
+			client.join();
+			corrected.add(client.corrected);
+			uncorrected.add(client.uncorrected);
+			measured += client.measured;
+			measuredBytes += client.measuredBytes;
+		}
+		System.out.println("LoadGenerator " + scenario + " result: " + String.format("%.0f", measured / (double) seconds)
+				+ (("stream".equals(scenario)) ? " chunks/s, " : " requests/s, ")
+				+ String.format("%.1f", measuredBytes / (double) seconds / (1024 * 1024)) + " MiB/s sent, errors "
+				+ errors.get());
+		if ("stream".equals(scenario)) {
+			System.out.println("LoadGenerator write latency: " + uncorrected);
+		} else {
+			System.out.println("LoadGenerator latency (from intended send time): " + corrected);
+			System.out.println("LoadGenerator latency (from actual send time):   " + uncorrected
+					+ (rate > 0 ? "" : " (no rate, closed loop)"));
+		}
+	}
+
+	private static void usage() {
+		System.out.println("Usage: LoadGenerator tcp|udp|stream targetPort [option=value ...]");
+		System.out.println("       LoadGenerator servers [echo=port] [sink=port] [udp=port]");
+		System.out.println("");
+		System.out.println("  Options:");
+		System.out.println("    host ... host of the target, defaults to 127.0.0.1");
+		System.out.println("    server ... port to run the echo (tcp, udp) or sink (stream) server on, defaults to none");
+		System.out.println("    clients ... number of concurrent clients, defaults to 16");
+		System.out.println("    rate ... requests per second of all clients, corrects for coordinated omission, defaults to 0 (closed loop)");
+		System.out.println("    size ... bytes per request or chunk, defaults to 64 (stream 16384)");
+		System.out.println("    seconds ... seconds measured, defaults to 10");
+		System.out.println("    warmup ... seconds sent before measuring, defaults to 2");
+		System.out.println("");
+	}
+
+	private static String option(final Map<String, String> options, final String name, final String defaultValue) {
+		final String value = options.get(name);
+		return value != null ? value : defaultValue;
+	}
+
+	/**
+	 * Run the servers given by {@code options} until Enter is pressed.
+	 */
+	private static void servers(final Map<String, String> options) throws IOException {
+		if (options.containsKey("echo")) {
+			startTcpServer(Integer.parseInt(options.get("echo")), true);
+		}
+		if (options.containsKey("sink")) {
+			startTcpServer(Integer.parseInt(options.get("sink")), false);
+		}
+		if (options.containsKey("udp")) {
+			startUdpEcho(Integer.parseInt(options.get("udp")));
+		}
+		System.out.println("LoadGenerator servers running, press Enter to terminate ...");
+		System.in.read();
+	}
+
+	/**
+	 * Print the requests completed and bytes sent every second until {@code endNanos}.
+	 */
+	private static void report(final long startNanos, final long measureNanos, final long endNanos) {
+		long lastCompleted = 0;
+		long lastBytes = 0;
+		long next = startNanos;
+		while (next - endNanos < 0) {
+			next += TimeUnit.SECONDS.toNanos(1);
+			sleepUntil(next);
+			final long completedNow = completed.get();
+			final long bytesNow = bytesSent.get();
+			System.out.println("LoadGenerator " + (next - measureNanos < 0 ? "warmup " : "") + "t="
+					+ TimeUnit.NANOSECONDS.toSeconds(next - startNanos) + "s: " + (completedNow - lastCompleted) + "/s, "
+					+ String.format("%.1f", (bytesNow - lastBytes) / (1024.0 * 1024)) + " MiB/s, errors " + errors.get());
+			lastCompleted = completedNow;
+			lastBytes = bytesNow;
+		}
+	}
+
+	private static void sleepUntil(final long deadlineNanos) {
+		long remaining;
+		while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(remaining);
+		}
+	}
+
+	/**
+	 * Start a {@code TCP} server echoing or discarding all data, with a thread per connection.
+	 *
+	 * @param port to listen on
+	 * @param echo {@code true} to echo data, {@code false} to discard it
+	 */
+	private static void startTcpServer(final int port, final boolean echo) throws IOException {
+		final ServerSocket serverSocket = new ServerSocket(port, 1024);
+		daemon("LoadGenerator-" + (echo ? "Echo-" : "Sink-") + port, () -> {
+			try {
+				while (true) {
+					final Socket socket = serverSocket.accept();
+					socket.setTcpNoDelay(true);
+					daemon("LoadGenerator-Connection-" + socket.getPort(), () -> serve(socket, echo));
+				}
+			} catch (IOException e) {
+				System.err.println("LoadGenerator server on port " + port + " failed: " + e);
+			}
+		});
+		System.out.println("LoadGenerator " + (echo ? "echo" : "sink") + " server on TCP port " + port);
+	}
+
+	private static void serve(final Socket socket, final boolean echo) {
+		final byte[] buffer = new byte[64 * 1024];
+		try (Socket s = socket; InputStream inputStream = s.getInputStream(); OutputStream outputStream = s.getOutputStream()) {
+			int bytesRead;
+			while ((bytesRead = inputStream.read(buffer)) >= 0) {
+				if (echo) {
+					outputStream.write(buffer, 0, bytesRead);
+				}
+			}
+		} catch (IOException e) {
+			// Connection closed by client
+		}
+	}
+
+	/**
+	 * Start a {@code UDP} server echoing every datagram to its sender.
+	 *
+	 * @param port to receive datagrams on
+	 */
+	private static void startUdpEcho(final int port) throws IOException {
+		final DatagramSocket socket = new DatagramSocket(port);
+		daemon("LoadGenerator-UdpEcho-" + port, () -> {
+			final DatagramPacket packet = new DatagramPacket(new byte[65535], 65535);
+			try {
+				while (true) {
+					packet.setLength(65535);
+					socket.receive(packet);
+					socket.send(packet);
+				}
+			} catch (IOException e) {
+				System.err.println("LoadGenerator UDP echo server on port " + port + " failed: " + e);
+			}
+		});
+		System.out.println("LoadGenerator echo server on UDP port " + port);
+	}
+
+	private static void daemon(final String name, final Runnable runnable) {
+		final Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Client sending requests on a schedule, or as fast as possible, and recording their latency.
+	 */
+	private static class Client extends Thread {
+
+		final private String scenario;
+		final private InetSocketAddress target;
+		final private int size;
+		/** {@link System#nanoTime()} the first request is due at. */
+		final private long firstNanos;
+		/** Nanoseconds between requests, {@code 0} to send the next request as soon as the last one completed. */
+		final private long intervalNanos;
+		/** {@link System#nanoTime()} the warmup ends at, requests due before are not measured. */
+		final private long measureNanos;
+		final private long endNanos;
+		/** Latency from the time each request was due, only written by this thread. */
+		final private LatencyHistogram corrected = new LatencyHistogram();
+		/** Latency from the time each request was sent, only written by this thread. */
+		final private LatencyHistogram uncorrected = new LatencyHistogram();
+		private long measured = 0;
+		private long measuredBytes = 0;
+
+		Client(final String scenario, final int index, final InetSocketAddress target, final int size,
+				final long firstNanos, final long intervalNanos, final long measureNanos, final long endNanos) {
+			super("LoadGenerator-Client-" + index);
+			this.scenario = scenario;
+			this.target = target;
+			this.size = size;
+			this.firstNanos = firstNanos;
+			this.intervalNanos = intervalNanos;
+			this.measureNanos = measureNanos;
+			this.endNanos = endNanos;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if ("udp".equals(scenario)) {
+					runUdp();
+				} else {
+					runTcp();
+				}
+			} catch (IOException e) {
+				errors.incrementAndGet();
+				System.err.println("LoadGenerator " + getName() + " failed: " + e);
+			}
+		}
+
+		private void runTcp() throws IOException {
+			final boolean stream = "stream".equals(scenario);
+			try (Socket socket = new Socket()) {
+				socket.setTcpNoDelay(true);
+				socket.connect(target, RESPONSE_TIMEOUT_MILLIS);
+				socket.setSoTimeout(RESPONSE_TIMEOUT_MILLIS);
+				final OutputStream outputStream = socket.getOutputStream();
+				final DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+				final byte[] request = new byte[size];
+				final byte[] response = new byte[size];
+				long due = firstNanos;
+				sleepUntil(due);
+				while (due - endNanos < 0) {
+					if (stream || (intervalNanos == 0)) {
+						due = System.nanoTime();
+					} else {
+						sleepUntil(due);
+					}
+					final long sent = System.nanoTime();
+					outputStream.write(request);
+					if (!stream) {
+						inputStream.readFully(response);
+					}
+					completed(due, sent, System.nanoTime());
+					due += intervalNanos;
+				}
+			}
+		}
+
+		private void runUdp() throws IOException {
+			try (DatagramSocket socket = new DatagramSocket()) {
+				socket.connect(target);
+				socket.setSoTimeout(RESPONSE_TIMEOUT_MILLIS);
+				// Requests carry a sequence number, so late echoes of timed out requests are skipped
+				final ByteBuffer request = ByteBuffer.allocate(Math.max(8, size));
+				final DatagramPacket requestPacket = new DatagramPacket(request.array(), request.capacity());
+				final DatagramPacket responsePacket = new DatagramPacket(new byte[request.capacity()], request.capacity());
+				long sequence = 0;
+				long due = firstNanos;
+				sleepUntil(due);
+				while (due - endNanos < 0) {
+					if (intervalNanos == 0) {
+						due = System.nanoTime();
+					} else {
+						sleepUntil(due);
+					}
+					request.putLong(0, ++sequence);
+					final long sent = System.nanoTime();
+					socket.send(requestPacket);
+					try {
+						do {
+							responsePacket.setLength(request.capacity());
+							socket.receive(responsePacket);
+						} while (ByteBuffer.wrap(responsePacket.getData()).getLong(0) != sequence);
+						completed(due, sent, System.nanoTime());
+					} catch (SocketTimeoutException e) {
+						errors.incrementAndGet();
+					}
+					due += intervalNanos;
+				}
+			}
+		}
+
+		/**
+		 * Count a completed request and record its latency, if it was due after the warmup.
+		 */
+		private void completed(final long due, final long sent, final long now) {
+			completed.incrementAndGet();
+			bytesSent.addAndGet(size);
+			if (due - measureNanos >= 0) {
+				corrected.record(now - due);
+				uncorrected.record(now - sent);
+				measured++;
+				measuredBytes += size;
+			}
+		}
+
+	}
+
+	/**
+	 * Histogram of latencies in nanoseconds with logarithmic buckets, every power of 2 split into 128 buckets, so values are
+	 * off by less than 1%. Written by a single thread.
+	 */
+	static class LatencyHistogram {
+
+		private static final int SUB_BUCKET_BITS = 7;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		/** Values are recorded up to {@code 2^MAX_BITS - 1} nanoseconds (about 18 minutes). */
+		private static final int MAX_BITS = 40;
+
+		private final long[] counts = new long[(MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+		private long count = 0;
+		private long max = 0;
+
+		void record(final long nanos) {
+			final long value = Math.min((1L << MAX_BITS) - 1, Math.max(0, nanos));
+			counts[index(value)]++;
+			count++;
+			max = Math.max(max, value);
+		}
+
+		void add(final LatencyHistogram other) {
+			for (int index = 0; index < counts.length; index++) {
+				counts[index] += other.counts[index];
+			}
+			count += other.count;
+			max = Math.max(max, other.max);
+		}
+
+		/**
+		 * @param percentile between {@code 0} and {@code 100}
+		 * @return upper bound in nanoseconds of the bucket holding the percentile, {@code 0} if nothing was recorded
+		 */
+		long getPercentile(final double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+			long seen = 0;
+			for (int index = 0; index < counts.length; index++) {
+				seen += counts[index];
+				if (seen >= rank) {
+					return Math.min(max, upperBound(index));
+				}
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return "p50 " + millis(getPercentile(50)) + " ms, p99 " + millis(getPercentile(99)) + " ms, p99.9 "
+					+ millis(getPercentile(99.9)) + " ms, max " + millis(max) + " ms (" + count + " samples)";
+		}
+
+		private static int index(final long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+			return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+		}
+
+		private static long upperBound(final int index) {
+			if (index < SUB_BUCKETS) {
+				return index;
+			}
+			final int shift = index / SUB_BUCKETS - 1;
+			return (((long) (index % SUB_BUCKETS + SUB_BUCKETS + 1)) << shift) - 1;
+		}
+
+		private static String millis(final long nanos) {
+			return String.format("%.3f", nanos / 1e6);
+		}
+
+	}
+
+}
@@ -1,12 +1,18 @@
 package at.test.proxy;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import at.test.forwarder.BufferPool;
+import at.test.forwarder.DnsCache;
 
 public class JavaProxy {
 
@@ -76,26 +82,26 @@ public class JavaProxy {
 	 */
 	public static void runServer(final String remotehost, final int remoteport, final int localport) throws IOException {
 		// Creating a ServerSocket to listen for connections
-		try (ServerSocket serverSocket = new ServerSocket(localport);) {
+		try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();) {
+			serverSocketChannel.bind(new InetSocketAddress(localport));
+			final ServerSocket serverSocket = serverSocketChannel.socket();
 			serverSocket.setSoTimeout(1000);
-			final byte[] request = new byte[1024 * 64];
-			byte[] reply = new byte[1024 * 64];
 			System.out.println("JavaProxy waiting for connection ...");
 			while (true) {
 				Socket client = null, server = null;
+				ByteBuffer request = null, reply = null;
 				try {
 					// It will wait for a connection on the local port
 					client = serverSocket.accept();
 					System.out.println("Accepted connection from host: " + client.getInetAddress().getHostName() + ", local port: "
 							+ client.getLocalPort());
-					final InputStream streamFromClient = client.getInputStream();
 					final OutputStream streamToClient = client.getOutputStream();
 
 					// Create a connection to the real server.
 					// If we cannot connect to the server, send an error to the
 					// client, disconnect, and continue waiting for connections.
 					try {
-						server = new Socket(remotehost, remoteport);
+						server = SocketChannel.open(DnsCache.shared().resolve(remotehost, remoteport)).socket();
 					} catch (IOException e) {
 						e.printStackTrace();
 						PrintWriter out = new PrintWriter(streamToClient);
@@ -105,19 +111,25 @@ public class JavaProxy {
 						break;
 					}
 
-					// Get server streams.
-					final InputStream streamFromServer = server.getInputStream();
+					// Get channels and pooled direct buffers to copy data with.
+					final SocketChannel channelFromClient = client.getChannel();
+					final SocketChannel channelFromServer = server.getChannel();
 					final OutputStream streamToServer = server.getOutputStream();
+					request = BufferPool.shared().acquire(1024 * 64);
+					reply = BufferPool.shared().acquire(1024 * 64);
+					final ByteBuffer requestBuffer = request;
 
 					// a thread to read the client's requests and pass them
 					// to the server. A separate thread for asynchronous.
 					Thread t = new Thread() {
 						public void run() {
-							int bytesRead;
 							try {
-								while ((bytesRead = streamFromClient.read(request)) != -1) {
-									streamToServer.write(request, 0, bytesRead);
-									streamToServer.flush();
+								while (channelFromClient.read(requestBuffer) != -1) {
+									requestBuffer.flip();
+									while (requestBuffer.hasRemaining()) {
+										channelFromServer.write(requestBuffer);
+									}
+									requestBuffer.clear();
 								}
 							} catch (IOException e) {
 							}
@@ -135,11 +147,13 @@ public class JavaProxy {
 					t.start();
 					// Read the server's responses
 					// and pass them back to the client.
-					int bytesRead;
 					try {
-						while ((bytesRead = streamFromServer.read(reply)) != -1) {
-							streamToClient.write(reply, 0, bytesRead);
-							streamToClient.flush();
+						while (channelFromServer.read(reply) != -1) {
+							reply.flip();
+							while (reply.hasRemaining()) {
+								channelFromClient.write(reply);
+							}
+							reply.clear();
 						}
 					} catch (IOException e) {
 					}
@@ -149,6 +163,7 @@ public class JavaProxy {
 							+ client.getLocalPort());
 					streamToClient.close();
 					t.interrupt();
+					t.join();
 				} catch (SocketTimeoutException e) {
 					// Socket timeout
 					if (JavaProxy.doExit == true) {
@@ -156,7 +171,11 @@ public class JavaProxy {
 					}
 				} catch (IOException e) {
 					e.printStackTrace();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
 				} finally {
+					BufferPool.shared().release(request);
+					BufferPool.shared().release(reply);
 					try {
 						if (server != null)
 							server.close();
@@ -2,11 +2,30 @@ package at.test.udp;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * UDP client sending user input to a server, or with a rate given a load generator sending datagrams of a fixed size at a
+ * fixed rate for a number of seconds. Datagrams echoed back by the server (e.g. UdpServer in {@code ECHO} mode, possibly
+ * behind JavaForwarder with {@code MODE=UDP}) are counted and their round trip time measured, as every datagram starts with
+ * the {@link System#nanoTime()} it was sent at.
+ */
 public class UdpClient {
 
-	public static void main(String[] args) throws IOException {
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String host = args.length > 0 ? args[0] : "127.0.0.1";
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 80;
+		if (args.length > 2) {
+			int rate = Integer.parseInt(args[2]);
+			int size = args.length > 3 ? Integer.parseInt(args[3]) : 512;
+			int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+			generateLoad(new InetSocketAddress(host, port), rate, size, seconds);
+			return;
+		}
 		System.out.println("UDP Client Started. Sending user input to Server until \"QUIT\" is entered" + "...");
 		DatagramPacket sendPacket;
 		byte[] sendData;
@@ -23,9 +42,94 @@ public class UdpClient {
 				System.exit(1);
 			}
 			sendData = cmd.getBytes();
-//			sendPacket = new DatagramPacket(sendData, sendData.length, InetAddress.getByName("127.0.0.1"), 5001);
-			sendPacket = new DatagramPacket(sendData, sendData.length, InetAddress.getByName("127.0.0.1"), 80);
+			sendPacket = new DatagramPacket(sendData, sendData.length, InetAddress.getByName(host), port);
 			clientSocket.send(sendPacket);
 		}
 	}
+
+	/**
+	 * Send {@code rate} datagrams of {@code size} bytes per second for {@code seconds} seconds and report datagrams sent and
+	 * echoed every second.
+	 *
+	 * @param serverAddress to send datagrams to
+	 * @param rate          datagrams per second, {@code 0} to send as fast as possible
+	 * @param size          bytes per datagram, at least 8
+	 * @param seconds       duration of the load test
+	 */
+	private static void generateLoad(InetSocketAddress serverAddress, int rate, int size, int seconds)
+			throws IOException, InterruptedException {
+		System.out.println("UDP Client Started. Sending " + (rate > 0 ? rate : "unlimited") + " datagrams/s of " + size
+				+ " bytes to " + serverAddress + " for " + seconds + "s ...");
+		DatagramChannel clientChannel = DatagramChannel.open();
+		clientChannel.connect(serverAddress);
+		AtomicLong received = new AtomicLong();
+		AtomicLong roundTripNanos = new AtomicLong();
+		Thread receiver = new Thread(() -> {
+			ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(65535);
+			try {
+				while (true) {
+					receiveBuffer.clear();
+					try {
+						clientChannel.read(receiveBuffer);
+					} catch (PortUnreachableException e) {
+						// Nobody listening (yet)
+						continue;
+					}
+					if (receiveBuffer.position() >= 8) {
+						roundTripNanos.addAndGet(System.nanoTime() - receiveBuffer.getLong(0));
+					}
+					received.incrementAndGet();
+				}
+			} catch (IOException e) {
+				// Channel closed --> done
+			}
+		}, "UdpClient-Receiver");
+		receiver.setDaemon(true);
+		receiver.start();
+		ByteBuffer sendBuffer = ByteBuffer.allocateDirect(Math.max(8, size));
+		long intervalNanos = rate > 0 ? 1_000_000_000L / rate : 0;
+		long start = System.nanoTime();
+		long end = start + seconds * 1_000_000_000L;
+		long nextSend = start;
+		long nextReport = start + 1_000_000_000L;
+		long sent = 0;
+		long sentReported = 0;
+		long receivedReported = 0;
+		long roundTripReported = 0;
+		while (true) {
+			long now = System.nanoTime();
+			if (now - end >= 0) {
+				break;
+			}
+			if (now - nextReport >= 0) {
+				long receivedTotal = received.get();
+				long roundTripTotal = roundTripNanos.get();
+				long echoed = receivedTotal - receivedReported;
+				System.out.println("UDP Client sent " + (sent - sentReported) + " datagrams/s, received " + echoed
+						+ " datagrams/s, average round trip "
+						+ (echoed == 0 ? "-" : ((roundTripTotal - roundTripReported) / echoed / 1000) + "us"));
+				sentReported = sent;
+				receivedReported = receivedTotal;
+				roundTripReported = roundTripTotal;
+				nextReport += 1_000_000_000L;
+			}
+			if ((intervalNanos > 0) && (now - nextSend < 0)) {
+				LockSupport.parkNanos(Math.min(nextSend - now, 100_000));
+				continue;
+			}
+			sendBuffer.clear();
+			sendBuffer.putLong(0, now);
+			try {
+				clientChannel.write(sendBuffer);
+			} catch (PortUnreachableException e) {
+				// Nobody listening (yet)
+			}
+			sent++;
+			nextSend += intervalNanos;
+		}
+		// Give echoes still in flight a chance to arrive
+		Thread.sleep(500);
+		clientChannel.close();
+		System.out.println("UDP Client finished, sent " + sent + " datagrams, received " + received.get() + " datagrams");
+	}
 }
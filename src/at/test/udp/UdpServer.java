@@ -1,30 +1,66 @@
 package at.test.udp;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
 
+/**
+ * UDP server printing the datagrams received ({@code PRINT}, default), or acting as the sink of a load test: {@code SINK}
+ * only counts the datagrams received, {@code ECHO} also sends them back to their sender, so UdpClient can measure the round
+ * trip. {@code SINK} and {@code ECHO} print the datagrams and bytes received every second.
+ */
 public class UdpServer {
+
+	private static enum Mode {
+		PRINT, SINK, ECHO
+	};
+
 	public static void main(String[] args) throws IOException {
-		DatagramSocket serverSocket = new DatagramSocket(Integer.parseInt("5001"));
-		System.out.println("UDP Server Started. Listening for Clients on port 5001" + "...");
-		// Assume messages are not over 1024 bytes
-		byte[] receiveData = new byte[1024];
-		DatagramPacket receivePacket;
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 5001;
+		Mode mode = args.length > 1 ? Mode.valueOf(args[1].toUpperCase()) : Mode.PRINT;
+		DatagramChannel serverChannel = DatagramChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		System.out.println("UDP Server Started. Listening for Clients on port " + port + " (" + mode + ") ...");
+		// Largest possible UDP payload, reused for every datagram
+		ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(65535);
+		byte[] receiveData = new byte[receiveBuffer.capacity()];
+		long datagrams = 0;
+		long bytes = 0;
+		long nextReport = System.nanoTime() + 1_000_000_000L;
 		while (true) {
 			// Server waiting for clients message
-			receivePacket = new DatagramPacket(receiveData, receiveData.length);
-			serverSocket.receive(receivePacket);
-			// Get the client's IP address and port
-			InetAddress IPAddress = receivePacket.getAddress();
-			int port = receivePacket.getPort();
-			// Convert Byte Data to String
-			String clientMessage = new String(receivePacket.getData(), 0, receivePacket.getLength());
-			// Print the message with log header
-			Timestamp timestamp = new Timestamp(System.currentTimeMillis());
-			System.out.println("[" + timestamp.toString() + " ,IP: " + IPAddress + " ,Port: " + port + "]  " + clientMessage);
+			receiveBuffer.clear();
+			SocketAddress clientAddress = serverChannel.receive(receiveBuffer);
+			receiveBuffer.flip();
+			if (Mode.PRINT == mode) {
+				// Get the client's IP address and port
+				InetSocketAddress clientSocketAddress = (InetSocketAddress) clientAddress;
+				// Convert Byte Data to String
+				int length = receiveBuffer.remaining();
+				receiveBuffer.get(receiveData, 0, length);
+				String clientMessage = new String(receiveData, 0, length, StandardCharsets.UTF_8);
+				// Print the message with log header
+				Timestamp timestamp = new Timestamp(System.currentTimeMillis());
+				System.out.println("[" + timestamp.toString() + " ,IP: " + clientSocketAddress.getAddress() + " ,Port: "
+						+ clientSocketAddress.getPort() + "]  " + clientMessage);
+				continue;
+			}
+			datagrams++;
+			bytes += receiveBuffer.remaining();
+			if (Mode.ECHO == mode) {
+				serverChannel.send(receiveBuffer, clientAddress);
+			}
+			long now = System.nanoTime();
+			if (now - nextReport >= 0) {
+				System.out.println("UDP Server received " + datagrams + " datagrams/s, " + bytes + " bytes/s");
+				datagrams = 0;
+				bytes = 0;
+				nextReport = now + 1_000_000_000L;
+			}
 		}
 	}
 }